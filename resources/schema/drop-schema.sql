@@ -5,6 +5,8 @@
  DROP TABLE IF EXISTS t_user;
  DROP TABLE IF EXISTS taste_item_similarity;
  DROP TABLE IF EXISTS channel_activity;
+ DROP TABLE IF EXISTS channel_server;
+ DROP TABLE IF EXISTS activity_checkpoint;
 
  DROP SEQUENCE IF EXISTS item_id_seq;
  DROP SEQUENCE IF EXISTS user_id_seq;
@@ -0,0 +1 @@
+ALTER TABLE channel_activity ADD activity_window BYTEA;
\ No newline at end of file
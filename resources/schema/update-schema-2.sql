@@ -0,0 +1,6 @@
+CREATE TABLE channel_server (
+   name VARCHAR(300),
+   firehose BOOLEAN,
+   checked TIMESTAMP,
+   PRIMARY KEY (name)
+);
\ No newline at end of file
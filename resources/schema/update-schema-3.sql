@@ -0,0 +1,5 @@
+ALTER TABLE channel_server ADD firehose_last_item VARCHAR(300);
+ALTER TABLE channel_server ADD firehose_pass_newest VARCHAR(300);
+ALTER TABLE channel_server ADD firehose_pass_after VARCHAR(300);
+ALTER TABLE channel_server ADD firehose_last_published TIMESTAMP;
+ALTER TABLE channel_server ADD firehose_pass_newest_published TIMESTAMP;
\ No newline at end of file
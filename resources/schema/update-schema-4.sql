@@ -0,0 +1,2 @@
+ALTER TABLE channel_server ADD lease_owner VARCHAR(300);
+ALTER TABLE channel_server ADD lease_expires TIMESTAMP;
\ No newline at end of file
@@ -0,0 +1,3 @@
+ALTER TABLE subscribed_server ADD last_success TIMESTAMP;
+ALTER TABLE subscribed_server ADD consecutive_failures INTEGER DEFAULT 0;
+ALTER TABLE subscribed_server ADD next_eligible TIMESTAMP;
\ No newline at end of file
@@ -0,0 +1,2 @@
+ALTER TABLE subscribed_server ADD channel_server VARCHAR(300);
+ALTER TABLE subscribed_server ADD discovery_expires TIMESTAMP;
\ No newline at end of file
@@ -0,0 +1 @@
+ALTER TABLE channel_server ADD rsm_max INTEGER;
\ No newline at end of file
@@ -0,0 +1,5 @@
+CREATE TABLE activity_checkpoint (
+   log_name VARCHAR(300),
+   counted_offset BIGINT,
+   PRIMARY KEY (log_name)
+);
\ No newline at end of file
@@ -42,7 +42,28 @@ public class ConfigurationUtils {
 		}
 		return configuration;
 	}
-
+	
+	/**
+	 * @param configuration
+	 * @param property
+	 * @param defaultValue
+	 * @return the given property as an int, or the default value if it is not set
+	 */
+	public static int getInt(Properties configuration, String property, int defaultValue) {
+		String valueStr = configuration.getProperty(property);
+		return valueStr == null ? defaultValue : Integer.parseInt(valueStr);
+	}
+	
+	/**
+	 * @param configuration
+	 * @param property
+	 * @param defaultValue
+	 * @return the given property as a long, or the default value if it is not set
+	 */
+	public static long getLong(Properties configuration, String property, long defaultValue) {
+		String valueStr = configuration.getProperty(property);
+		return valueStr == null ? defaultValue : Long.parseLong(valueStr);
+	}
 	
 	public static String getChannelDirHome() {
 		String channelDirHome = System.getenv("CHANNEL_DIRECTORY_HOME");
@@ -22,6 +22,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Properties;
 
+import com.buddycloud.channeldirectory.commons.ConfigurationUtils;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 
 /**
@@ -33,6 +34,8 @@ import com.mchange.v2.c3p0.ComboPooledDataSource;
  */
 public class ChannelDirectoryDataSource {
 
+	private static final int DEF_MAX_POOL_SIZE = 10;
+	
 	private ComboPooledDataSource dataSource;
 	private Properties configuration;
 
@@ -74,9 +77,11 @@ public class ChannelDirectoryDataSource {
 	
 	private void createDataSource() throws PropertyVetoException {
 		this.dataSource = new ComboPooledDataSource();
-		dataSource.setInitialPoolSize(5);
-		dataSource.setMinPoolSize(5);
-		dataSource.setMaxPoolSize(10);
+		int maxPoolSize = ConfigurationUtils.getInt(configuration, 
+				"mahout.jdbc.maxpoolsize", DEF_MAX_POOL_SIZE);
+		dataSource.setInitialPoolSize(Math.min(5, maxPoolSize));
+		dataSource.setMinPoolSize(Math.min(5, maxPoolSize));
+		dataSource.setMaxPoolSize(maxPoolSize);
 		dataSource.setDriverClass(configuration.getProperty("mahout.jdbc.driver", 
 				"org.postgresql.Driver"));
 		dataSource.setJdbcUrl(configuration.getProperty("mahout.jdbc.url"));
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.commons.solr;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import com.buddycloud.channeldirectory.commons.ConfigurationUtils;
+
+/**
+ * Collects {@link SolrInputDocument}s and delete queries per core and
+ * sends them to Solr in batches, either when a core buffer reaches 
+ * solr.batchsize operations or every solr.flushinterval milliseconds.
+ *
+ * Batches are sent with commitWithin (solr.commitwithin), so Solr
+ * decides when to commit instead of the crawler hard committing every
+ * single document. Setting solr.commitwithin to 0 makes the indexer
+ * commit explicitly after every flush instead.
+ *
+ * Adds and deletes of a core reach Solr in the order they were
+ * buffered. Each run of consecutive adds or deletes is sent as a
+ * request of its own, since Solr applies the deletes of a request
+ * after its adds.
+ *
+ * If Solr falls behind, documents are kept and retried on the next
+ * flush, and callers of the add methods block once solr.maxpending
+ * documents are waiting to be indexed.
+ *
+ */
+public class SolrBatchIndexer {
+
+	private static Logger LOGGER = Logger.getLogger(SolrBatchIndexer.class);
+
+	private static final int DEF_BATCH_SIZE = 100;
+	private static final long DEF_FLUSH_INTERVAL = 1000; // In milliseconds
+	private static final int DEF_COMMIT_WITHIN = 10000; // In milliseconds
+	private static final int DEF_MAX_PENDING = 10000;
+
+	private final CoreBuffer channelCore;
+	private final CoreBuffer postCore;
+
+	private final int batchSize;
+	private final int commitWithin;
+	private final Semaphore pending;
+	private final ScheduledExecutorService flushExecutor;
+
+	public SolrBatchIndexer(Properties configuration) throws MalformedURLException {
+		this(configuration, new SolrServerFactory());
+	}
+
+	public SolrBatchIndexer(Properties configuration,
+			SolrServerFactory solrFactory) throws MalformedURLException {
+		this.batchSize = ConfigurationUtils.getInt(configuration, 
+				"solr.batchsize", DEF_BATCH_SIZE);
+		this.commitWithin = ConfigurationUtils.getInt(configuration, 
+				"solr.commitwithin", DEF_COMMIT_WITHIN);
+		this.pending = new Semaphore(ConfigurationUtils.getInt(configuration, 
+				"solr.maxpending", DEF_MAX_PENDING));
+		
+		this.channelCore = new CoreBuffer(solrFactory.createChannelCore(configuration), pending);
+		this.postCore = new CoreBuffer(solrFactory.createPostCore(configuration), pending);
+
+		long flushInterval = ConfigurationUtils.getLong(configuration, 
+				"solr.flushinterval", DEF_FLUSH_INTERVAL);
+
+		this.flushExecutor = Executors.newSingleThreadScheduledExecutor();
+		flushExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Enqueues a document to the channel core.
+	 *
+	 * @param document
+	 * @throws InterruptedException
+	 */
+	public void addChannel(SolrInputDocument document) throws InterruptedException {
+		add(channelCore, document);
+	}
+
+	/**
+	 * Enqueues a document to the post core.
+	 *
+	 * @param document
+	 * @throws InterruptedException
+	 */
+	public void addPost(SolrInputDocument document) throws InterruptedException {
+		add(postCore, document);
+	}
+
+	/**
+	 * Enqueues a delete by query to the post core. It is applied
+	 * after the documents enqueued before it, and before the ones
+	 * enqueued after it.
+	 * 
+	 * @param query
+	 * @throws InterruptedException
+	 */
+	public void deletePosts(String query) throws InterruptedException {
+		acquire();
+		int buffered = postCore.delete(query);
+		if (buffered >= batchSize) {
+			flush(postCore);
+		}
+	}
+
+	private void add(CoreBuffer core, SolrInputDocument document) throws InterruptedException {
+		acquire();
+		int buffered = core.add(document);
+		if (buffered >= batchSize) {
+			flush(core);
+		}
+	}
+	
+	private void acquire() throws InterruptedException {
+		if (!pending.tryAcquire()) {
+			LOGGER.warn("Solr is falling behind, waiting for pending documents to be indexed.");
+			pending.acquire();
+		}
+	}
+
+	/**
+	 * Sends every buffered document to Solr.
+	 */
+	public void flush() {
+		flush(channelCore);
+		flush(postCore);
+	}
+
+	private void flush(CoreBuffer core) {
+		try {
+			flushOrThrow(core);
+		} catch (Exception e) {
+			LOGGER.warn("Could not flush documents to Solr, will retry.", e);
+		}
+	}
+
+	/**
+	 * Sends every buffered document to Solr, failing if any of them
+	 * could not be sent. Documents that were not sent are kept
+	 * for the next flush.
+	 *
+	 * @throws Exception
+	 */
+	public void flushOrThrow() throws Exception {
+		flushOrThrow(channelCore);
+		flushOrThrow(postCore);
+	}
+
+	private void flushOrThrow(CoreBuffer core) throws Exception {
+		core.flush(commitWithin);
+	}
+
+	/**
+	 * Stops the periodic flush and sends whatever
+	 * is still buffered to Solr.
+	 */
+	public void close() {
+		flushExecutor.shutdown();
+		try {
+			flushExecutor.awaitTermination(DEF_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			LOGGER.warn("Interrupted while waiting for the last scheduled flush.");
+		}
+		flush();
+	}
+
+	private static class CoreBuffer {
+
+		private final SolrServer solrServer;
+		private final Semaphore pending;
+		private final Object flushLock = new Object();
+		private List<Operation> operations = new ArrayList<Operation>();
+
+		public CoreBuffer(SolrServer solrServer, Semaphore pending) {
+			this.solrServer = solrServer;
+			this.pending = pending;
+		}
+
+		public synchronized int add(SolrInputDocument document) {
+			operations.add(new Operation(document, null));
+			return operations.size();
+		}
+
+		public synchronized int delete(String query) {
+			operations.add(new Operation(null, query));
+			return operations.size();
+		}
+
+		private synchronized List<Operation> drain() {
+			List<Operation> drained = operations;
+			operations = new ArrayList<Operation>();
+			return drained;
+		}
+
+		private synchronized void putBack(List<Operation> notFlushed) {
+			List<Operation> kept = new ArrayList<Operation>(notFlushed);
+			kept.addAll(operations);
+			operations = kept;
+		}
+
+		/**
+		 * Only one flush runs at a time per core, so
+		 * batches reach Solr in the order they were added.
+		 * Operations sent before a failure are not sent again.
+		 */
+		public void flush(int commitWithin) throws Exception {
+			synchronized (flushLock) {
+				List<Operation> batch = drain();
+				int start = 0;
+				while (start < batch.size()) {
+					int end = start + 1;
+					boolean deletes = batch.get(start).isDelete();
+					while (end < batch.size() && batch.get(end).isDelete() == deletes) {
+						end++;
+					}
+					try {
+						send(batch.subList(start, end), deletes, commitWithin);
+					} catch (Exception e) {
+						putBack(batch.subList(start, batch.size()));
+						throw e;
+					}
+					pending.release(end - start);
+					start = end;
+				}
+			}
+		}
+
+		private void send(List<Operation> run, boolean deletes, 
+				int commitWithin) throws Exception {
+			UpdateRequest request = new UpdateRequest();
+			for (Operation operation : run) {
+				if (deletes) {
+					request.deleteByQuery(operation.deleteQuery);
+				} else {
+					request.add(operation.document);
+				}
+			}
+			if (commitWithin > 0) {
+				request.setCommitWithin(commitWithin);
+			}
+			request.process(solrServer);
+			if (commitWithin <= 0) {
+				solrServer.commit();
+			}
+		}
+	}
+	
+	/**
+	 * A buffered document to add, or query to delete by.
+	 */
+	private static class Operation {
+		
+		private final SolrInputDocument document;
+		private final String deleteQuery;
+		
+		public Operation(SolrInputDocument document, String deleteQuery) {
+			this.document = document;
+			this.deleteQuery = deleteQuery;
+		}
+		
+		public boolean isDelete() {
+			return deleteQuery != null;
+		}
+	}
+}
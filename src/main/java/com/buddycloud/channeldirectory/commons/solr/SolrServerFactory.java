@@ -17,21 +17,78 @@ package com.buddycloud.channeldirectory.commons.solr;
 
 import java.net.MalformedURLException;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
 import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 
+import com.buddycloud.channeldirectory.commons.ConfigurationUtils;
+
+/**
+ * Hands out one {@link SolrServer} per core URL for the whole process.
+ * 
+ * Clients are thread safe and share a pooled connection manager per
+ * core, so requests reuse keep-alive connections instead of opening
+ * a new HTTP client every time a core is needed.
+ *
+ */
 public class SolrServerFactory {
 
 	private static final String SOLR_CHANNELCORE_PROP = "solr.channelcore";
 	private static final String SOLR_POSTCORE_PROP = "solr.postcore";
 
+	private static final int DEF_MAX_CONNECTIONS = 32;
+	private static final int DEF_CONNECTION_TIMEOUT = 5000; // In milliseconds
+	private static final int DEF_SO_TIMEOUT = 30000; // In milliseconds
+
+	private static final ConcurrentMap<String, SolrServer> SOLR_SERVERS = 
+			new ConcurrentHashMap<String, SolrServer>();
+
 	private static SolrServer createSolrCore(Properties properties,
 			String coreProperty) throws MalformedURLException {
-		String solrChannelUrl = (String) properties.get(coreProperty);
-		return new CommonsHttpSolrServer(solrChannelUrl);
+		String solrCoreUrl = (String) properties.get(coreProperty);
+		SolrServer solrServer = SOLR_SERVERS.get(solrCoreUrl);
+		if (solrServer != null) {
+			return solrServer;
+		}
+		synchronized (SOLR_SERVERS) {
+			solrServer = SOLR_SERVERS.get(solrCoreUrl);
+			if (solrServer == null) {
+				solrServer = newSolrServer(solrCoreUrl, properties);
+				SOLR_SERVERS.put(solrCoreUrl, solrServer);
+			}
+			return solrServer;
+		}
 	}
 
+	private static SolrServer newSolrServer(String solrCoreUrl,
+			Properties properties) throws MalformedURLException {
+		int maxConnections = ConfigurationUtils.getInt(properties, 
+				"solr.maxconnections", DEF_MAX_CONNECTIONS);
+		
+		MultiThreadedHttpConnectionManager connectionManager = 
+				new MultiThreadedHttpConnectionManager();
+		HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setDefaultMaxConnectionsPerHost(maxConnections);
+		params.setMaxTotalConnections(maxConnections);
+		params.setConnectionTimeout(
+				ConfigurationUtils.getInt(properties, "solr.connectiontimeout", DEF_CONNECTION_TIMEOUT));
+		params.setSoTimeout(
+				ConfigurationUtils.getInt(properties, "solr.sotimeout", DEF_SO_TIMEOUT));
+		
+		CommonsHttpSolrServer solrServer = new CommonsHttpSolrServer(
+				solrCoreUrl, new HttpClient(connectionManager), 
+				new BinaryResponseParser());
+		solrServer.setRequestWriter(new BinaryRequestWriter());
+		return solrServer;
+	}
+	
 	public SolrServer createChannelCore(Properties properties)
 			throws MalformedURLException {
 		return createSolrCore(properties, SOLR_CHANNELCORE_PROP);
@@ -15,7 +15,9 @@
  */
 package com.buddycloud.channeldirectory.crawler;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.sql.SQLException;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
@@ -28,8 +30,15 @@ import org.jivesoftware.smack.packet.Packet;
 
 import com.buddycloud.channeldirectory.commons.ConfigurationUtils;
 import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.buddycloud.channeldirectory.commons.solr.SolrBatchIndexer;
+import com.buddycloud.channeldirectory.crawler.node.ActivityAggregator;
+import com.buddycloud.channeldirectory.crawler.node.DiscoveryCache;
+import com.buddycloud.channeldirectory.crawler.node.DiscoveryUtils;
+import com.buddycloud.channeldirectory.crawler.node.DiscoveryUtils.Discovery;
+import com.buddycloud.channeldirectory.crawler.node.IngestLog;
+import com.buddycloud.channeldirectory.crawler.node.KnownChannels;
 import com.buddycloud.channeldirectory.crawler.node.NodeCrawler;
-import com.buddycloud.channeldirectory.search.utils.XMPPUtils;
+import com.buddycloud.channeldirectory.crawler.node.SeenItemIndex;
 
 /**
  * Creates and starts the Crawler component.
@@ -51,17 +60,62 @@ public class Main {
 	public static void main(String[] args) throws Exception {
 		
 		Properties configuration = ConfigurationUtils.loadConfiguration();
-		XMPPConnection connection = XMPPUtils.createCrawlerConnection(configuration);
-		addTraceListeners(connection);
+		final XMPPConnectionPool connectionPool = XMPPConnectionPool.create(configuration);
+		for (XMPPConnection connection : connectionPool.getConnections()) {
+			addTraceListeners(connection);
+		}
 		
-		PubSubManagers managers = new PubSubManagers(connection);
+		PubSubManagers managers = new PubSubManagers(configuration, connectionPool);
 		ChannelDirectoryDataSource dataSource = new ChannelDirectoryDataSource(configuration);
 		
-		PubSubSubscriptionListener listener = new PubSubSubscriptionListener(
-				configuration, managers, dataSource);
+		KnownChannels knownChannels = new KnownChannels(configuration);
+		try {
+			knownChannels.load();
+		} catch (Exception e) {
+			LOGGER.warn("Could not load known channels, " +
+					"channels will be checked against Solr as posts arrive.", e);
+		}
+		
+		final SeenItemIndex seenItems = new SeenItemIndex(configuration);
+		try {
+			seenItems.load();
+		} catch (IOException e) {
+			LOGGER.warn("Could not load seen items, " +
+					"posts already indexed will be indexed again.", e);
+		}
+		
+		final IngestLog ingestLog = new IngestLog(configuration);
+		ingestLog.open();
+		
+		final DiscoveryCache discoveryCache = new DiscoveryCache(configuration, dataSource, 
+				new DiscoveryCache.Discoverer() {
+			@Override
+			public Discovery discover(String domain) {
+				return DiscoveryUtils.discover(connectionPool.getConnection(domain), domain);
+			}
+		});
+		try {
+			discoveryCache.load();
+		} catch (SQLException e) {
+			LOGGER.error("Could not load discovered channel servers.", e);
+		}
+		
+		final SolrBatchIndexer indexer = new SolrBatchIndexer(configuration);
+		ActivityAggregator activityAggregator = new ActivityAggregator(
+				dataSource, knownChannels);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				discoveryCache.shutdown();
+				ingestLog.close();
+				indexer.close();
+				seenItems.close();
+			}
+		});
 		
 		new PubSubServerCrawler(configuration, managers, 
-				dataSource, connection, listener).start();
+				dataSource, indexer, knownChannels, activityAggregator, 
+				seenItems, ingestLog, discoveryCache).start();
 	}
 
 	private static void addTraceListeners(XMPPConnection connection) {
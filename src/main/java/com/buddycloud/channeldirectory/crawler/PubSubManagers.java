@@ -17,40 +17,88 @@ package com.buddycloud.channeldirectory.crawler;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smackx.pubsub.BuddycloudPubsubManager;
+import org.jivesoftware.smackx.pubsub.BuddycloudRateController;
 import org.jivesoftware.smackx.pubsub.PubSubManager;
 
 /**
  * Simply maintain a collection of {@link PubSubManager}, 
  * so different crawling strategies can use the same
- * node cache.
+ * node cache. It is shared by all crawler workers.
+ * 
+ * Each manager is bound to the connection its server
+ * is sharded to in the {@link XMPPConnectionPool}, and paces
+ * its requests with its own {@link BuddycloudRateController}, 
+ * starting at crawler.rate.initial requests per second and kept
+ * between crawler.rate.min and crawler.rate.max.
  * 
  */
 public class PubSubManagers {
 
 	private final Map<String, BuddycloudPubsubManager> pubSubManagers = new HashMap<String, BuddycloudPubsubManager>();
-	private final XMPPConnection connection;
 	
-	public PubSubManagers(XMPPConnection connection) {
-		this.connection = connection;
+	private final XMPPConnectionPool connectionPool;
+	private final double initialRate;
+	private final double minRate;
+	private final double maxRate;
+	private final long latencyTarget;
+	
+	public PubSubManagers(Properties configuration, XMPPConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+		this.initialRate = getDouble(configuration, "crawler.rate.initial", 
+				BuddycloudRateController.DEF_INITIAL_RATE);
+		this.minRate = getDouble(configuration, "crawler.rate.min", 
+				BuddycloudRateController.DEF_MIN_RATE);
+		this.maxRate = getDouble(configuration, "crawler.rate.max", 
+				BuddycloudRateController.DEF_MAX_RATE);
+		
+		String latencyTargetStr = configuration.getProperty("crawler.rate.latencytarget");
+		this.latencyTarget = latencyTargetStr == null ? BuddycloudRateController.DEF_LATENCY_TARGET 
+				: Long.parseLong(latencyTargetStr);
+	}
+	
+	private static double getDouble(Properties configuration, String property, 
+			double defaultValue) {
+		String valueStr = configuration.getProperty(property);
+		return valueStr == null ? defaultValue : Double.parseDouble(valueStr);
 	}
 
-	public BuddycloudPubsubManager getPubSubManager(String pubSubServer) {
+	public synchronized BuddycloudPubsubManager getPubSubManager(String pubSubServer) {
 		BuddycloudPubsubManager pubSubManager = pubSubManagers.get(pubSubServer);
 		if (pubSubManager == null) {
-			pubSubManager = new BuddycloudPubsubManager(connection, pubSubServer);
+			pubSubManager = new BuddycloudPubsubManager(
+					connectionPool.getConnection(pubSubServer), pubSubServer, 
+					new BuddycloudRateController(initialRate, minRate, maxRate, latencyTarget));
 			pubSubManagers.put(pubSubServer, pubSubManager);
 		}
 		return pubSubManager;
 	}
 
 	/**
-	 * @return
+	 * @param pubSubServer
+	 * @return the connection used to crawl the given server
 	 */
-	public XMPPConnection getConnection() {
-		return connection;
+	public XMPPConnection getConnection(String pubSubServer) {
+		return connectionPool.getConnection(pubSubServer);
+	}
+	
+	public XMPPConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+	
+	/**
+	 * @return the current request rate of every server, 
+	 * in requests per second
+	 */
+	public synchronized Map<String, Double> getRates() {
+		Map<String, Double> rates = new HashMap<String, Double>();
+		for (Map.Entry<String, BuddycloudPubsubManager> entry : pubSubManagers.entrySet()) {
+			rates.put(entry.getKey(), entry.getValue().getRate());
+		}
+		return rates;
 	}
 	
 }
@@ -15,83 +15,245 @@
  */
 package com.buddycloud.channeldirectory.crawler;
 
-import java.sql.ResultSet;
+import java.io.IOException;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
-import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smackx.disco.packet.DiscoverItems;
 import org.jivesoftware.smackx.pubsub.BuddycloudNode;
 import org.jivesoftware.smackx.pubsub.BuddycloudPubsubManager;
 import org.jivesoftware.smackx.rsm.packet.RSMSet;
 
 import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
-import com.buddycloud.channeldirectory.crawler.node.CrawlerHelper;
-import com.buddycloud.channeldirectory.crawler.node.DiscoveryUtils;
+import com.buddycloud.channeldirectory.commons.solr.SolrBatchIndexer;
+import com.buddycloud.channeldirectory.crawler.node.ActivityAggregator;
+import com.buddycloud.channeldirectory.crawler.node.CrawlState;
+import com.buddycloud.channeldirectory.crawler.node.DiscoveryCache;
+import com.buddycloud.channeldirectory.crawler.node.DomainHealth;
+import com.buddycloud.channeldirectory.crawler.node.FirehoseCheckpoints;
 import com.buddycloud.channeldirectory.crawler.node.FirehoseCrawler;
 import com.buddycloud.channeldirectory.crawler.node.FollowerCrawler;
+import com.buddycloud.channeldirectory.crawler.node.IndexingSink;
+import com.buddycloud.channeldirectory.crawler.node.IngestLog;
+import com.buddycloud.channeldirectory.crawler.node.IngestReplayer;
+import com.buddycloud.channeldirectory.crawler.node.KnownChannels;
 import com.buddycloud.channeldirectory.crawler.node.MetaDataCrawler;
 import com.buddycloud.channeldirectory.crawler.node.NodeCrawler;
 import com.buddycloud.channeldirectory.crawler.node.PostCrawler;
+import com.buddycloud.channeldirectory.crawler.node.PostRetractor;
+import com.buddycloud.channeldirectory.crawler.node.PushIndexer;
+import com.buddycloud.channeldirectory.crawler.node.RSMPageSizes;
+import com.buddycloud.channeldirectory.crawler.node.RevisitScheduler;
+import com.buddycloud.channeldirectory.crawler.node.SeenItemIndex;
+import com.buddycloud.channeldirectory.crawler.node.ServerCapabilities;
+import com.buddycloud.channeldirectory.crawler.node.ServerLeases;
 
 /**
  * Responsible for regularly querying servers for
  * its nodes, subscribing to them and invoking the
- * NodeCrawlers.
+ * NodeCrawlers. Servers are crawled in parallel
+ * by a {@link ServerCrawlScheduler}.
+ * 
+ * Only nodes due according to the {@link RevisitScheduler} are
+ * crawled, most overdue first, until the server's crawl runs for
+ * crawler.revisit.budget milliseconds. Nodes never visited before
+ * are crawled as soon as they are discovered.
+ * 
+ * Servers whose firehose crawl succeeds already have their posts
+ * indexed by it, so their nodes only get the metadata and follower
+ * crawlers, on the slower schedule of the {@link RevisitScheduler}.
+ * 
+ * Several crawler processes can share the same database, each 
+ * channel server is only crawled by the one holding its lease 
+ * in {@link ServerLeases}.
+ * 
+ * Domains where no channel server could be discovered back off, 
+ * and are eventually quarantined, by {@link DomainHealth}. Channel 
+ * servers discovered are cached, and discovered ahead of the crawl 
+ * once expired, by the {@link DiscoveryCache}.
+ * 
+ * Crawled posts and channels go through the {@link IngestLog}, 
+ * from which an {@link IngestReplayer} indexes them, so nothing 
+ * crawled is lost while Solr or the database are down.
  * 
  */
 public class PubSubServerCrawler {
 
 	private static Logger LOGGER = Logger.getLogger(PubSubServerCrawler.class);
 	
-	private static final int RECONNECTION_INTERVAL = 30000;
-	private static final int RECONNECTION_RETRIES = 5;
 	private static long DEF_CRAWL_INTERVAL = 60000 * 30; // 30 minutes
+	private static long DEF_RECONCILE_INTERVAL = 60000 * 60 * 6; // 6 hours
+	private static final int DEF_CONCURRENT_NODES = 4;
+	private static final long DEF_CRAWL_BUDGET = 60000 * 15; // 15 minutes
+	private static final String FIREHOSE_NODE = "/firehose";
 	
 	private final Properties configuration;
 	private final PubSubManagers managers;
 	private final ChannelDirectoryDataSource dataSource;
+	private final SolrBatchIndexer indexer;
+	private final KnownChannels knownChannels;
+	private final ActivityAggregator activityAggregator;
+	private final SeenItemIndex seenItems;
+	private final IngestLog ingestLog;
+	private final DiscoveryCache discoveryCache;
 	
 	private List<NodeCrawler> nodeCrawlers;
-	private final XMPPConnection connection;
+	private List<NodeCrawler> metadataCrawlers;
+	private CrawlState crawlState;
+	private ServerCapabilities capabilities;
+	private ServerLeases leases;
+	private DomainHealth domainHealth;
+	private final XMPPConnectionPool connectionPool;
+	private ServerCrawlScheduler scheduler;
+	private ExecutorService nodeExecutor;
+	private int concurrentNodes;
+	private RevisitScheduler revisitScheduler;
+	private long crawlBudget;
+	private PostRetractor postRetractor;
+	private PushIndexer pushIndexer;
+	private PubSubSubscriptionListener listener;
 	
 	public PubSubServerCrawler(Properties configuration, PubSubManagers managers, 
-			ChannelDirectoryDataSource dataSource, XMPPConnection connection, 
-			PubSubSubscriptionListener listener) {
+			ChannelDirectoryDataSource dataSource, SolrBatchIndexer indexer, 
+			KnownChannels knownChannels, ActivityAggregator activityAggregator, 
+			SeenItemIndex seenItems, IngestLog ingestLog, DiscoveryCache discoveryCache) {
 		this.configuration = configuration;
 		this.managers = managers;
 		this.dataSource = dataSource;
-		this.connection = connection;
+		this.indexer = indexer;
+		this.knownChannels = knownChannels;
+		this.activityAggregator = activityAggregator;
+		this.seenItems = seenItems;
+		this.ingestLog = ingestLog;
+		this.discoveryCache = discoveryCache;
+		this.connectionPool = managers.getConnectionPool();
 	}
 	
 	public void start() {
 		
-		this.nodeCrawlers = new LinkedList<NodeCrawler>();
-		nodeCrawlers.add(new FirehoseCrawler(configuration, dataSource));
-		nodeCrawlers.add(new MetaDataCrawler(configuration, dataSource));
-		nodeCrawlers.add(new PostCrawler(configuration, dataSource));
-		nodeCrawlers.add(new FollowerCrawler(dataSource));
+		this.crawlState = new CrawlState(dataSource);
+		try {
+			crawlState.load();
+		} catch (SQLException e1) {
+			LOGGER.error("Could not load crawl state.", e1);
+		}
 		
+		this.leases = new ServerLeases(configuration, dataSource);
+		this.domainHealth = new DomainHealth(configuration, dataSource);
 		try {
-			insertServers();
+			domainHealth.load();
 		} catch (SQLException e1) {
-			LOGGER.error(e1);
+			LOGGER.error("Could not load domain health, every domain is due.", e1);
 		}
+		this.capabilities = new ServerCapabilities(dataSource);
+		try {
+			capabilities.load();
+		} catch (SQLException e1) {
+			LOGGER.error("Could not load server capabilities.", e1);
+		}
+		RSMPageSizes pageSizes = new RSMPageSizes(configuration, capabilities);
+		
+		this.revisitScheduler = new RevisitScheduler(configuration, dataSource, capabilities);
+		try {
+			revisitScheduler.load();
+		} catch (SQLException e1) {
+			LOGGER.error("Could not load node visits, every node is due.", e1);
+		}
+		String crawlBudgetStr = configuration.getProperty("crawler.revisit.budget");
+		this.crawlBudget = crawlBudgetStr == null ? DEF_CRAWL_BUDGET 
+				: Long.parseLong(crawlBudgetStr);
+		
+		PostCrawler postCrawler = new PostCrawler(indexer, activityAggregator, 
+				crawlState, seenItems, ingestLog, pageSizes);
+		this.postRetractor = new PostRetractor(configuration, indexer, 
+				activityAggregator, seenItems, ingestLog);
+		
+		MetaDataCrawler metaDataCrawler = new MetaDataCrawler(
+				dataSource, indexer, knownChannels, crawlState, ingestLog);
+		
+		IndexingSink indexingSink = new IndexingSink(postCrawler, metaDataCrawler, 
+				postRetractor, indexer, activityAggregator, ingestLog);
+		try {
+			indexingSink.load();
+		} catch (SQLException e) {
+			LOGGER.error("Could not read how far the channel activity was counted, " +
+					"replayed posts may be counted twice.", e);
+		}
+		IngestReplayer replayer = new IngestReplayer(configuration, ingestLog, indexingSink);
+		try {
+			replayer.load();
+		} catch (IOException e) {
+			LOGGER.error("Could not read the replayed offset, " +
+					"replaying the whole ingest log.", e);
+		}
+		replayer.start();
+		FollowerCrawler followerCrawler = new FollowerCrawler(
+				configuration, dataSource, crawlState, pageSizes, connectionPool);
+		
+		this.nodeCrawlers = new LinkedList<NodeCrawler>();
+		nodeCrawlers.add(new FirehoseCrawler(postCrawler, crawlState, 
+				new FirehoseCheckpoints(dataSource), pageSizes, leases, crawlBudget));
+		nodeCrawlers.add(metaDataCrawler);
+		nodeCrawlers.add(postCrawler);
+		nodeCrawlers.add(followerCrawler);
+		
+		this.metadataCrawlers = new LinkedList<NodeCrawler>();
+		metadataCrawlers.add(metaDataCrawler);
+		metadataCrawlers.add(followerCrawler);
+		
+		// With push enabled, crawling is only a reconciliation pass
+		boolean pushEnabled = !"false".equals(
+				configuration.getProperty("crawler.push.enabled"));
+		if (pushEnabled) {
+			this.pushIndexer = new PushIndexer(configuration, postCrawler, postRetractor);
+			this.listener = new PubSubSubscriptionListener(pushIndexer);
+		}
+		
+		this.scheduler = new ServerCrawlScheduler(configuration);
+		
+		String concurrentNodesStr = configuration.getProperty("crawler.concurrentnodes");
+		this.concurrentNodes = concurrentNodesStr == null ? DEF_CONCURRENT_NODES 
+				: Integer.parseInt(concurrentNodesStr);
+		int nodeWorkers = scheduler.getConcurrentServers() * concurrentNodes;
+		this.nodeExecutor = Executors.newFixedThreadPool(nodeWorkers);
+		
+		// Server and node workers, plus the replayer, push and fetch threads
+		int connectionsNeeded = scheduler.getConcurrentServers() + nodeWorkers + 3;
+		if (dataSource.getDataSource().getMaxPoolSize() < connectionsNeeded) {
+			LOGGER.warn("mahout.jdbc.maxpoolsize is below the " + connectionsNeeded + 
+					" connections the crawler may use at once, crawl workers will " +
+					"wait for database connections.");
+		}
+		
+		insertServers();
 		
-		String crawlIntervalStr = configuration.getProperty("crawler.crawlinterval");
+		String crawlIntervalStr = pushEnabled ? 
+				configuration.getProperty("crawler.push.reconcileinterval") 
+				: configuration.getProperty("crawler.crawlinterval");
 		
-		long crawlInterval = crawlIntervalStr == null ? DEF_CRAWL_INTERVAL
+		long crawlInterval = crawlIntervalStr == null ? 
+				(pushEnabled ? DEF_RECONCILE_INTERVAL : DEF_CRAWL_INTERVAL)
 				: Long.parseLong(crawlIntervalStr);
 		
 		while (true) {
 			try {
-				fetch(nodeCrawlers);
-				LOGGER.debug("Fetched all nodes, going to sleep.");
+				int scheduled = fetch();
+				LOGGER.debug("Scheduled " + scheduled + " domains, going to sleep.");
 			} catch (Exception e) {
 				LOGGER.error("Error while fetching nodes, going to sleep.", e);
 			}
@@ -104,37 +266,97 @@ public class PubSubServerCrawler {
 		}
 	}
 
-	private void fetch(List<NodeCrawler> nodeCrawlers) throws XMPPException {
-		List<String> domainsToCrawl = new LinkedList<String>();
+	private int fetch() {
 		try {
-			domainsToCrawl = retrieveServers();
-		} catch (SQLException e1) {
-			LOGGER.error(e1);
+			revisitScheduler.loadActivity();
+		} catch (SQLException e) {
+			LOGGER.warn("Could not refresh channel activity.", e);
 		}
 		
-		for (String domain : domainsToCrawl) {
-			LOGGER.debug("Discovering channel server on " + domain);
-			String channelServer = DiscoveryUtils.discoverChannelServer(connection, domain);
-			if (channelServer != null) {
-				crawlChannelServer(channelServer);
+		LOGGER.debug("Request rates per server: " + managers.getRates());
+		
+		List<String> domainsToCrawl = new ArrayList<String>();
+		for (String domain : crawlState.getServers()) {
+			if (domainHealth.isEligible(domain)) {
+				domainsToCrawl.add(domain);
 			}
 		}
+		LOGGER.debug(domainsToCrawl.size() + " domains are due for discovery.");
+		discoveryCache.prefetch(domainsToCrawl);
+		
+		return scheduler.schedule(domainsToCrawl, new ServerCrawlScheduler.ServerCrawl() {
+			@Override
+			public String discover(String domain) {
+				String channelServer;
+				try {
+					channelServer = discoveryCache.discover(domain);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+				if (channelServer != null) {
+					domainHealth.succeeded(domain);
+				} else if (connectionPool.isConnected(domain)) {
+					// Not the domain's fault if our own connection dropped
+					domainHealth.failed(domain);
+				}
+				return channelServer;
+			}
+			
+			@Override
+			public void crawl(String channelServer) {
+				crawlChannelServer(channelServer);
+			}
+		});
 	}
 
+	/**
+	 * Crawls the given server if no other crawler 
+	 * instance holds its lease.
+	 */
 	private void crawlChannelServer(String channelServer) {
+		if (!leases.claim(channelServer)) {
+			LOGGER.debug("Channel server " + channelServer 
+					+ " is leased by another crawler, skipping.");
+			return;
+		}
+		try {
+			crawlState.reload(channelServer);
+			crawlLeasedServer(channelServer);
+		} catch (SQLException e) {
+			LOGGER.warn("Could not reload crawl state of " + channelServer, e);
+		} finally {
+			leases.release(channelServer);
+		}
+	}
+	
+	private void crawlLeasedServer(String channelServer) {
+		long deadline = System.currentTimeMillis() + crawlBudget;
 		LOGGER.debug("Discovering nodes on " + channelServer);
-		waitForReconnection();
+		if (!waitForReconnection(channelServer)) {
+			LOGGER.warn("Connection of [" + channelServer + "] is down, skipping it.");
+			return;
+		}
 		
 		BuddycloudPubsubManager manager = managers.getPubSubManager(channelServer);
 		
 		// Crawling firehose
 		LOGGER.debug("Crawling firehose node on " + channelServer);
+		boolean firehoseCrawled = false;
 		try {
-			crawl(nodeCrawlers, channelServer, manager.getFirehoseNode());
+			firehoseCrawled = crawl(nodeCrawlers, channelServer, manager.getFirehoseNode());
 		} catch (Exception e) {
 			LOGGER.warn("Could not crawl firehose node on [" + channelServer + "]. " +
 					"Falling back to a per-node discovery.", e);
 		}
+		if (!leases.renew(channelServer)) {
+			LOGGER.warn("Lost the lease of " + channelServer + ", stopping its crawl.");
+			return;
+		}
+		// A crawl cut short by a lost connection says nothing about the firehose
+		if (firehoseCrawled || connectionPool.isConnected(channelServer)) {
+			capabilities.setFirehoseSupported(channelServer, firehoseCrawled);
+		}
 		
 		DiscoverItems discoverInfo = null;
 		try {
@@ -149,133 +371,315 @@ public class PubSubServerCrawler {
 		
 		LOGGER.debug("Crawling items on " + channelServer);
 		try {
-			fetchAndCrawl(discoverInfo, channelServer, manager);
+			fetchAndCrawl(discoverInfo, channelServer, manager, deadline);
 		} catch (Exception e) {
 			LOGGER.warn("Could not crawls nodes from server [" + channelServer + "]", e);
 		}
 	}
 
-	private void waitForReconnection() {
-		int retries = RECONNECTION_RETRIES;
-		while (--retries > 0) {
-			if (connection.isConnected()) {
-				break;
-			}
-			try {
-				Thread.sleep(RECONNECTION_INTERVAL);
-			} catch (InterruptedException e) {}
+	/**
+	 * @return whether the connection of the given server is up
+	 */
+	private boolean waitForReconnection(String server) {
+		if (connectionPool.isConnected(server)) {
+			return true;
+		}
+		try {
+			return connectionPool.awaitConnection(server);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		}
 	}
 
-	private void crawl(List<NodeCrawler> nodeCrawlers, String server,
-			BuddycloudPubsubManager manager, DiscoverItems.Item nodeItem) {
+	/**
+	 * Crawls the given node, adding it to interrupted instead of
+	 * recording the visit if the connection drops on the way.
+	 */
+	private void crawl(String server, BuddycloudPubsubManager manager, 
+			DiscoverItems.Item nodeItem, Queue<DiscoverItems.Item> interrupted) {
 		
-		waitForReconnection();
+		if (!waitForReconnection(server)) {
+			interrupted.add(nodeItem);
+			return;
+		}
 		
+		String nodeId = nodeItem.getNode();
 		BuddycloudNode node = null;
 		
 		try {
-			node = manager.getNode(nodeItem.getNode());
+			node = manager.getNode(nodeId);
 		} catch (Exception e) {
-			LOGGER.warn("Could not read node [" + nodeItem.getNode() + "] "
+			if (!connectionPool.isConnected(server)) {
+				interrupted.add(nodeItem);
+				return;
+			}
+			LOGGER.warn("Could not read node [" + nodeId + "] "
 					+ "from server [" + server + "]", e);
+			revisitScheduler.visited(nodeId, server, false, false);
 			return;
 		}
 
-		crawl(nodeCrawlers, server, node);
+		// Posts of firehose servers were already crawled from the firehose
+		List<NodeCrawler> crawlers = capabilities.isFirehoseSupported(server) ? 
+				metadataCrawlers : nodeCrawlers;
+		
+		String lastItemCrawled = crawlState.getLastItemCrawled(nodeId, server);
+		boolean succeeded = crawl(crawlers, server, node);
+		if (!succeeded && !connectionPool.isConnected(server)) {
+			interrupted.add(nodeItem);
+			return;
+		}
+		String newLastItemCrawled = crawlState.getLastItemCrawled(nodeId, server);
+		
+		revisitScheduler.visited(nodeId, server, newLastItemCrawled != null 
+				&& !newLastItemCrawled.equals(lastItemCrawled), succeeded);
 	}
 
-	private void crawl(List<NodeCrawler> nodeCrawlers, String server,
+	/**
+	 * @return false if any of the node crawlers failed
+	 */
+	private boolean crawl(List<NodeCrawler> nodeCrawlers, String server,
 			BuddycloudNode node) {
-		CrawlerHelper.insertNode(node, server, dataSource);
+		crawlState.insertNode(node.getId(), server);
 
+		boolean succeeded = true;
 		for (NodeCrawler nodeCrawler : nodeCrawlers) {
 			try {
 				if (nodeCrawler.accept(node)) {
 					nodeCrawler.crawl(node, server);
 				}
 			} catch (Exception e) {
+				succeeded = false;
 				LOGGER.warn("Could not crawl node [" + node.getId() + "] "
 						+ "from server [" + server + "]", e);
 			}
 		}
+		
+		if (listener != null && node.getId().endsWith("/posts")) {
+			listener.listen(node, server);
+		}
+		return succeeded;
 	}
 	
 	/**
+	 * Crawls the discovered nodes keeping up to crawler.concurrentnodes
+	 * of them in flight. New nodes are crawled while the next discovery 
+	 * page is fetched, due nodes once the discovery is over, most 
+	 * overdue first, until the deadline. Node crawls interrupted by
+	 * a lost connection are crawled again once it is back.
+	 * 
 	 * @param discoverInfo
 	 * @param connection 
 	 * @param server 
 	 * @param manager 
+	 * @param deadline 
 	 * @return
 	 * @throws XMPPException 
+	 * @throws InterruptedException 
 	 */
 	private void fetchAndCrawl(DiscoverItems discoverInfo, 
-			String server, BuddycloudPubsubManager manager) throws XMPPException {
+			final String server, final BuddycloudPubsubManager manager, long deadline) 
+					throws XMPPException, InterruptedException {
+		
+		long now = System.currentTimeMillis();
+		PriorityQueue<DueNode> dueNodes = new PriorityQueue<DueNode>();
 		
 		int itemCount = 0;
+		boolean discoveryComplete = false;
+		Set<String> discoveredNodes = new HashSet<String>();
 		
-		XMPPConnection connection = managers.getConnection();
+		Queue<DiscoverItems.Item> interrupted = new ConcurrentLinkedQueue<DiscoverItems.Item>();
 		
-		while (true) {
-			
-			List<DiscoverItems.Item> serverItems = discoverInfo.getItems();
-			
-			for (DiscoverItems.Item item : serverItems) {
-				crawl(nodeCrawlers, server, manager, item);
-				itemCount++;
+		ServerNodeExecutor serverExecutor = new ServerNodeExecutor(
+				nodeExecutor, concurrentNodes);
+		
+		try {
+			while (true) {
+				
+				if (!leases.renew(server)) {
+					LOGGER.warn("Lost the lease of " + server + ", stopping its crawl.");
+					return;
+				}
+				
+				List<DiscoverItems.Item> serverItems = discoverInfo.getItems();
+				
+				List<String> pageNodes = new ArrayList<String>(serverItems.size());
+				for (DiscoverItems.Item item : serverItems) {
+					pageNodes.add(item.getNode());
+				}
+				crawlState.insertNodes(pageNodes, server);
+				discoveredNodes.addAll(pageNodes);
+				
+				for (DiscoverItems.Item item : serverItems) {
+					itemCount++;
+					long nextVisit = revisitScheduler.getNextVisit(item.getNode(), server);
+					if (nextVisit > now) {
+						continue;
+					}
+					if (nextVisit == 0 && System.currentTimeMillis() < deadline) {
+						submit(serverExecutor, server, manager, item, interrupted);
+					} else {
+						dueNodes.add(new DueNode(item, nextVisit));
+					}
+				}
+				
+				RSMSet rsmSet = (RSMSet) discoverInfo.getExtension(RSMSet.NAMESPACE);
+				
+				if (rsmSet == null || 
+						itemCount == rsmSet.getCount()) {
+					discoveryComplete = true;
+					break;
+				}
+				
+				DiscoverItems request = new DiscoverItems();
+				request.setTo(discoverInfo.getFrom());
+				
+				RSMSet nexRsmSet = RSMSet.newAfter(rsmSet.getLast());
+				request.addExtension(nexRsmSet);
+				
+				try {
+					discoverInfo = manager.sendDiscoverItems(request);
+				} catch (Exception e) {
+					// Ask for the same page again if the connection comes back
+					if (connectionPool.isConnected(server) || !waitForReconnection(server)) {
+						break;
+					}
+					try {
+						discoverInfo = manager.sendDiscoverItems(request);
+					} catch (Exception e1) {
+						break;
+					}
+				}
 			}
 			
-			RSMSet rsmSet = (RSMSet) discoverInfo.getExtension(RSMSet.NAMESPACE);
-			
-			if (rsmSet == null || 
-					itemCount == rsmSet.getCount()) {
-				break;
+			if (!leases.renew(server)) {
+				LOGGER.warn("Lost the lease of " + server + ", stopping its crawl.");
+				return;
+			}
+			while (!dueNodes.isEmpty() && System.currentTimeMillis() < deadline) {
+				submit(serverExecutor, server, manager, dueNodes.poll().item, interrupted);
+			}
+			if (!dueNodes.isEmpty()) {
+				LOGGER.info("Crawl budget of " + server + " is over, " 
+						+ dueNodes.size() + " due nodes left for the next cycle.");
 			}
 			
-			DiscoverItems request = new DiscoverItems();
-			request.setTo(discoverInfo.getFrom());
-			
-			RSMSet nexRsmSet = RSMSet.newAfter(rsmSet.getLast());
-			request.addExtension(nexRsmSet);
-			
-			try {
-				discoverInfo = (DiscoverItems) connection
-						.createPacketCollectorAndSend(request).nextResultOrThrow();
-			} catch (Exception e) {
-				break;
+			serverExecutor.awaitCompletion();
+			while (!interrupted.isEmpty() && System.currentTimeMillis() < deadline 
+					&& waitForReconnection(server)) {
+				LOGGER.info("Re-queueing " + interrupted.size() 
+						+ " node crawls interrupted on " + server);
+				DiscoverItems.Item item = null;
+				while ((item = interrupted.poll()) != null) {
+					submit(serverExecutor, server, manager, item, interrupted);
+				}
+				serverExecutor.awaitCompletion();
 			}
+			if (!interrupted.isEmpty()) {
+				LOGGER.info(interrupted.size() + " interrupted node crawls on " 
+						+ server + " left for the next cycle.");
+			}
+		} finally {
+			serverExecutor.awaitCompletion();
 		}
 		
+		if (discoveryComplete) {
+			removeVanishedNodes(server, manager, discoveredNodes);
+		}
 	}
-
+	
+	private void submit(ServerNodeExecutor serverExecutor, final String server, 
+			final BuddycloudPubsubManager manager, final DiscoverItems.Item item, 
+			final Queue<DiscoverItems.Item> interrupted) throws InterruptedException {
+		serverExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				crawl(server, manager, item, interrupted);
+			}
+		});
+	}
+	
 	/**
-	 * @return
-	 * @throws SQLException 
+	 * Purges the posts of every node we know of on the given server
+	 * that is not listed by its discovery anymore and that the server
+	 * answers item-not-found for. A listing may be capped, so a node
+	 * missing from it is only a node to check.
+	 * 
+	 * @param server
+	 * @param manager
+	 * @param discoveredNodes every node listed by a complete discovery
 	 */
-	private List<String> retrieveServers() throws SQLException {
-		Statement statement = dataSource.createStatement();
-		
-		ResultSet resultSet = statement.executeQuery("SELECT * FROM subscribed_server");
+	private void removeVanishedNodes(String server, BuddycloudPubsubManager manager, 
+			Set<String> discoveredNodes) {
+		// An empty listing is more likely a server glitch than a wipe
+		if (discoveredNodes.isEmpty()) {
+			return;
+		}
 		
-		List<String> serversToCrawl = new LinkedList<String>();
-		while (resultSet.next()) {
-			serversToCrawl.add(resultSet.getString("name"));
+		List<String> vanishedNodes = new ArrayList<String>();
+		for (String node : crawlState.getNodes(server)) {
+			if (!node.equals(FIREHOSE_NODE) && !discoveredNodes.contains(node)
+					&& isGone(manager, node)) {
+				vanishedNodes.add(node);
+			}
+		}
+		if (vanishedNodes.isEmpty()) {
+			return;
 		}
 		
-		ChannelDirectoryDataSource.close(statement);
-		return serversToCrawl;
+		LOGGER.info("Removing " + vanishedNodes.size() + " vanished nodes from " + server);
+		for (String node : vanishedNodes) {
+			try {
+				postRetractor.purge(node);
+			} catch (Exception e) {
+				LOGGER.warn("Could not purge vanished node [" + node + "]", e);
+			}
+		}
+		revisitScheduler.removeNodes(vanishedNodes, server);
+		try {
+			crawlState.removeNodes(vanishedNodes, server);
+		} catch (SQLException e) {
+			LOGGER.warn("Could not remove vanished nodes from " + server, e);
+		}
 	}
 
 	/**
-	 * @throws SQLException 
-	 * 
+	 * @return whether the server answered item-not-found for the given node,
+	 * any other error may well be transient
 	 */
-	private void insertServers() throws SQLException {
+	private static boolean isGone(BuddycloudPubsubManager manager, String nodeId) {
+		try {
+			manager.getNode(nodeId);
+			return false;
+		} catch (XMPPErrorException e) {
+			XMPPError error = e.getXMPPError();
+			return error != null && XMPPError.Condition.item_not_found.toString().equals(
+					error.getCondition());
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private void insertServers() {
 		String serversToCrawlStr = configuration.getProperty("crawler.servertocrawl");
 		String[] serversToCrawl = serversToCrawlStr.split(";");
-		for (String server : serversToCrawl) {
-			CrawlerHelper.insertServer(server, dataSource);
-		}
+		crawlState.insertServers(Arrays.asList(serversToCrawl));
 	}
 
+	private static class DueNode implements Comparable<DueNode> {
+		
+		private final DiscoverItems.Item item;
+		private final long nextVisit;
+		
+		public DueNode(DiscoverItems.Item item, long nextVisit) {
+			this.item = item;
+			this.nextVisit = nextVisit;
+		}
+
+		@Override
+		public int compareTo(DueNode other) {
+			return Long.compare(nextVisit, other.nextVisit);
+		}
+	}
 }
@@ -15,50 +15,50 @@
  */
 package com.buddycloud.channeldirectory.crawler;
 
-import java.sql.SQLException;
+import java.util.Collections;
 import java.util.List;
-import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
-import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.pubsub.BuddycloudNode;
 import org.jivesoftware.smackx.pubsub.ConfigurationEvent;
 import org.jivesoftware.smackx.pubsub.ConfigureForm;
 import org.jivesoftware.smackx.pubsub.Item;
 import org.jivesoftware.smackx.pubsub.ItemDeleteEvent;
 import org.jivesoftware.smackx.pubsub.ItemPublishEvent;
-import org.jivesoftware.smackx.pubsub.Node;
 import org.jivesoftware.smackx.pubsub.listener.ItemDeleteListener;
 import org.jivesoftware.smackx.pubsub.listener.ItemEventListener;
 import org.jivesoftware.smackx.pubsub.listener.NodeConfigListener;
 
-import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.buddycloud.channeldirectory.crawler.node.CrawlerHelper;
+import com.buddycloud.channeldirectory.crawler.node.PushIndexer;
 
 /**
+ * Subscribes to crawled nodes and hands the items published to,
+ * and retracted from, them over to the {@link PushIndexer}, so the
+ * post core follows the nodes in seconds instead of on the next crawl.
+ * 
+ * Nodes are subscribed to with the bare JID of the connection they 
+ * were fetched on, as servers are sharded over connections that may 
+ * each log in with their own account.
  *
  */
-public class PubSubSubscriptionListener implements ItemDeleteListener, ItemEventListener<Item>, NodeConfigListener {
+public class PubSubSubscriptionListener implements ItemEventListener<Item>, NodeConfigListener {
 
-	private static Logger LOGGER = Logger.getLogger(PubSubServerCrawler.class);
+	private static Logger LOGGER = Logger.getLogger(PubSubSubscriptionListener.class);
 	
-	private final PubSubManagers managers;
-	private final ChannelDirectoryDataSource dataSource;
-	private String userId;
+	private final PushIndexer pushIndexer;
+	private final Set<String> listenedNodes = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
 
 
 	/**
-	 * @param configuration
-	 * @param managers
+	 * @param pushIndexer
 	 */
-	public PubSubSubscriptionListener(Properties configuration,
-			PubSubManagers managers, ChannelDirectoryDataSource dataSource) {
-		this.managers = managers;
-		this.dataSource = dataSource;
-		
-		String userName = configuration.getProperty("crawler.xmpp.username");
-		String serverName = configuration.getProperty("crawler.xmpp.servername");
-		
-		this.userId = userName + "@" + serverName;
-		
+	public PubSubSubscriptionListener(PushIndexer pushIndexer) {
+		this.pushIndexer = pushIndexer;
 	}
 
 	/* (non-Javadoc)
@@ -74,45 +74,72 @@ public class PubSubSubscriptionListener implements ItemDeleteListener, ItemEvent
 	 */
 	@Override
 	public void handlePublishedItems(ItemPublishEvent<Item> itemsEvent) {
+		String nodeId = itemsEvent.getNodeId();
 		List<Item> items = itemsEvent.getItems();
 		for (Item item : items) {
-			String itemId = item.getId();
+			try {
+				pushIndexer.offer(nodeId, CrawlerHelper.getPostData(item));
+			} catch (Exception e) {
+				LOGGER.warn("Could not parse item " + item.getId() 
+						+ " pushed by node " + nodeId, e);
+			}
 		}
 	}
 
-	/* (non-Javadoc)
-	 * @see org.jivesoftware.smackx.pubsub.listener.ItemDeleteListener#handleDeletedItems(org.jivesoftware.smackx.pubsub.ItemDeleteEvent)
-	 */
-	@Override
-	public void handleDeletedItems(ItemDeleteEvent items) {
-		// TODO Auto-generated method stub
-		
-	}
-
-	/* (non-Javadoc)
-	 * @see org.jivesoftware.smackx.pubsub.listener.ItemDeleteListener#handlePurge()
-	 */
-	@Override
-	public void handlePurge() {
-		// TODO Auto-generated method stub
-		
-	}
-	
 	/**
+	 * Subscribes to the given node and starts listening to its
+	 * events. Nodes are only subscribed to once per crawler run,
+	 * a failed subscription is tried again on the next crawl.
+	 * 
 	 * @param node
-	 * @throws XMPPException 
-	 * @throws SQLException 
+	 * @param server
 	 */
-	public void listen(Node node, String server) throws XMPPException, SQLException {
+	public void listen(BuddycloudNode node, String server) {
+		if (!listenedNodes.add(node.getId())) {
+			return;
+		}
 		
+		String jid = StringUtils.parseBareAddress(node.getConnection().getUser());
 		try {
-			node.subscribe(userId);
+			node.subscribe(jid);
 		} catch (Exception e) {
-			LOGGER.warn("Node " + node.getId()  + " is already subscribed.");
+			listenedNodes.remove(node.getId());
+			LOGGER.warn("Could not subscribe " + jid + " to node " + node.getId() 
+					+ " of server " + server, e);
+			return;
 		}
 		node.addConfigurationListener(this);
-		node.addItemDeleteListener(this);
+		node.addItemDeleteListener(new NodeDeleteListener(node.getId()));
 		node.addItemEventListener(this);
 	}
 	
+	/**
+	 * Purge notifications don't carry the node id,
+	 * so every node gets its own delete listener.
+	 */
+	private class NodeDeleteListener implements ItemDeleteListener {
+		
+		private final String nodeId;
+		
+		public NodeDeleteListener(String nodeId) {
+			this.nodeId = nodeId;
+		}
+		
+		/* (non-Javadoc)
+		 * @see org.jivesoftware.smackx.pubsub.listener.ItemDeleteListener#handleDeletedItems(org.jivesoftware.smackx.pubsub.ItemDeleteEvent)
+		 */
+		@Override
+		public void handleDeletedItems(ItemDeleteEvent items) {
+			pushIndexer.offerRetraction(nodeId, items.getItemIds());
+		}
+		
+		/* (non-Javadoc)
+		 * @see org.jivesoftware.smackx.pubsub.listener.ItemDeleteListener#handlePurge()
+		 */
+		@Override
+		public void handlePurge() {
+			pushIndexer.offerPurge(nodeId);
+		}
+	}
+	
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Crawls channel servers in parallel on a bounded pool of workers.
+ *
+ * Every domain is queued as a single unit of work (discovery followed
+ * by the channel server crawl) in FIFO order, so a slow or huge server
+ * only holds up the worker it is running on. A domain that is still
+ * queued or running is not enqueued again, and a channel server
+ * is never crawled by two workers at once, even when several domains
+ * are served by the same channel server.
+ *
+ */
+public class ServerCrawlScheduler {
+
+	private static Logger LOGGER = Logger.getLogger(ServerCrawlScheduler.class);
+
+	private static final int DEF_CONCURRENT_SERVERS = 4;
+
+	private final int concurrentServers;
+	private final ExecutorService executor;
+	private final Set<String> domainsPending = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+	private final Set<String> serversInFlight = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+
+	public ServerCrawlScheduler(Properties configuration) {
+		String concurrentServersStr = configuration.getProperty("crawler.concurrentservers");
+		this.concurrentServers = concurrentServersStr == null ? DEF_CONCURRENT_SERVERS
+				: Integer.parseInt(concurrentServersStr);
+		this.executor = Executors.newFixedThreadPool(concurrentServers);
+	}
+	
+	/**
+	 * @return the number of servers crawled at the same time
+	 */
+	public int getConcurrentServers() {
+		return concurrentServers;
+	}
+
+	/**
+	 * Enqueues every domain that is not already queued or
+	 * being crawled. Returns right away, domains are crawled
+	 * as workers become available.
+	 *
+	 * @param domains
+	 * @param serverCrawl
+	 * @return the number of domains enqueued
+	 */
+	public int schedule(List<String> domains, final ServerCrawl serverCrawl) {
+		int enqueued = 0;
+		for (final String domain : domains) {
+			if (!domainsPending.add(domain)) {
+				LOGGER.debug("Domain " + domain + " is still being crawled, skipping.");
+				continue;
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						crawlDomain(domain, serverCrawl);
+					} catch (Throwable t) {
+						LOGGER.error("Error while crawling domain " + domain, t);
+					} finally {
+						domainsPending.remove(domain);
+					}
+				}
+			});
+			enqueued++;
+		}
+		return enqueued;
+	}
+
+	private void crawlDomain(String domain, ServerCrawl serverCrawl) {
+		LOGGER.debug("Discovering channel server on " + domain);
+		String channelServer = serverCrawl.discover(domain);
+		if (channelServer == null) {
+			return;
+		}
+		if (!serversInFlight.add(channelServer)) {
+			LOGGER.debug("Channel server " + channelServer
+					+ " is already being crawled, skipping " + domain);
+			return;
+		}
+		try {
+			serverCrawl.crawl(channelServer);
+		} finally {
+			serversInFlight.remove(channelServer);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * The unit of work run by the scheduler for every domain.
+	 */
+	public static interface ServerCrawl {
+
+		/**
+		 * @param domain
+		 * @return the channel server for the given domain,
+		 * or null if there is none
+		 */
+		String discover(String domain);
+
+		/**
+		 * @param channelServer
+		 */
+		void crawl(String channelServer);
+	}
+}
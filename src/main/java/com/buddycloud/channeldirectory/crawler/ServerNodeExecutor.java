@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the node crawls of a single channel server on a shared
+ * {@link Executor}, keeping at most maxInFlight of them running at
+ * the same time, so we don't trip the remote server's rate limits.
+ *
+ * {@link #submit(Runnable)} blocks while the server is at its cap,
+ * which lets the caller fetch the next discovery page while the
+ * current one is still being crawled.
+ *
+ */
+public class ServerNodeExecutor {
+
+	private static Logger LOGGER = Logger.getLogger(ServerNodeExecutor.class);
+
+	private final Executor executor;
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+
+	public ServerNodeExecutor(Executor executor, int maxInFlight) {
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Runs the given node crawl, waiting for a free
+	 * slot if this server is at its in-flight cap.
+	 *
+	 * @param nodeCrawl
+	 * @throws InterruptedException
+	 */
+	public void submit(final Runnable nodeCrawl) throws InterruptedException {
+		if (maxInFlight <= 1) {
+			nodeCrawl.run();
+			return;
+		}
+
+		inFlight.acquire();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						nodeCrawl.run();
+					} catch (Throwable t) {
+						LOGGER.warn("Node crawl failed.", t);
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until every submitted node crawl is done.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		if (maxInFlight <= 1) {
+			return;
+		}
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+	}
+}
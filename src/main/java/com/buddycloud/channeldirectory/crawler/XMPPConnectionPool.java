@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.AbstractConnectionListener;
+import org.jivesoftware.smack.XMPPConnection;
+
+import com.buddycloud.channeldirectory.search.utils.XMPPUtils;
+
+/**
+ * Holds the crawler.xmpp.connections XMPP sessions of the crawler,
+ * each logged in with its own resource and, if
+ * crawler.xmpp.username.N is set, its own account.
+ *
+ * Channel servers are sharded across connections by name, so a
+ * dropped session only pauses the servers it serves. Threads waiting
+ * for a session are woken up by its connection listener as soon as
+ * it is logged in again, instead of polling it.
+ *
+ */
+public class XMPPConnectionPool {
+
+	private static Logger LOGGER = Logger.getLogger(XMPPConnectionPool.class);
+
+	private static final int DEF_CONNECTIONS = 1;
+	private static final long DEF_RECONNECTION_TIMEOUT = 60000 * 5; // 5 minutes
+
+	private final List<XMPPConnection> connections;
+	private final long reconnectionTimeout;
+	private final Object reconnected = new Object();
+
+	public XMPPConnectionPool(List<XMPPConnection> connections, long reconnectionTimeout) {
+		this.connections = connections;
+		this.reconnectionTimeout = reconnectionTimeout;
+
+		for (int i = 0; i < connections.size(); i++) {
+			connections.get(i).addConnectionListener(new ReconnectionListener(i));
+		}
+	}
+
+	/**
+	 * Connects and logs in every crawler connection.
+	 *
+	 * @param configuration
+	 * @return
+	 * @throws Exception
+	 */
+	public static XMPPConnectionPool create(Properties configuration) throws Exception {
+		String connectionsStr = configuration.getProperty("crawler.xmpp.connections");
+		int size = connectionsStr == null ? DEF_CONNECTIONS
+				: Integer.parseInt(connectionsStr);
+
+		String timeoutStr = configuration.getProperty("crawler.xmpp.reconnectiontimeout");
+		long reconnectionTimeout = timeoutStr == null ? DEF_RECONNECTION_TIMEOUT
+				: Long.parseLong(timeoutStr);
+
+		List<XMPPConnection> connections = new ArrayList<XMPPConnection>(size);
+		for (int i = 0; i < size; i++) {
+			connections.add(XMPPUtils.createCrawlerConnection(configuration, i));
+		}
+		return new XMPPConnectionPool(connections, reconnectionTimeout);
+	}
+
+	/**
+	 * @param server
+	 * @return the connection the given server is sharded to
+	 */
+	public XMPPConnection getConnection(String server) {
+		int shard = (server.hashCode() & Integer.MAX_VALUE) % connections.size();
+		return connections.get(shard);
+	}
+
+	public List<XMPPConnection> getConnections() {
+		return Collections.unmodifiableList(connections);
+	}
+
+	/**
+	 * @param server
+	 * @return whether the connection of the given server is logged in
+	 */
+	public boolean isConnected(String server) {
+		return isConnected(getConnection(server));
+	}
+
+	private static boolean isConnected(XMPPConnection connection) {
+		return connection.isConnected() && connection.isAuthenticated();
+	}
+
+	/**
+	 * Waits until the connection of the given server is back,
+	 * for at most crawler.xmpp.reconnectiontimeout milliseconds.
+	 *
+	 * @param server
+	 * @return whether the connection is logged in
+	 * @throws InterruptedException
+	 */
+	public boolean awaitConnection(String server) throws InterruptedException {
+		XMPPConnection connection = getConnection(server);
+		long deadline = System.currentTimeMillis() + reconnectionTimeout;
+		synchronized (reconnected) {
+			while (!isConnected(connection)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				reconnected.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	private class ReconnectionListener extends AbstractConnectionListener {
+
+		private final int index;
+
+		public ReconnectionListener(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void connectionClosedOnError(Exception e) {
+			LOGGER.warn("Crawler connection " + index
+					+ " was lost, pausing its servers until it is back.", e);
+		}
+
+		/**
+		 * Logging in follows the reconnection, and is
+		 * what {@link #awaitConnection(String)} waits for.
+		 */
+		@Override
+		public void authenticated(XMPPConnection connection) {
+			LOGGER.info("Crawler connection " + index + " is back.");
+			synchronized (reconnected) {
+				reconnected.notifyAll();
+			}
+		}
+	}
+}
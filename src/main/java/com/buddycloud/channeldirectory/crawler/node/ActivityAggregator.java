@@ -0,0 +1,459 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
+
+/**
+ * Collects the activity of replayed posts in memory, per channel and
+ * per day, and writes it to channel_activity behind the crawl.
+ * 
+ * Posts of the same channel are merged before reaching the database,
+ * so a flush costs one SELECT for all pending channels plus one batch
+ * of UPDATEs and one batch of INSERTs, in a single transaction. The
+ * SELECT locks the rows it reads, so crawler instances sharing the 
+ * database do not overwrite each other's counts.
+ * 
+ * Flushes happen as the {@link IngestReplayer} finishes a batch, and 
+ * record, in the same transaction, the offset of the ingest log the 
+ * written activity was counted up to. Records replayed again after a 
+ * crash are thus not counted twice. Clearing a channel is buffered
+ * too, and deletes its row in that same transaction.
+ * 
+ */
+public class ActivityAggregator {
+
+	private static Logger LOGGER = Logger.getLogger(ActivityAggregator.class);
+	
+	private static final int MAX_CHANNELS_PER_SELECT = 500;
+	private static final Long A_DAY = 24L * 60 * 60 * 1000;
+	
+	private final ChannelDirectoryDataSource dataSource;
+	private final KnownChannels knownChannels;
+	private final Object flushLock = new Object();
+	
+	private Map<String, PendingActivity> pending = new HashMap<String, PendingActivity>();
+	
+	public ActivityAggregator(ChannelDirectoryDataSource dataSource, 
+			KnownChannels knownChannels) {
+		this.dataSource = dataSource;
+		this.knownChannels = knownChannels;
+	}
+	
+	/**
+	 * Counts the given post in the activity of its channel,
+	 * if the channel is registered.
+	 * 
+	 * @param postData
+	 */
+	public void add(PostData postData) {
+		if (postData == null) {
+			throw new IllegalArgumentException("Post data can't be null.");
+		}
+		
+		String channelJid = postData.getParentSimpleId();
+		if (!isKnown(channelJid)) {
+			return;
+		}
+		
+		synchronized (this) {
+			PendingActivity activity = pending.get(channelJid);
+			if (activity == null) {
+				activity = new PendingActivity();
+				pending.put(channelJid, activity);
+			}
+			activity.add(postData.getPublished());
+		}
+	}
+	
+	/**
+	 * Retracts a deleted post from the activity of its channel.
+	 * Posts of unregistered channels were never counted, and are
+	 * skipped like in {@link #add(PostData)}.
+	 * 
+	 * @param channelJid
+	 * @param published
+	 */
+	public void remove(String channelJid, Date published) {
+		if (channelJid == null || published == null) {
+			return;
+		}
+		if (!isKnown(channelJid)) {
+			return;
+		}
+		
+		synchronized (this) {
+			PendingActivity activity = pending.get(channelJid);
+			if (activity == null) {
+				activity = new PendingActivity();
+				pending.put(channelJid, activity);
+			}
+			activity.remove(published);
+		}
+	}
+	
+	private boolean isKnown(String channelJid) {
+		try {
+			return knownChannels.contains(channelJid);
+		} catch (Exception e) {
+			LOGGER.error("Could not retrieve channel info.", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Drops the whole activity of the given channel, pending 
+	 * and written. The written activity is deleted on the next
+	 * flush, so posts counted after this call are kept.
+	 * 
+	 * @param channelJid
+	 */
+	public synchronized void clear(String channelJid) {
+		PendingActivity activity = new PendingActivity();
+		activity.cleared = true;
+		pending.put(channelJid, activity);
+	}
+	
+	private synchronized Map<String, PendingActivity> drain() {
+		Map<String, PendingActivity> drained = pending;
+		pending = new HashMap<String, PendingActivity>();
+		return drained;
+	}
+	
+	private synchronized void putBack(Map<String, PendingActivity> notFlushed) {
+		for (Entry<String, PendingActivity> entry : notFlushed.entrySet()) {
+			PendingActivity activity = pending.get(entry.getKey());
+			if (activity == null) {
+				pending.put(entry.getKey(), entry.getValue());
+			} else if (!activity.cleared) {
+				// Cleared since, the activity not flushed is dropped
+				entry.getValue().merge(activity);
+				pending.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Writes every pending activity to the database, failing if 
+	 * it could not. Activity that could not be written is kept 
+	 * for the next flush.
+	 * 
+	 * @param logName the ingest log the activity was replayed from
+	 * @param countedOffset the offset of that log the pending 
+	 * activity was counted up to
+	 * @throws SQLException
+	 */
+	public void flushOrThrow(String logName, long countedOffset) throws SQLException {
+		synchronized (flushLock) {
+			Map<String, PendingActivity> activities = drain();
+			if (activities.isEmpty()) {
+				return;
+			}
+			try {
+				write(activities, logName, countedOffset, dataSource);
+			} catch (SQLException e) {
+				putBack(activities);
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * @param logName
+	 * @return the offset of the given ingest log the written
+	 * activity was counted up to, or 0 if none was
+	 * @throws SQLException
+	 */
+	public long getCountedOffset(String logName) throws SQLException {
+		PreparedStatement statement = dataSource.prepareStatement(
+				"SELECT counted_offset FROM activity_checkpoint WHERE log_name = ?", 
+				logName);
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			return resultSet.next() ? resultSet.getLong("counted_offset") : 0;
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+	
+	/**
+	 * Applies the given activities to channel_activity, and moves
+	 * the counted offset of the given log, in a single transaction.
+	 * Cleared channels have their row deleted before.
+	 * 
+	 * @param activities
+	 * @param logName the log to move the counted offset of
+	 * @param countedOffset
+	 * @param dataSource
+	 * @throws SQLException
+	 */
+	private static void write(Map<String, PendingActivity> activities, String logName, 
+			long countedOffset, ChannelDirectoryDataSource dataSource) throws SQLException {
+		
+		Connection connection = dataSource.getConnection();
+		PreparedStatement deleteStatement = null;
+		PreparedStatement updateStatement = null;
+		PreparedStatement insertStatement = null;
+		
+		try {
+			connection.setAutoCommit(false);
+			
+			deleteStatement = connection.prepareStatement(
+					"DELETE FROM channel_activity WHERE channel_jid = ?");
+			int deletes = 0;
+			for (Entry<String, PendingActivity> entry : activities.entrySet()) {
+				if (entry.getValue().cleared) {
+					deleteStatement.setString(1, entry.getKey());
+					deleteStatement.addBatch();
+					deletes++;
+				}
+			}
+			if (deletes > 0) {
+				deleteStatement.executeBatch();
+			}
+			
+			Map<String, ActivityWindow> windows = retrieveWindows(
+					connection, new ArrayList<String>(activities.keySet()));
+			
+			updateStatement = connection.prepareStatement(
+					"UPDATE channel_activity SET activity_window = ?, detailed_activity = NULL, " +
+					"summarized_activity = ?, " +
+					"updated = GREATEST(COALESCE(CAST(? AS TIMESTAMP), updated), updated), " +
+					"earliest = LEAST(COALESCE(CAST(? AS TIMESTAMP), earliest), earliest) " +
+					"WHERE channel_jid = ?");
+			insertStatement = connection.prepareStatement(
+					"INSERT INTO channel_activity(channel_jid, activity_window, " +
+					"summarized_activity, updated, earliest) " +
+					"values (?, ?, ?, ?, ?)");
+			
+			int updates = 0;
+			int inserts = 0;
+			for (Entry<String, PendingActivity> entry : activities.entrySet()) {
+				String channelJid = entry.getKey();
+				PendingActivity activity = entry.getValue();
+				ActivityWindow window = windows.get(channelJid);
+				
+				if (window == null) {
+					// Nothing to retract from
+					if (activity.updated == null) {
+						continue;
+					}
+					window = ActivityWindow.create(activity.dayCounts.firstKey());
+					activity.applyTo(window);
+					insertStatement.setString(1, channelJid);
+					insertStatement.setBytes(2, window.toBytes());
+					insertStatement.setLong(3, window.getSum());
+					insertStatement.setTimestamp(4, new Timestamp(activity.updated.getTime()));
+					insertStatement.setTimestamp(5, new Timestamp(activity.earliest.getTime()));
+					insertStatement.addBatch();
+					inserts++;
+					continue;
+				}
+				
+				// Crawled already
+				if (!activity.applyTo(window)) {
+					continue;
+				}
+				updateStatement.setBytes(1, window.toBytes());
+				updateStatement.setLong(2, window.getSum());
+				updateStatement.setTimestamp(3, toTimestamp(activity.updated));
+				updateStatement.setTimestamp(4, toTimestamp(activity.earliest));
+				updateStatement.setString(5, channelJid);
+				updateStatement.addBatch();
+				updates++;
+			}
+			
+			if (updates > 0) {
+				updateStatement.executeBatch();
+			}
+			if (inserts > 0) {
+				insertStatement.executeBatch();
+			}
+			writeCountedOffset(connection, logName, countedOffset);
+			connection.commit();
+			
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			close(deleteStatement);
+			close(updateStatement);
+			close(insertStatement);
+			try {
+				connection.setAutoCommit(true);
+			} finally {
+				connection.close();
+			}
+		}
+	}
+	
+	private static void writeCountedOffset(Connection connection, String logName, 
+			long countedOffset) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(
+				"UPDATE activity_checkpoint SET counted_offset = ? WHERE log_name = ?");
+		try {
+			statement.setLong(1, countedOffset);
+			statement.setString(2, logName);
+			if (statement.executeUpdate() > 0) {
+				return;
+			}
+		} finally {
+			statement.close();
+		}
+		
+		statement = connection.prepareStatement(
+				"INSERT INTO activity_checkpoint(log_name, counted_offset) VALUES (?, ?)");
+		try {
+			statement.setString(1, logName);
+			statement.setLong(2, countedOffset);
+			statement.execute();
+		} finally {
+			statement.close();
+		}
+	}
+	
+	private static Map<String, ActivityWindow> retrieveWindows(Connection connection, 
+			List<String> channelJids) throws SQLException {
+		
+		Map<String, ActivityWindow> windows = new HashMap<String, ActivityWindow>();
+		
+		for (int start = 0; start < channelJids.size(); start += MAX_CHANNELS_PER_SELECT) {
+			List<String> chunk = channelJids.subList(start, 
+					Math.min(start + MAX_CHANNELS_PER_SELECT, channelJids.size()));
+			
+			StringBuilder placeholders = new StringBuilder();
+			for (int i = 0; i < chunk.size(); i++) {
+				placeholders.append(i == 0 ? "?" : ", ?");
+			}
+			
+			PreparedStatement statement = connection.prepareStatement(
+					"SELECT channel_jid, activity_window, detailed_activity " +
+					"FROM channel_activity WHERE channel_jid IN (" + placeholders + ") " +
+					"FOR UPDATE");
+			try {
+				for (int i = 0; i < chunk.size(); i++) {
+					statement.setString(i + 1, chunk.get(i));
+				}
+				ResultSet resultSet = statement.executeQuery();
+				while (resultSet.next()) {
+					byte[] activityWindow = resultSet.getBytes("activity_window");
+					// Rows written before activity_window existed are converted on read
+					ActivityWindow window = activityWindow != null ? 
+							ActivityWindow.fromBytes(activityWindow) : 
+							ActivityWindow.fromJson(resultSet.getString("detailed_activity"));
+					windows.put(resultSet.getString("channel_jid"), window);
+				}
+			} finally {
+				statement.close();
+			}
+		}
+		
+		return windows;
+	}
+	
+	private static Timestamp toTimestamp(Date date) {
+		return date == null ? null : new Timestamp(date.getTime());
+	}
+	
+	private static void close(PreparedStatement statement) {
+		if (statement == null) {
+			return;
+		}
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			LOGGER.warn(e);
+		}
+	}
+	
+	/**
+	 * Activity of a single channel not yet written to the database.
+	 */
+	static class PendingActivity {
+		
+		private final TreeMap<Long, Integer> dayCounts = new TreeMap<Long, Integer>();
+		private Date updated;
+		private Date earliest;
+		// Whether the written activity is dropped before applying this one
+		private boolean cleared;
+		
+		void add(Date published) {
+			addCount(published.getTime() / A_DAY, 1);
+			updateBounds(published, published);
+		}
+		
+		void remove(Date published) {
+			addCount(published.getTime() / A_DAY, -1);
+		}
+		
+		private void updateBounds(Date otherUpdated, Date otherEarliest) {
+			if (otherUpdated == null) {
+				return;
+			}
+			if (updated == null || otherUpdated.after(updated)) {
+				updated = otherUpdated;
+			}
+			if (earliest == null || otherEarliest.before(earliest)) {
+				earliest = otherEarliest;
+			}
+		}
+		
+		private void addCount(long day, int count) {
+			Integer dayCount = dayCounts.get(day);
+			dayCounts.put(day, dayCount == null ? count : dayCount + count);
+		}
+		
+		/**
+		 * Merges activity counted after this one.
+		 */
+		void merge(PendingActivity other) {
+			for (Entry<Long, Integer> dayCount : other.dayCounts.entrySet()) {
+				addCount(dayCount.getKey(), dayCount.getValue());
+			}
+			updateBounds(other.updated, other.earliest);
+		}
+		
+		/**
+		 * Days are applied oldest first, so the window only ever slides 
+		 * forward and the result doesn't depend on the order posts arrived.
+		 * 
+		 * @return false if every day was older than the window
+		 */
+		boolean applyTo(ActivityWindow window) {
+			boolean applied = false;
+			for (Entry<Long, Integer> dayCount : dayCounts.entrySet()) {
+				applied |= window.add(dayCount.getKey(), dayCount.getValue());
+			}
+			return applied;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Per-day post counters of a channel for the last {@link #SIZE} days,
+ * stored as channel_activity.activity_window.
+ * 
+ * The encoding is a big-endian int holding the most recent day 
+ * (in days since the epoch) followed by one int counter per day, 
+ * most recent first. The backing array is updated in place.
+ * 
+ */
+public class ActivityWindow {
+
+	public static final int SIZE = 30;
+	
+	private static final int INT_SIZE = 4;
+	private static final int COUNTERS_OFFSET = INT_SIZE;
+	private static final int LENGTH = COUNTERS_OFFSET + SIZE * INT_SIZE;
+	
+	private static final String PUBLISHED_LABEL = "p";
+	private static final String ACTIVITY_LABEL = "a";
+	
+	private final byte[] bytes;
+	private final ByteBuffer buffer;
+	
+	private ActivityWindow(byte[] bytes) {
+		this.bytes = bytes;
+		this.buffer = ByteBuffer.wrap(bytes);
+	}
+	
+	/**
+	 * @param day the most recent day of the window
+	 * @return an empty window
+	 */
+	public static ActivityWindow create(long day) {
+		ActivityWindow window = new ActivityWindow(new byte[LENGTH]);
+		window.buffer.putInt(0, (int) day);
+		return window;
+	}
+	
+	/**
+	 * @param bytes an encoded window, which is 
+	 * updated in place by this instance
+	 * @return
+	 */
+	public static ActivityWindow fromBytes(byte[] bytes) {
+		if (bytes.length != LENGTH) {
+			throw new IllegalArgumentException(
+					"Activity window must have " + LENGTH + " bytes.");
+		}
+		return new ActivityWindow(bytes);
+	}
+	
+	/**
+	 * Converts the former JSON representation, 
+	 * [{"p": day, "a": count}, ...] most recent first.
+	 * 
+	 * @param json
+	 * @return
+	 */
+	public static ActivityWindow fromJson(String json) {
+		JsonArray activity = new JsonParser().parse(json).getAsJsonArray();
+		long lastDay = activity.get(0).getAsJsonObject().get(PUBLISHED_LABEL).getAsLong();
+		
+		ActivityWindow window = create(lastDay);
+		for (int i = 0; i < activity.size(); i++) {
+			JsonObject dayActivity = activity.get(i).getAsJsonObject();
+			long day = dayActivity.get(PUBLISHED_LABEL).getAsLong();
+			int idx = (int) (lastDay - day);
+			if (idx >= 0 && idx < SIZE) {
+				window.setCount(idx, window.getCount(idx) + 
+						dayActivity.get(ACTIVITY_LABEL).getAsInt());
+			}
+		}
+		return window;
+	}
+	
+	/**
+	 * @return the most recent day in this window
+	 */
+	public long getLastDay() {
+		return buffer.getInt(0);
+	}
+	
+	/**
+	 * @param idx days before the most recent day
+	 * @return
+	 */
+	public int getCount(int idx) {
+		return buffer.getInt(COUNTERS_OFFSET + idx * INT_SIZE);
+	}
+	
+	private void setCount(int idx, int count) {
+		buffer.putInt(COUNTERS_OFFSET + idx * INT_SIZE, count);
+	}
+	
+	/**
+	 * Adds activity to the given day, sliding the window 
+	 * forward if the day is newer than its most recent day.
+	 * Negative counts retract activity, counters never go below zero.
+	 * 
+	 * @param day
+	 * @param count
+	 * @return false if the day is out of the window
+	 */
+	public boolean add(long day, int count) {
+		long lastDay = getLastDay();
+		if (day <= lastDay - SIZE) {
+			return false;
+		}
+		if (day > lastDay) {
+			if (count < 0) {
+				return false;
+			}
+			shift((int) Math.min(day - lastDay, SIZE));
+			buffer.putInt(0, (int) day);
+			lastDay = day;
+		}
+		int idx = (int) (lastDay - day);
+		setCount(idx, Math.max(0, getCount(idx) + count));
+		return true;
+	}
+	
+	private void shift(int days) {
+		int shiftedBytes = days * INT_SIZE;
+		System.arraycopy(bytes, COUNTERS_OFFSET, bytes, 
+				COUNTERS_OFFSET + shiftedBytes, LENGTH - COUNTERS_OFFSET - shiftedBytes);
+		Arrays.fill(bytes, COUNTERS_OFFSET, COUNTERS_OFFSET + shiftedBytes, (byte) 0);
+	}
+	
+	/**
+	 * @return the activity summed over the whole window
+	 */
+	public long getSum() {
+		long sum = 0;
+		for (int i = 0; i < SIZE; i++) {
+			sum += getCount(i);
+		}
+		return sum;
+	}
+	
+	/**
+	 * @return the encoded window, backed by this instance
+	 */
+	public byte[] toBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @return the window in its former JSON representation
+	 */
+	public JsonArray toJson() {
+		long lastDay = getLastDay();
+		JsonArray activity = new JsonArray();
+		for (int i = 0; i < SIZE; i++) {
+			JsonObject dayActivity = new JsonObject();
+			dayActivity.addProperty(PUBLISHED_LABEL, lastDay - i);
+			dayActivity.addProperty(ACTIVITY_LABEL, getCount(i));
+			activity.add(dayActivity);
+		}
+		return activity;
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+/**
+ * In-process copy of subscribed_server and subscribed_node.
+ * 
+ * It is loaded once by {@link #load()} and every write goes to
+ * the database and to memory, so lookups never hit the database.
+ * New servers and nodes can be inserted a whole discovery page
+ * at a time, as a single JDBC batch.
+ * 
+ */
+public class CrawlState {
+
+	private static Logger LOGGER = Logger.getLogger(CrawlState.class);
+	
+	private final ChannelDirectoryDataSource dataSource;
+	
+	private final Set<String> servers = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentMap<String, ConcurrentMap<String, NodeState>> nodes = 
+			new ConcurrentHashMap<String, ConcurrentMap<String, NodeState>>();
+	
+	public CrawlState(ChannelDirectoryDataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+	
+	/**
+	 * Loads every subscribed server and node.
+	 * 
+	 * @throws SQLException
+	 */
+	public void load() throws SQLException {
+		Statement statement = dataSource.createStatement();
+		try {
+			ResultSet serverResult = statement.executeQuery(
+					"SELECT name FROM subscribed_server");
+			while (serverResult.next()) {
+				servers.add(serverResult.getString("name"));
+			}
+			
+			ResultSet nodeResult = statement.executeQuery(
+					"SELECT name, server, last_item_crawled FROM subscribed_node");
+			while (nodeResult.next()) {
+				NodeState nodeState = new NodeState();
+				nodeState.lastItemCrawled = nodeResult.getString("last_item_crawled");
+				getServerNodes(nodeResult.getString("server")).put(
+						nodeResult.getString("name"), nodeState);
+			}
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+		
+		LOGGER.info("Loaded crawl state of " + servers.size() + " servers.");
+	}
+	
+	/**
+	 * Reloads the nodes of the given server, which other
+	 * crawler instances may have crawled since.
+	 * 
+	 * @param server
+	 * @throws SQLException
+	 */
+	public void reload(String server) throws SQLException {
+		Map<String, String> lastItems = new HashMap<String, String>();
+		PreparedStatement statement = dataSource.prepareStatement(
+				"SELECT name, last_item_crawled FROM subscribed_node WHERE server = ?", 
+				server);
+		try {
+			ResultSet nodeResult = statement.executeQuery();
+			while (nodeResult.next()) {
+				lastItems.put(nodeResult.getString("name"), 
+						nodeResult.getString("last_item_crawled"));
+			}
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+		
+		ConcurrentMap<String, NodeState> serverNodes = getServerNodes(server);
+		serverNodes.keySet().retainAll(lastItems.keySet());
+		for (Map.Entry<String, String> lastItem : lastItems.entrySet()) {
+			NodeState nodeState = new NodeState();
+			NodeState previous = serverNodes.putIfAbsent(lastItem.getKey(), nodeState);
+			(previous == null ? nodeState : previous).lastItemCrawled = lastItem.getValue();
+		}
+	}
+	
+	private ConcurrentMap<String, NodeState> getServerNodes(String server) {
+		ConcurrentMap<String, NodeState> serverNodes = nodes.get(server);
+		if (serverNodes == null) {
+			ConcurrentMap<String, NodeState> newServerNodes = 
+					new ConcurrentHashMap<String, NodeState>();
+			serverNodes = nodes.putIfAbsent(server, newServerNodes);
+			if (serverNodes == null) {
+				serverNodes = newServerNodes;
+			}
+		}
+		return serverNodes;
+	}
+	
+	/**
+	 * @return every subscribed server
+	 */
+	public List<String> getServers() {
+		return new ArrayList<String>(servers);
+	}
+	
+	public boolean isServerSubscribed(String server) {
+		return servers.contains(server);
+	}
+	
+	/**
+	 * Enqueues the server of the given user.
+	 * 
+	 * @param user
+	 */
+	public void enqueueNewServer(String user) {
+		enqueueNewServers(Collections.singleton(user));
+	}
+	
+	/**
+	 * Enqueues the servers of the given users.
+	 * 
+	 * @param users
+	 */
+	public void enqueueNewServers(Collection<String> users) {
+		List<String> newServers = new ArrayList<String>();
+		for (String user : users) {
+			newServers.add(user.substring(user.indexOf('@') + 1));
+		}
+		insertServers(newServers);
+	}
+	
+	public void insertServer(String server) {
+		insertServers(Collections.singleton(server));
+	}
+	
+	/**
+	 * Inserts the servers that are not subscribed yet. Servers
+	 * that could not be inserted are tried again next time.
+	 * 
+	 * @param candidates
+	 */
+	public void insertServers(Collection<String> candidates) {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (String server : new LinkedHashSet<String>(candidates)) {
+			if (!servers.contains(server)) {
+				rows.add(new Object[] {server});
+			}
+		}
+		for (Object[] row : insertBatch("INSERT INTO subscribed_server(name) values (?)", rows)) {
+			servers.add((String) row[0]);
+		}
+	}
+	
+	public boolean isNodeSubscribed(String node, String server) {
+		ConcurrentMap<String, NodeState> serverNodes = nodes.get(server);
+		return serverNodes != null && serverNodes.containsKey(node);
+	}
+	
+	public void insertNode(String node, String server) {
+		insertNodes(Collections.singleton(node), server);
+	}
+	
+	/**
+	 * Inserts the nodes of the given server that are not subscribed yet.
+	 * Nodes that could not be inserted are tried again next time.
+	 * 
+	 * @param candidates
+	 * @param server
+	 */
+	public void insertNodes(Collection<String> candidates, String server) {
+		ConcurrentMap<String, NodeState> serverNodes = getServerNodes(server);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (String node : new LinkedHashSet<String>(candidates)) {
+			if (!serverNodes.containsKey(node)) {
+				rows.add(new Object[] {node, server});
+			}
+		}
+		for (Object[] row : insertBatch(
+				"INSERT INTO subscribed_node(name, server) values (?, ?)", rows)) {
+			serverNodes.putIfAbsent((String) row[0], new NodeState());
+		}
+	}
+	
+	/**
+	 * @param server
+	 * @return every subscribed node of the given server
+	 */
+	public Set<String> getNodes(String server) {
+		ConcurrentMap<String, NodeState> serverNodes = nodes.get(server);
+		if (serverNodes == null) {
+			return Collections.emptySet();
+		}
+		return new HashSet<String>(serverNodes.keySet());
+	}
+	
+	/**
+	 * Removes the given nodes of the given server, in a single batch.
+	 * 
+	 * @param removedNodes
+	 * @param server
+	 * @throws SQLException
+	 */
+	public void removeNodes(Collection<String> removedNodes, String server) throws SQLException {
+		if (removedNodes.isEmpty()) {
+			return;
+		}
+		Connection connection = null;
+		PreparedStatement statement = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.prepareStatement(
+					"DELETE FROM subscribed_node WHERE name = ? AND server = ?");
+			for (String node : removedNodes) {
+				statement.setString(1, node);
+				statement.setString(2, server);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		} finally {
+			close(connection, statement);
+		}
+		
+		ConcurrentMap<String, NodeState> serverNodes = nodes.get(server);
+		if (serverNodes != null) {
+			serverNodes.keySet().removeAll(removedNodes);
+		}
+	}
+	
+	public String getLastItemCrawled(String node, String server) {
+		ConcurrentMap<String, NodeState> serverNodes = nodes.get(server);
+		if (serverNodes == null) {
+			return null;
+		}
+		NodeState nodeState = serverNodes.get(node);
+		return nodeState == null ? null : nodeState.lastItemCrawled;
+	}
+	
+	public void updateLastItemCrawled(String node, String lastItemCrawled, String server) {
+		if (lastItemCrawled == null) {
+			return;
+		}
+		ConcurrentMap<String, NodeState> serverNodes = nodes.get(server);
+		NodeState nodeState = serverNodes == null ? null : serverNodes.get(node);
+		if (nodeState == null || lastItemCrawled.equals(nodeState.lastItemCrawled)) {
+			return;
+		}
+		
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.prepareStatement(
+					"UPDATE subscribed_node SET last_item_crawled = ? " +
+					"WHERE name = ? AND server = ?", 
+					lastItemCrawled, node, server);
+			statement.execute();
+			nodeState.lastItemCrawled = lastItemCrawled;
+		} catch (SQLException e1) {
+			LOGGER.error("Could not update last item crawled on " + 
+					node + " at " + server, e1);
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+	
+	/**
+	 * @param sql
+	 * @param rows
+	 * @return the rows that are in the database now, inserted
+	 * or already there
+	 */
+	private List<Object[]> insertBatch(String sql, List<Object[]> rows) {
+		if (rows.isEmpty()) {
+			return rows;
+		}
+		
+		Connection connection = null;
+		PreparedStatement statement = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.prepareStatement(sql);
+			for (Object[] row : rows) {
+				for (int i = 0; i < row.length; i++) {
+					statement.setObject(i + 1, row[i]);
+				}
+				statement.addBatch();
+			}
+			statement.executeBatch();
+			return rows;
+		} catch (SQLException e) {
+			LOGGER.warn("Could not insert batch, retrying row by row.", e);
+		} finally {
+			close(connection, statement);
+		}
+		
+		// Rows already in the database make the whole 
+		// batch fail, so fall back to inserting row by row
+		return insertRows(sql, rows);
+	}
+	
+	private static void close(Connection connection, Statement statement) {
+		if (statement != null) {
+			ChannelDirectoryDataSource.close(statement);
+			return;
+		}
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOGGER.warn(e);
+			}
+		}
+	}
+	
+	private List<Object[]> insertRows(String sql, List<Object[]> rows) {
+		List<Object[]> inserted = new ArrayList<Object[]>();
+		for (Object[] row : rows) {
+			PreparedStatement statement = null;
+			try {
+				statement = dataSource.prepareStatement(sql, row);
+				statement.execute();
+				inserted.add(row);
+			} catch (SQLException e) {
+				// Integrity constraint violation, the row is there already
+				if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+					inserted.add(row);
+				} else {
+					LOGGER.warn("Could not insert " + row[0], e);
+				}
+			} finally {
+				ChannelDirectoryDataSource.close(statement);
+			}
+		}
+		return inserted;
+	}
+	
+	private static class NodeState {
+		private volatile String lastItemCrawled;
+	}
+}
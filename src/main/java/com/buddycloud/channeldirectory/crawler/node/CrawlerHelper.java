@@ -15,37 +15,25 @@
  */
 package com.buddycloud.channeldirectory.crawler.node;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.io.StringReader;
 
-import org.apache.log4j.Logger;
-import org.dom4j.DocumentException;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
 import org.jivesoftware.smack.packet.PacketExtension;
-import org.jivesoftware.smackx.pubsub.BuddycloudNode;
+import org.jivesoftware.smackx.pubsub.BuddycloudAtomEntry;
+import org.jivesoftware.smackx.pubsub.BuddycloudAtomEntryProvider;
 import org.jivesoftware.smackx.pubsub.Item;
 import org.jivesoftware.smackx.pubsub.PayloadItem;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
 
-import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
 
 /**
  *
  */
 public class CrawlerHelper {
 
-	private static Logger LOGGER = Logger.getLogger(CrawlerHelper.class);
-	
-	/**
-	 * @param user
-	 * @throws SQLException 
-	 */
-	public static void enqueueNewServer(String user, 
-			ChannelDirectoryDataSource dataSource) {
-		String server = user.substring(user.indexOf('@') + 1);
-		insertServer(server, dataSource);
-	}
+	private static final BuddycloudAtomEntryProvider ATOM_ENTRY_PROVIDER = 
+			new BuddycloudAtomEntryProvider();
 
 	public static String getNodeId(String nodeFullJid) {
 		String[] nodeFullJidSplitted = nodeFullJid.split("/");
@@ -58,163 +46,44 @@ public class CrawlerHelper {
 		return nodeId;
 	}
 
-	public static void insertServer(String server, ChannelDirectoryDataSource dataSource) {
-		
-		if (CrawlerHelper.isServerSubscribed(server, dataSource)) {
-			return;
-		}
-		
-		PreparedStatement statement = null;
-		
-		try {
-			statement = dataSource.prepareStatement(
-					"INSERT INTO subscribed_server(name) values (?)", 
-					server);
-			statement.execute();
-		} catch (SQLException e) {
-			LOGGER.error("Could not insert server " + server, e);
-		} finally {
-			ChannelDirectoryDataSource.close(statement);
-		}
-	}
-
-	private static boolean isServerSubscribed(String server, ChannelDirectoryDataSource dataSource) {
-		
-		PreparedStatement statement = null;
-		try {
-			statement = dataSource.prepareStatement(
-					"SELECT * FROM subscribed_server WHERE name = ?", 
-					server);
-			ResultSet resultSet = statement.executeQuery();
-			
-			return resultSet.next();
-			
-		} catch (SQLException e1) {
-			LOGGER.error(e1);
-			return false;
-		} finally {
-			ChannelDirectoryDataSource.close(statement);
-		}
-		
-	}
-	
-	public static void insertNode(BuddycloudNode node, String server, ChannelDirectoryDataSource dataSource) {
+	/**
+	 * Returns the {@link PostData} parsed by {@link BuddycloudAtomEntryProvider}
+	 * when the item was read. Payloads that reached us without going
+	 * through the provider are parsed here, with the same provider.
+	 * 
+	 * The returned {@link PostData} is the one held by the payload, 
+	 * not a copy, so changes to it, such as the ones made by
+	 * {@link PostCrawler#processPost}, show in the payload as well.
+	 * 
+	 * @param item
+	 * @return the {@link PostData} of the item's Atom entry
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	public static PostData getPostData(Item item) throws Exception {
+		PayloadItem<PacketExtension> payloadItem = (PayloadItem<PacketExtension>) item;
+		PacketExtension payload = payloadItem.getPayload();
 		
-		if (isNodeSubscribed(node, server, dataSource)) {
-			return;
+		if (payload instanceof BuddycloudAtomEntry) {
+			return ((BuddycloudAtomEntry) payload).getPostData();
 		}
 		
-		PreparedStatement statement = null;
-		try {
-			statement = dataSource.prepareStatement(
-					"INSERT INTO subscribed_node(name, server) values (?, ?)", 
-					node.getId(), server);
-			statement.execute();
-		} catch (SQLException e1) {
-			LOGGER.error("Could not insert node " + node + " " + server, e1);
-		} finally {
-			ChannelDirectoryDataSource.close(statement);
-		}
+		XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new StringReader(payload.toXML().toString()));
+		parser.nextTag();
 		
+		BuddycloudAtomEntry atomEntry = (BuddycloudAtomEntry) 
+				ATOM_ENTRY_PROVIDER.parseExtension(parser);
+		return atomEntry.getPostData();
 	}
 	
-	public static void updateLastItemCrawled(BuddycloudNode node, String lastItemCrawled, 
-			String server, ChannelDirectoryDataSource dataSource) {
-		if (lastItemCrawled == null || 
-				!isNodeSubscribed(node, server, dataSource)) {
-			return;
-		}
-		PreparedStatement statement = null;
-		try {
-			statement = dataSource.prepareStatement(
-					"UPDATE subscribed_node SET last_item_crawled = ? " +
-					"WHERE name = ? AND server = ?", 
-					lastItemCrawled, node.getId(), server);
-			statement.execute();
-		} catch (SQLException e1) {
-			LOGGER.error("Could not update last item crawled on " + 
-					node + " at " + server, e1);
-		} finally {
-			ChannelDirectoryDataSource.close(statement);
-		}
-	}
-	
-	public static String getLastItemCrawled(BuddycloudNode node, String server, 
-			ChannelDirectoryDataSource dataSource) {
-		
-		if (!isNodeSubscribed(node, server, dataSource)) {
-			return null;
-		}
-		PreparedStatement statement = null;
-		try {
-			statement = dataSource.prepareStatement(
-					"SELECT last_item_crawled FROM subscribed_node " +
-					"WHERE name = ? AND server = ?", 
-					node.getId(), server);
-			ResultSet resultSet = statement.executeQuery();
-			if (resultSet.next()) {
-				return resultSet.getString("last_item_crawled");
-			}
-			return null;
-		} catch (SQLException e1) {
-			LOGGER.error("Could not retrieve last item crawled from " + 
-					node + " at " + server, e1);
-			return null;
-		} finally {
-			ChannelDirectoryDataSource.close(statement);
-		}
-	}
-	
-	public static String getLastItemCrawled(String server, 
-			ChannelDirectoryDataSource dataSource) {
-		
-		PreparedStatement statement = null;
-		try {
-			statement = dataSource.prepareStatement(
-					"SELECT last_item_crawled FROM subscribed_node " +
-					"WHERE server = ? ORDER BY items_crawled DESC LIMIT 1", 
-					server);
-			ResultSet resultSet = statement.executeQuery();
-			if (resultSet.next()) {
-				return resultSet.getString("last_item_crawled");
-			}
-			return null;
-		} catch (SQLException e1) {
-			LOGGER.error("Could not retrieve last item crawled from " + server, e1);
-			return null;
-		} finally {
-			ChannelDirectoryDataSource.close(statement);
-		}
-	}
-	
-	private static boolean isNodeSubscribed(BuddycloudNode node, String server, ChannelDirectoryDataSource dataSource) {
-		
-		PreparedStatement statement = null;
-		try {
-			statement = dataSource.prepareStatement(
-					"SELECT * FROM subscribed_node WHERE name = ? AND server = ?", 
-					node.getId(), server);
-			ResultSet resultSet = statement.executeQuery();
-			
-			return resultSet.next();
-			
-		} catch (SQLException e1) {
-			LOGGER.error(e1);
-			return false;
-		} finally {
-			ChannelDirectoryDataSource.close(statement);
-		}
-		
-	}
-
-	@SuppressWarnings("unchecked")
-	public static Element getAtomEntry(Item item) throws DocumentException {
-		PayloadItem<PacketExtension> payloadItem = (PayloadItem<PacketExtension>) item;
-		PacketExtension payload = payloadItem.getPayload();
-		
-		Element atomEntry = DocumentHelper.parseText(
-				payload.toXML().toString()).getRootElement();
-		return atomEntry;
+	/**
+	 * @param atomId tag:server,node,item
+	 * @return the pubsub item id within the given Atom id
+	 */
+	public static String getItemIdFromAtomId(String atomId) {
+		return atomId.substring(atomId.lastIndexOf(',') + 1);
 	}
 	
 	public static String getNodeFromItemId(String itemId) {
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.buddycloud.channeldirectory.crawler.node.DiscoveryUtils.Discovery;
+
+/**
+ * Caches the channel server discovered on each domain in the
+ * channel_server and discovery_expires columns of subscribed_server,
+ * so DNS and XMPP disco are only asked again once it expires.
+ *
+ * Servers found in DNS are kept for the TTL of their SRV record, but
+ * at least crawler.discovery.minttl milliseconds, and servers found
+ * through XMPP disco for crawler.discovery.ttl milliseconds.
+ *
+ * Discoveries run on crawler.discovery.threads threads of their own.
+ * {@link #prefetch(Collection)} queues them for a whole crawl cycle
+ * ahead of time. {@link #discover(String)} runs a discovery that is 
+ * still queued on the calling thread, so it only ever waits for one
+ * that is already running.
+ *
+ */
+public class DiscoveryCache {
+
+	private static Logger LOGGER = Logger.getLogger(DiscoveryCache.class);
+
+	private static final long DEF_TTL = 60000 * 60 * 24; // 1 day
+	private static final long DEF_MIN_TTL = 60000 * 60; // 1 hour
+	private static final int DEF_THREADS = 4;
+
+	private final ChannelDirectoryDataSource dataSource;
+	private final Discoverer discoverer;
+	private final long ttl;
+	private final long minTtl;
+	private final ExecutorService executor;
+
+	private final ConcurrentMap<String, CachedServer> cache =
+			new ConcurrentHashMap<String, CachedServer>();
+	private final ConcurrentMap<String, FutureTask<String>> inFlight =
+			new ConcurrentHashMap<String, FutureTask<String>>();
+
+	public DiscoveryCache(Properties configuration,
+			ChannelDirectoryDataSource dataSource, Discoverer discoverer) {
+		this.dataSource = dataSource;
+		this.discoverer = discoverer;
+
+		String ttlStr = configuration.getProperty("crawler.discovery.ttl");
+		this.ttl = ttlStr == null ? DEF_TTL : Long.parseLong(ttlStr);
+
+		String minTtlStr = configuration.getProperty("crawler.discovery.minttl");
+		this.minTtl = minTtlStr == null ? DEF_MIN_TTL : Long.parseLong(minTtlStr);
+
+		String threadsStr = configuration.getProperty("crawler.discovery.threads");
+		int threads = threadsStr == null ? DEF_THREADS : Integer.parseInt(threadsStr);
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Loads every channel server discovered before.
+	 *
+	 * @throws SQLException
+	 */
+	public void load() throws SQLException {
+		Statement statement = dataSource.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(
+					"SELECT name, channel_server, discovery_expires FROM subscribed_server " +
+					"WHERE channel_server IS NOT NULL");
+			while (resultSet.next()) {
+				Timestamp expires = resultSet.getTimestamp("discovery_expires");
+				cache.put(resultSet.getString("name"), new CachedServer(
+						resultSet.getString("channel_server"),
+						expires == null ? 0 : expires.getTime()));
+			}
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+		LOGGER.info("Loaded " + cache.size() + " discovered channel servers.");
+	}
+
+	/**
+	 * Starts discovering the given domains in the background,
+	 * unless their channel server is cached or already being discovered.
+	 *
+	 * @param domains
+	 */
+	public void prefetch(Collection<String> domains) {
+		long now = System.currentTimeMillis();
+		for (String domain : domains) {
+			if (getCached(domain, now) == null) {
+				executor.execute(start(domain));
+			}
+		}
+	}
+
+	/**
+	 * @param domain
+	 * @return the channel server of the given domain, or null if there is none
+	 * @throws InterruptedException
+	 */
+	public String discover(String domain) throws InterruptedException {
+		String channelServer = getCached(domain, System.currentTimeMillis());
+		if (channelServer != null) {
+			return channelServer;
+		}
+		FutureTask<String> task = start(domain);
+		// Does nothing if a discovery thread got to it first
+		task.run();
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			LOGGER.warn("Could not discover the channel server of " + domain, e.getCause());
+			return null;
+		}
+	}
+
+	private String getCached(String domain, long now) {
+		CachedServer cached = cache.get(domain);
+		return cached == null || cached.expires <= now ? null : cached.channelServer;
+	}
+
+	/**
+	 * @return the discovery of the given domain in flight, 
+	 * a new one if there was none
+	 */
+	private FutureTask<String> start(final String domain) {
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				try {
+					return refresh(domain);
+				} finally {
+					inFlight.remove(domain);
+				}
+			}
+		});
+		FutureTask<String> running = inFlight.putIfAbsent(domain, task);
+		return running != null ? running : task;
+	}
+
+	private String refresh(String domain) {
+		Discovery discovery = discoverer.discover(domain);
+		if (discovery == null) {
+			if (cache.remove(domain) != null) {
+				store(domain, null, null);
+			}
+			return null;
+		}
+		long expires = System.currentTimeMillis() + (discovery.getTtl() < 0 ? ttl
+				: Math.max(minTtl, discovery.getTtl() * 1000));
+		cache.put(domain, new CachedServer(discovery.getChannelServer(), expires));
+		store(domain, discovery.getChannelServer(), new Timestamp(expires));
+		return discovery.getChannelServer();
+	}
+
+	private void store(String domain, String channelServer, Timestamp expires) {
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.prepareStatement(
+					"UPDATE subscribed_server SET channel_server = ?, discovery_expires = ? " +
+					"WHERE name = ?", channelServer, expires, domain);
+			statement.execute();
+		} catch (SQLException e) {
+			LOGGER.warn("Could not store the channel server of " + domain, e);
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Finds the channel server of a domain, see {@link DiscoveryUtils}.
+	 */
+	public static interface Discoverer {
+
+		/**
+		 * @param domain
+		 * @return the channel server of the given domain, or null if there is none
+		 */
+		Discovery discover(String domain);
+	}
+
+	private static class CachedServer {
+
+		private final String channelServer;
+		private final long expires;
+
+		public CachedServer(String channelServer, long expires) {
+			this.channelServer = channelServer;
+			this.expires = expires;
+		}
+	}
+}
@@ -24,24 +24,36 @@ public class DiscoveryUtils {
 	private static final String SRV_PREFIX = "_buddycloud-server._tcp.";
 	
     public static String discoverChannelServer(XMPPConnection connection, String domain) {
+    	Discovery discovery = discover(connection, domain);
+    	return discovery == null ? null : discovery.getChannelServer();
+    }
+    
+    /**
+     * @param connection
+     * @param domain
+     * @return the channel server of the given domain, with the TTL 
+     * of its SRV record if it was found in DNS, or null
+     */
+    public static Discovery discover(XMPPConnection connection, String domain) {
     	try {
-    		String channelServer = doDNSDiscovery(domain);
-			if (channelServer != null) {
-				return channelServer;
+    		Discovery discovery = doDNSDiscovery(domain);
+			if (discovery != null) {
+				return discovery;
 			}
 		} catch (Exception e) {
 			LOGGER.warn("No SRV records for " + domain + ", trying XMPP disco.");
 		}
     	
     	try {
-    		return doXMPPDiscovery(connection, domain);
+    		String channelServer = doXMPPDiscovery(connection, domain);
+    		return channelServer == null ? null : new Discovery(channelServer, -1);
     	} catch (Exception e) {
     		LOGGER.warn("No XMPP disco entries for " + domain + ", giving up.");
     		return null;
     	}
 	}
 
-	private static String doDNSDiscovery(String domain) throws TextParseException {
+	private static Discovery doDNSDiscovery(String domain) throws TextParseException {
 		Lookup lookup = new Lookup(SRV_PREFIX + domain, Type.SRV);
 		Record recs[] = lookup.run();
 		if (recs == null) {
@@ -53,7 +65,8 @@ public class DiscoveryUtils {
 			Name target = record.getTarget();
 			if (target != null) {
 				String targetStr = target.toString();
-				return targetStr.substring(0, targetStr.length() - 1);
+				return new Discovery(targetStr.substring(0, targetStr.length() - 1), 
+						record.getTTL());
 			}
 		}
 		return null;
@@ -96,4 +109,30 @@ public class DiscoveryUtils {
         return identity.getCategory().equals(IDENTITY_CATEGORY) && identity.getType().equals(IDENTITY_TYPE);
     }
 	
+	/**
+	 * A channel server found for a domain.
+	 */
+	public static class Discovery {
+		
+		private final String channelServer;
+		private final long ttl;
+		
+		public Discovery(String channelServer, long ttl) {
+			this.channelServer = channelServer;
+			this.ttl = ttl;
+		}
+		
+		public String getChannelServer() {
+			return channelServer;
+		}
+		
+		/**
+		 * @return the TTL of the SRV record in seconds, 
+		 * or -1 if the server was found through XMPP disco
+		 */
+		public long getTtl() {
+			return ttl;
+		}
+	}
+	
 }
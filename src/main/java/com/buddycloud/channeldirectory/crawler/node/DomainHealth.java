@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.commons.ConfigurationUtils;
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+/**
+ * In-process copy of the health columns of subscribed_server: when
+ * a channel server was last discovered on each domain, how many
+ * discoveries failed in a row since, and when the domain is worth
+ * trying again.
+ *
+ * Every failure doubles the wait before the next discovery, starting
+ * at crawler.domain.backoff milliseconds and up to crawler.domain.maxbackoff.
+ * After crawler.domain.quarantinethreshold failures in a row the domain
+ * is quarantined for crawler.domain.quarantine milliseconds, as most
+ * such domains are follower domains that never run a channel server.
+ * A single success clears it all.
+ *
+ */
+public class DomainHealth {
+
+	private static Logger LOGGER = Logger.getLogger(DomainHealth.class);
+
+	private static final long DEF_BACKOFF = 60000 * 60; // 1 hour
+	private static final long DEF_MAX_BACKOFF = 60000 * 60 * 24; // 1 day
+	private static final int DEF_QUARANTINE_THRESHOLD = 8;
+	private static final long DEF_QUARANTINE = 60000L * 60 * 24 * 30; // 30 days
+
+	private final ChannelDirectoryDataSource dataSource;
+	private final long backoff;
+	private final long maxBackoff;
+	private final int quarantineThreshold;
+	private final long quarantine;
+	private final ConcurrentMap<String, Health> domains =
+			new ConcurrentHashMap<String, Health>();
+
+	public DomainHealth(Properties configuration, ChannelDirectoryDataSource dataSource) {
+		this.dataSource = dataSource;
+
+		this.backoff = ConfigurationUtils.getLong(configuration, 
+				"crawler.domain.backoff", DEF_BACKOFF);
+		this.maxBackoff = ConfigurationUtils.getLong(configuration, 
+				"crawler.domain.maxbackoff", DEF_MAX_BACKOFF);
+		this.quarantineThreshold = ConfigurationUtils.getInt(configuration, 
+				"crawler.domain.quarantinethreshold", DEF_QUARANTINE_THRESHOLD);
+		this.quarantine = ConfigurationUtils.getLong(configuration, 
+				"crawler.domain.quarantine", DEF_QUARANTINE);
+	}
+
+	/**
+	 * Loads the health of every domain that failed or succeeded before.
+	 *
+	 * @throws SQLException
+	 */
+	public void load() throws SQLException {
+		Statement statement = dataSource.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(
+					"SELECT name, consecutive_failures, next_eligible " +
+					"FROM subscribed_server WHERE consecutive_failures > 0");
+			while (resultSet.next()) {
+				Health health = new Health();
+				health.failures = resultSet.getInt("consecutive_failures");
+				Timestamp nextEligible = resultSet.getTimestamp("next_eligible");
+				health.nextEligible = nextEligible == null ? 0 : nextEligible.getTime();
+				domains.put(resultSet.getString("name"), health);
+			}
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+		LOGGER.info(domains.size() + " domains are backing off or quarantined.");
+	}
+
+	/**
+	 * @param domain
+	 * @return whether the given domain is due for discovery
+	 */
+	public boolean isEligible(String domain) {
+		return isEligible(domain, System.currentTimeMillis());
+	}
+
+	boolean isEligible(String domain, long now) {
+		Health health = domains.get(domain);
+		return health == null || health.nextEligible <= now;
+	}
+
+	/**
+	 * Records a channel server found on the given domain.
+	 *
+	 * @param domain
+	 */
+	public void succeeded(String domain) {
+		long now = System.currentTimeMillis();
+		Health health = domains.remove(domain);
+		if (health != null) {
+			LOGGER.info("Domain " + domain + " is back after "
+					+ health.failures + " failed discoveries.");
+		}
+		store(domain, 0, new Timestamp(now), null);
+	}
+
+	/**
+	 * Records a failed discovery of the given domain.
+	 *
+	 * @param domain
+	 */
+	public void failed(String domain) {
+		long now = System.currentTimeMillis();
+		Health health = getHealth(domain);
+		int failures;
+		long delay;
+		synchronized (health) {
+			health.failures++;
+			if (health.failures >= quarantineThreshold) {
+				delay = quarantine;
+				if (health.failures == quarantineThreshold) {
+					LOGGER.info("Quarantining domain " + domain + " after "
+							+ health.failures + " failed discoveries.");
+				}
+			} else {
+				// Shift capped so it can't overflow
+				delay = Math.min(maxBackoff, backoff << Math.min(health.failures - 1, 30));
+			}
+			health.nextEligible = now + delay;
+			failures = health.failures;
+		}
+		store(domain, failures, null, new Timestamp(now + delay));
+	}
+
+	private Health getHealth(String domain) {
+		Health health = domains.get(domain);
+		if (health == null) {
+			Health newHealth = new Health();
+			health = domains.putIfAbsent(domain, newHealth);
+			if (health == null) {
+				health = newHealth;
+			}
+		}
+		return health;
+	}
+
+	private void store(String domain, int failures, Timestamp lastSuccess,
+			Timestamp nextEligible) {
+		PreparedStatement statement = null;
+		try {
+			if (lastSuccess != null) {
+				statement = dataSource.prepareStatement(
+						"UPDATE subscribed_server SET consecutive_failures = ?, " +
+						"last_success = ?, next_eligible = NULL WHERE name = ?",
+						failures, lastSuccess, domain);
+			} else {
+				statement = dataSource.prepareStatement(
+						"UPDATE subscribed_server SET consecutive_failures = ?, " +
+						"next_eligible = ? WHERE name = ?",
+						failures, nextEligible, domain);
+			}
+			statement.execute();
+		} catch (SQLException e) {
+			LOGGER.warn("Could not store the health of " + domain, e);
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+
+	private static class Health {
+		private volatile int failures;
+		private volatile long nextEligible;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+/**
+ * Stores the firehose cursor of every channel server in channel_server.
+ *
+ * The firehose is walked from the newest item down to the newest item
+ * of the previous complete pass (lastItem). While a pass is running,
+ * the newest item it started from (passNewest) and the oldest item
+ * indexed so far (passAfter) are saved after every page, as a single
+ * row update, so a crawl interrupted by a crash resumes right after
+ * the last indexed page instead of walking the firehose again.
+ * 
+ * The published dates of lastItem and passNewest are kept as well,
+ * so a pass still stops where it should when lastItem was retracted.
+ *
+ */
+public class FirehoseCheckpoints {
+
+	private final ChannelDirectoryDataSource dataSource;
+
+	public FirehoseCheckpoints(ChannelDirectoryDataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * @param server
+	 * @return the firehose checkpoint of the given server,
+	 * an empty one if its firehose was never crawled
+	 * @throws SQLException
+	 */
+	public Checkpoint get(String server) throws SQLException {
+		PreparedStatement statement = dataSource.prepareStatement(
+				"SELECT firehose_last_item, firehose_last_published, " +
+				"firehose_pass_newest, firehose_pass_newest_published, firehose_pass_after " +
+				"FROM channel_server WHERE name = ?", server);
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			if (!resultSet.next()) {
+				return new Checkpoint(null, null, null, null, null);
+			}
+			return new Checkpoint(resultSet.getString("firehose_last_item"),
+					resultSet.getTimestamp("firehose_last_published"),
+					resultSet.getString("firehose_pass_newest"),
+					resultSet.getTimestamp("firehose_pass_newest_published"),
+					resultSet.getString("firehose_pass_after"));
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+
+	/**
+	 * Saves the checkpoint of the given server in a single statement.
+	 *
+	 * @param server
+	 * @param checkpoint
+	 * @throws SQLException
+	 */
+	public void save(String server, Checkpoint checkpoint) throws SQLException {
+		PreparedStatement statement = dataSource.prepareStatement(
+				"UPDATE channel_server SET firehose_last_item = ?, " +
+				"firehose_last_published = ?, firehose_pass_newest = ?, " +
+				"firehose_pass_newest_published = ?, firehose_pass_after = ? " +
+				"WHERE name = ?",
+				checkpoint.getLastItem(), toTimestamp(checkpoint.getLastPublished()), 
+				checkpoint.getPassNewest(), toTimestamp(checkpoint.getPassNewestPublished()),
+				checkpoint.getPassAfter(), server);
+		try {
+			statement.execute();
+			if (statement.getUpdateCount() > 0) {
+				return;
+			}
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+
+		statement = dataSource.prepareStatement(
+				"INSERT INTO channel_server(name, firehose_last_item, " +
+				"firehose_last_published, firehose_pass_newest, " +
+				"firehose_pass_newest_published, firehose_pass_after) " +
+				"VALUES (?, ?, ?, ?, ?, ?)",
+				server, checkpoint.getLastItem(), toTimestamp(checkpoint.getLastPublished()), 
+				checkpoint.getPassNewest(), toTimestamp(checkpoint.getPassNewestPublished()),
+				checkpoint.getPassAfter());
+		try {
+			statement.execute();
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+	
+	private static Timestamp toTimestamp(Date date) {
+		return date == null ? null : new Timestamp(date.getTime());
+	}
+
+	public static class Checkpoint {
+
+		private final String lastItem;
+		private final Date lastPublished;
+		private final String passNewest;
+		private final Date passNewestPublished;
+		private final String passAfter;
+
+		public Checkpoint(String lastItem, Date lastPublished, String passNewest, 
+				Date passNewestPublished, String passAfter) {
+			this.lastItem = lastItem;
+			this.lastPublished = lastPublished;
+			this.passNewest = passNewest;
+			this.passNewestPublished = passNewestPublished;
+			this.passAfter = passAfter;
+		}
+
+		/**
+		 * @return the newest item of the last complete pass
+		 */
+		public String getLastItem() {
+			return lastItem;
+		}
+
+		/**
+		 * @return the published date of the last item
+		 */
+		public Date getLastPublished() {
+			return lastPublished;
+		}
+
+		/**
+		 * @return the newest item of the running pass
+		 */
+		public String getPassNewest() {
+			return passNewest;
+		}
+
+		/**
+		 * @return the published date of the newest item of the running pass
+		 */
+		public Date getPassNewestPublished() {
+			return passNewestPublished;
+		}
+
+		/**
+		 * @return the oldest item indexed by the running pass
+		 */
+		public String getPassAfter() {
+			return passAfter;
+		}
+
+		/**
+		 * @return whether a pass was interrupted before
+		 * reaching the last item
+		 */
+		public boolean isInterrupted() {
+			return passAfter != null;
+		}
+	}
+}
@@ -15,25 +15,38 @@
  */
 package com.buddycloud.channeldirectory.crawler.node;
 
+import java.io.IOException;
+import java.util.Date;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Properties;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.dom4j.Element;
-import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smackx.pubsub.BuddycloudNode;
 import org.jivesoftware.smackx.pubsub.Item;
 import org.jivesoftware.smackx.pubsub.Node;
-import org.jivesoftware.smackx.rsm.packet.RSMSet;
 
-import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.buddycloud.channeldirectory.crawler.node.FirehoseCheckpoints.Checkpoint;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
 
 /**
  * Responsible for crawling {@link Node} data
  * regarding its posts.
+ * 
+ * The firehose is crawled from the checkpoint kept by
+ * {@link FirehoseCheckpoints}, so a crawl only fetches the items
+ * published since the previous one, and an interrupted crawl 
+ * picks up right after its last indexed page. A pass stops at the
+ * last item of the previous one, or at the first item published 
+ * before it, should that item have been retracted since.
+ * 
+ * The lease of the server is renewed after every page, and a crawl
+ * stops, to be resumed on the next cycle, once it ran for the crawl
+ * budget or lost the lease.
+ * 
+ * A crawl that neither paged with RSM nor reached the checkpoint may
+ * have missed items, and fails once its items are indexed, so the
+ * server is not taken for one with a working firehose.
  *  
  */
 public class FirehoseCrawler implements NodeCrawler {
@@ -43,12 +56,25 @@ public class FirehoseCrawler implements NodeCrawler {
 	 */
 	private static Logger LOGGER = Logger.getLogger(FirehoseCrawler.class);
 	
-	private final ChannelDirectoryDataSource dataSource;
-	private PostCrawler postCrawler;
+	private final PostCrawler postCrawler;
+	private final CrawlState crawlState;
+	private final FirehoseCheckpoints checkpoints;
+	private final RSMPageSizes pageSizes;
+	private final ServerLeases leases;
+	private final long budget;
 	
-	public FirehoseCrawler(Properties configuration, ChannelDirectoryDataSource dataSource) {
-		this.dataSource = dataSource;
-		this.postCrawler = new PostCrawler(configuration, dataSource);
+	/**
+	 * @param budget how long a crawl may run, in milliseconds
+	 */
+	public FirehoseCrawler(PostCrawler postCrawler, CrawlState crawlState, 
+			FirehoseCheckpoints checkpoints, RSMPageSizes pageSizes,
+			ServerLeases leases, long budget) {
+		this.postCrawler = postCrawler;
+		this.crawlState = crawlState;
+		this.checkpoints = checkpoints;
+		this.pageSizes = pageSizes;
+		this.leases = leases;
+		this.budget = budget;
 	}
 	
 	/* (non-Javadoc)
@@ -57,48 +83,105 @@ public class FirehoseCrawler implements NodeCrawler {
 	@Override
 	public void crawl(BuddycloudNode node, String server) throws Exception {
 		
-		String newerThan = CrawlerHelper.getLastItemCrawled(server, dataSource);
-		String olderItemId = null;
+		long deadline = System.currentTimeMillis() + budget;
+		Checkpoint checkpoint = checkpoints.get(server);
+		if (checkpoint.isInterrupted()) {
+			LOGGER.info("Resuming interrupted firehose crawl of " + server 
+					+ " after item " + checkpoint.getPassAfter());
+			checkpoint = crawlPass(node, server, checkpoint, deadline);
+			if (checkpoint == null) {
+				return;
+			}
+		}
+		crawlPass(node, server, checkpoint, deadline);
+	}
+
+	/**
+	 * Walks the firehose down to the last item of the previous pass,
+	 * or to the first item older than it, saving the checkpoint after 
+	 * every indexed page.
+	 * 
+	 * @return the checkpoint of the completed pass, or null if
+	 * the pass stopped at the deadline or lost the lease
+	 */
+	private Checkpoint crawlPass(BuddycloudNode node, String server, 
+			Checkpoint checkpoint, long deadline) throws Exception {
 		
+		String lastItem = checkpoint.getLastItem();
+		Date lastPublished = checkpoint.getLastPublished();
+		String newestItemId = checkpoint.getPassNewest();
+		Date newestPublished = checkpoint.getPassNewestPublished();
+		String olderItemId = checkpoint.getPassAfter();
+		
+		// Only a pass started from the top sees the newest item of each node
+		boolean resumed = checkpoint.isInterrupted();
 		Set<String> nodesAlreadyVisited = new HashSet<String>();
+		boolean reachedLastItem = false;
 		
-		while (true) {
-			List<PacketExtension> additionalExtensions = new LinkedList<PacketExtension>();
-			List<PacketExtension> returnedExtensions = new LinkedList<PacketExtension>();
-			List<Item> items = null;
-			if (olderItemId != null) {
-				RSMSet nextRsmSet = RSMSet.newAfter(olderItemId);
-				additionalExtensions.add(nextRsmSet);
-			}
-			items = node.getItems(additionalExtensions, returnedExtensions);
-			if (items.isEmpty()) {
-				break;
-			}
-			boolean done = false;
-			for (Item item : items) {
-				Element itemEntry = CrawlerHelper.getAtomEntry(item);
-				String itemId = itemEntry.elementText("id");
-				if (newerThan != null && itemId.equals(newerThan)) {
-					done = true;
+		RSMPageIterator<Item> pages = RSMPageIterator.items(node, olderItemId, lastItem, 
+				pageSizes, server);
+		try {
+			List<Item> items;
+			while ((items = pages.next()) != null) {
+				for (Item item : items) {
+					PostData postData = CrawlerHelper.getPostData(item);
+					String itemId = postData.getId();
+					Date published = postData.getPublished();
+					if (itemId.equals(lastItem) || (lastPublished != null 
+							&& published != null && published.before(lastPublished))) {
+						reachedLastItem = true;
+						break;
+					}
+					if (newestItemId == null) {
+						newestItemId = itemId;
+						newestPublished = published;
+					}
+					olderItemId = itemId;
+					try {
+						String nodeId = CrawlerHelper.getNodeFromItemId(itemId);
+						postCrawler.processPost(nodeId, 
+								CrawlerHelper.getChannelFromNode(nodeId), postData);
+						if (!resumed && nodesAlreadyVisited.add(nodeId)) {
+							crawlState.updateLastItemCrawled(nodeId, itemId, server);
+						}
+					} catch (IOException e) {
+						// Not in the ingest log, so the checkpoint must not move past it
+						throw e;
+					} catch (Exception e) {
+						LOGGER.warn(e);
+					}
+				}
+				postCrawler.flush();
+				// Another instance may have taken over, and its checkpoint with it
+				if (!leases.renew(server)) {
+					LOGGER.warn("Lost the lease of " + server + ", stopping its firehose crawl.");
+					return null;
+				}
+				if (reachedLastItem) {
 					break;
 				}
-				olderItemId = itemId;
-				try {
-					String nodeId = CrawlerHelper.getNodeFromItemId(itemId);
-					postCrawler.processPost(nodeId, 
-							CrawlerHelper.getChannelFromNode(nodeId), item);
-					if (nodesAlreadyVisited.add(nodeId)) {
-						CrawlerHelper.updateLastItemCrawled(node, 
-								itemId, server, dataSource);
-					}
-				} catch (Exception e) {
-					LOGGER.warn(e);
+				checkpoints.save(server, new Checkpoint(lastItem, lastPublished, 
+						newestItemId, newestPublished, olderItemId));
+				if (System.currentTimeMillis() > deadline) {
+					LOGGER.info("Crawl budget of " + server + " is over, firehose crawl " 
+							+ "resumes after item " + olderItemId + " on the next cycle.");
+					return null;
 				}
 			}
-			if (done) {
-				break;
-			}
+		} finally {
+			pages.close();
+		}
+		
+		Checkpoint completed = newestItemId == null ? 
+				new Checkpoint(lastItem, lastPublished, null, null, null) : 
+				new Checkpoint(newestItemId, newestPublished, null, null, null);
+		checkpoints.save(server, completed);
+		
+		if (!reachedLastItem && !pages.isPaged()) {
+			throw new IllegalStateException("Firehose of " + server 
+					+ " was neither paged with RSM nor walked down to item " + lastItem);
 		}
+		return completed;
 	}
 
 
@@ -17,36 +17,69 @@ package com.buddycloud.channeldirectory.crawler.node;
 
 import java.sql.Date;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.packet.PacketExtension;
-import org.jivesoftware.smack.util.PacketUtil;
+import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.pubsub.BuddycloudAffiliation;
 import org.jivesoftware.smackx.pubsub.BuddycloudNode;
 import org.jivesoftware.smackx.pubsub.Node;
 import org.jivesoftware.smackx.rsm.packet.RSMSet;
 
 import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.buddycloud.channeldirectory.crawler.XMPPConnectionPool;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Responsible for crawling {@link Node} data
- * regarding subscribers. 
+ * regarding subscribers. Every page of affiliations
+ * is written to the taste tables as a single batch.
+ * 
+ * The crawler's own accounts follow every posts node to receive 
+ * pushes, so they are left out of the followers.
  * 
  */
 public class FollowerCrawler implements NodeCrawler {
 
 	private static Logger LOGGER = Logger.getLogger(FollowerCrawler.class);
 	
+	private static final int DEF_JID_CACHE_SIZE = 100000;
+	
 	private final ChannelDirectoryDataSource dataSource;
+	private final CrawlState crawlState;
+	private final FollowerWriter followerWriter;
+	private final RSMPageSizes pageSizes;
+	private final Set<String> crawlerJids;
 	
-	public FollowerCrawler(ChannelDirectoryDataSource dataSource) {
+	public FollowerCrawler(Properties configuration, ChannelDirectoryDataSource dataSource, 
+			CrawlState crawlState, RSMPageSizes pageSizes, XMPPConnectionPool connectionPool) {
 		this.dataSource = dataSource;
+		this.crawlState = crawlState;
+		this.pageSizes = pageSizes;
+		
+		String jidCacheSizeStr = configuration.getProperty("crawler.jidcachesize");
+		int jidCacheSize = jidCacheSizeStr == null ? DEF_JID_CACHE_SIZE 
+				: Integer.parseInt(jidCacheSizeStr);
+		this.followerWriter = new FollowerWriter(dataSource, jidCacheSize);
+		this.crawlerJids = getCrawlerJids(connectionPool);
+	}
+	
+	/**
+	 * @return the bare JIDs of every crawler connection
+	 */
+	private static Set<String> getCrawlerJids(XMPPConnectionPool connectionPool) {
+		Set<String> crawlerJids = new HashSet<String>();
+		for (XMPPConnection connection : connectionPool.getConnections()) {
+			crawlerJids.add(StringUtils.parseBareAddress(connection.getUser()).toLowerCase());
+		}
+		return crawlerJids;
 	}
 
 	/* (non-Javadoc)
@@ -55,22 +88,32 @@ public class FollowerCrawler implements NodeCrawler {
 	@Override
 	public void crawl(BuddycloudNode node, String server) throws Exception {
 		String nodeId = node.getId();
-		LOGGER.debug("Fetching followers for " + nodeId);
-		
-		List<BuddycloudAffiliation> affiliations = getAffiliations(node);
-		
 		String nodeSimpleId = CrawlerHelper.getNodeId(nodeId);
 		
 		if (nodeSimpleId == null) {
 			return;
 		}
 		
-		for (BuddycloudAffiliation affiliation : affiliations) {
-			try {
-				processAffiliation(nodeSimpleId, affiliation);
-			} catch (Exception e) {
-				LOGGER.warn(e);
+		LOGGER.debug("Fetching followers for " + nodeId);
+		
+		RSMPageIterator<BuddycloudAffiliation> pages = 
+				new RSMPageIterator<BuddycloudAffiliation>(new AffiliationPager(node), null, 
+						pageSizes, server);
+		try {
+			while (true) {
+				List<BuddycloudAffiliation> nodeAffiliations = null;
+				try {
+					nodeAffiliations = pages.next();
+				} catch (Exception e) {
+					break;
+				}
+				if (nodeAffiliations == null) {
+					break;
+				}
+				processAffiliations(nodeSimpleId, nodeAffiliations);
 			}
+		} finally {
+			pages.close();
 		}
 	
 		try {
@@ -81,53 +124,53 @@ public class FollowerCrawler implements NodeCrawler {
 		
 	}
 
-	private void processAffiliation(String itemJID, BuddycloudAffiliation affiliation)
-			throws SQLException {
-		String user = affiliation.getNodeId();
-		
-		CrawlerHelper.enqueueNewServer(user, dataSource);
+	/**
+	 * Pages after the RSM last of every page, until 
+	 * as many affiliations as the RSM count were fetched.
+	 */
+	private static class AffiliationPager implements RSMPageIterator.Pager<BuddycloudAffiliation> {
 		
-		Long userId = fetchRowId(user, "t_user");
-		Long itemId = fetchRowId(itemJID, "item");
+		private final BuddycloudNode node;
+		private int affiliationCount;
 		
-		boolean affiliationExists = affiliationExists(userId, itemId);
+		public AffiliationPager(BuddycloudNode node) {
+			this.node = node;
+		}
 		
-		LOGGER.debug(user + " follows " + itemJID + 
-				". Affiliation exists? " + affiliationExists);
+		@Override
+		public ListenableFuture<List<BuddycloudAffiliation>> fetch(
+				List<PacketExtension> additionalExtensions,
+				List<PacketExtension> returnedExtensions) {
+			return node.getBuddycloudAffiliationsAsync(additionalExtensions, returnedExtensions);
+		}
 		
-		if (!affiliationExists) {
-			insertTaste(userId, itemId);
+		@Override
+		public String getAfter(List<BuddycloudAffiliation> page, RSMSet returnedRsmSet) {
+			affiliationCount += page.size();
+			if (returnedRsmSet == null || 
+					affiliationCount == returnedRsmSet.getCount()) {
+				return null;
+			}
+			return returnedRsmSet.getLast();
 		}
 	}
 
-	private boolean affiliationExists(Long userId, Long itemId)
-			throws SQLException {
-		Statement selectTasteSt = null;
-		try {
-			selectTasteSt = dataSource.createStatement();
-			ResultSet selectTasteResult = selectTasteSt.executeQuery(
-					"SELECT * FROM taste_preferences WHERE user_id = '" + userId + "' " +
-							"AND item_id = '" + itemId + "'");
-			return selectTasteResult.next();
-		} catch (SQLException e) {
-			LOGGER.error(e);
-			throw e;
-		} finally {
-			ChannelDirectoryDataSource.close(selectTasteSt);
+	private void processAffiliations(String itemJID, 
+			List<BuddycloudAffiliation> affiliations) {
+		List<String> users = new ArrayList<String>(affiliations.size());
+		for (BuddycloudAffiliation affiliation : affiliations) {
+			String user = affiliation.getNodeId();
+			if (!crawlerJids.contains(user.toLowerCase())) {
+				users.add(user);
+			}
 		}
-	}
-
-	private void insertTaste(Long userId, Long itemId) throws SQLException {
-		Statement insertTasteSt = null;
+		
+		crawlState.enqueueNewServers(users);
+		
 		try {
-			insertTasteSt = dataSource.createStatement();
-			insertTasteSt.execute("INSERT INTO taste_preferences(user_id, item_id) " +
-					"VALUES ('" + userId + "', '" + itemId + "')");
+			followerWriter.addFollowers(itemJID, users);
 		} catch (SQLException e) {
-			LOGGER.error(e);
-			throw e;
-		} finally {
-			ChannelDirectoryDataSource.close(insertTasteSt);
+			LOGGER.warn("Could not write followers of " + itemJID, e);
 		}
 	}
 
@@ -145,44 +188,6 @@ public class FollowerCrawler implements NodeCrawler {
 			ChannelDirectoryDataSource.close(prepareStatement);
 		}
 	}
-	
-	private Long fetchRowId(String user, String tableName) throws SQLException {
-		Statement selectRowSt =null;
-		try {
-			selectRowSt = dataSource.createStatement();
-			ResultSet selectRowResult = selectRowSt.executeQuery(
-					"SELECT id FROM " + tableName + " WHERE jid = '" + user + "'");
-			Long userId = null;
-			
-			if (selectRowResult.next()) {
-				userId = selectRowResult.getLong("id");
-			} else {
-				userId = insertTasteObject(user, tableName);
-			}
-			return userId;
-		} catch (SQLException e) {
-			LOGGER.error(e);
-			throw e;
-		} finally {
-			ChannelDirectoryDataSource.close(selectRowSt);
-		}
-	}
-
-	private Long insertTasteObject(String object, String tableName) throws SQLException {
-		Statement insertRowSt = null;
-		try {
-			insertRowSt = dataSource.createStatement();
-			insertRowSt.execute("INSERT INTO " + tableName + "(jid) VALUES ('" + object + "') RETURNING id");
-			ResultSet insertUserResult = insertRowSt.getResultSet();
-			insertUserResult.next();
-			return insertUserResult.getLong("id");
-		} catch (SQLException e) {
-			LOGGER.error(e);
-			throw e;
-		} finally {
-			ChannelDirectoryDataSource.close(insertRowSt);
-		}
-	}
 
 	/* (non-Javadoc)
 	 * @see com.buddycloud.channeldirectory.crawler.node.NodeCrawler#accept(org.jivesoftware.smackx.pubsub.Node)
@@ -191,42 +196,4 @@ public class FollowerCrawler implements NodeCrawler {
 	public boolean accept(BuddycloudNode node) {
 		return node.getId().endsWith("/posts");
 	}
-	
-	private List<BuddycloudAffiliation> getAffiliations(BuddycloudNode node) throws XMPPException {
-		
-		List<BuddycloudAffiliation> allAffiliations = new LinkedList<BuddycloudAffiliation>();
-		
-		RSMSet nextRsmSet = null;
-		
-		while (true) {
-			
-			List<PacketExtension> additionalExtensions = new LinkedList<PacketExtension>();
-			List<PacketExtension> returnedExtensions = new LinkedList<PacketExtension>();
-			if (nextRsmSet != null) {
-				additionalExtensions.add(nextRsmSet);
-			}
-			
-			List<BuddycloudAffiliation> nodeAffiliations = null;
-			try {
-				nodeAffiliations = node.getBuddycloudAffiliations(
-						additionalExtensions, returnedExtensions);
-			} catch (Exception e) {
-				break;
-			}
-			
-			allAffiliations.addAll(nodeAffiliations);
-			
-			RSMSet returnedRsmSet = PacketUtil.packetExtensionfromCollection(
-					returnedExtensions, RSMSet.ELEMENT, RSMSet.NAMESPACE);
-			
-			if (returnedRsmSet == null || 
-					allAffiliations.size() == returnedRsmSet.getCount()) {
-				break;
-			}
-			
-			nextRsmSet = RSMSet.newAfter(returnedRsmSet.getLast());
-		}
-		
-		return allAffiliations;
-	}
 }
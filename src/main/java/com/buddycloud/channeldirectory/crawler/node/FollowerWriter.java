@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+/**
+ * Writes followers into the taste tables used by the recommender,
+ * a whole page of affiliations at a time.
+ * 
+ * Ids of t_user and item rows are kept in an LRU dictionary, so
+ * a page of known followers costs a single INSERT ... SELECT that
+ * skips the preferences already in taste_preferences.
+ *
+ */
+public class FollowerWriter {
+
+	private static final int MAX_ROWS_PER_STATEMENT = 500;
+	
+	private final ChannelDirectoryDataSource dataSource;
+	private final Map<String, Long> userIds;
+	private final Map<String, Long> itemIds;
+	
+	public FollowerWriter(ChannelDirectoryDataSource dataSource, int cacheSize) {
+		this.dataSource = dataSource;
+		this.userIds = new ConcurrentLinkedHashMap.Builder<String, Long>()
+				.maximumWeightedCapacity(cacheSize).build();
+		this.itemIds = new ConcurrentLinkedHashMap.Builder<String, Long>()
+				.maximumWeightedCapacity(cacheSize).build();
+	}
+	
+	/**
+	 * Records that every user follows the given item,
+	 * creating the user and item rows that are missing.
+	 * 
+	 * @param itemJid
+	 * @param userJids
+	 * @throws SQLException
+	 */
+	public void addFollowers(String itemJid, Collection<String> userJids) 
+			throws SQLException {
+		if (userJids.isEmpty()) {
+			return;
+		}
+		
+		Connection connection = dataSource.getConnection();
+		try {
+			Long itemId = resolveIds(connection, "item", itemIds, 
+					Collections.singleton(itemJid)).get(itemJid);
+			Map<String, Long> users = resolveIds(connection, "t_user", userIds, 
+					new LinkedHashSet<String>(userJids));
+			insertTastes(connection, itemId, new LinkedHashSet<Long>(users.values()));
+		} finally {
+			connection.close();
+		}
+	}
+	
+	/**
+	 * Looks the given jids up in the cache, then in the table, 
+	 * and inserts the ones that are still missing.
+	 */
+	private static Map<String, Long> resolveIds(Connection connection, String tableName, 
+			Map<String, Long> cache, Set<String> jids) throws SQLException {
+		
+		Map<String, Long> ids = new HashMap<String, Long>();
+		List<String> misses = new ArrayList<String>();
+		for (String jid : jids) {
+			Long id = cache.get(jid);
+			if (id == null) {
+				misses.add(jid);
+			} else {
+				ids.put(jid, id);
+			}
+		}
+		
+		if (misses.isEmpty()) {
+			return ids;
+		}
+		
+		// Two crawler workers must not create the same jid twice
+		synchronized (cache) {
+			selectIds(connection, tableName, misses, ids);
+			
+			List<String> newJids = new ArrayList<String>();
+			for (String jid : misses) {
+				if (!ids.containsKey(jid)) {
+					newJids.add(jid);
+				}
+			}
+			if (!newJids.isEmpty()) {
+				insertJids(connection, tableName, newJids);
+				selectIds(connection, tableName, newJids, ids);
+			}
+			
+			for (String jid : misses) {
+				Long id = ids.get(jid);
+				if (id != null) {
+					cache.put(jid, id);
+				}
+			}
+		}
+		
+		return ids;
+	}
+	
+	private static void selectIds(Connection connection, String tableName, 
+			List<String> jids, Map<String, Long> ids) throws SQLException {
+		for (List<String> chunk : chunks(jids)) {
+			PreparedStatement statement = connection.prepareStatement(
+					"SELECT id, jid FROM " + tableName + 
+					" WHERE jid IN (" + placeholders("?", chunk.size()) + ")");
+			try {
+				for (int i = 0; i < chunk.size(); i++) {
+					statement.setString(i + 1, chunk.get(i));
+				}
+				ResultSet resultSet = statement.executeQuery();
+				while (resultSet.next()) {
+					ids.put(resultSet.getString("jid"), resultSet.getLong("id"));
+				}
+			} finally {
+				statement.close();
+			}
+		}
+	}
+	
+	private static void insertJids(Connection connection, String tableName, 
+			List<String> jids) throws SQLException {
+		for (List<String> chunk : chunks(jids)) {
+			PreparedStatement statement = connection.prepareStatement(
+					"INSERT INTO " + tableName + "(jid) VALUES " + 
+					placeholders("(?)", chunk.size()));
+			try {
+				for (int i = 0; i < chunk.size(); i++) {
+					statement.setString(i + 1, chunk.get(i));
+				}
+				statement.execute();
+			} finally {
+				statement.close();
+			}
+		}
+	}
+	
+	private static void insertTastes(Connection connection, Long itemId, 
+			Set<Long> userIds) throws SQLException {
+		for (List<Long> chunk : chunks(new ArrayList<Long>(userIds))) {
+			PreparedStatement statement = connection.prepareStatement(
+					"INSERT INTO taste_preferences(user_id, item_id) " +
+					"SELECT v.user_id, CAST(? AS BIGINT) FROM (VALUES " + 
+					placeholders("(CAST(? AS BIGINT))", chunk.size()) + ") AS v(user_id) " +
+					"WHERE NOT EXISTS (SELECT 1 FROM taste_preferences t " +
+					"WHERE t.user_id = v.user_id AND t.item_id = ?)");
+			try {
+				int idx = 1;
+				statement.setLong(idx++, itemId);
+				for (Long userId : chunk) {
+					statement.setLong(idx++, userId);
+				}
+				statement.setLong(idx++, itemId);
+				statement.execute();
+			} finally {
+				statement.close();
+			}
+		}
+	}
+	
+	private static String placeholders(String placeholder, int count) {
+		StringBuilder placeholders = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				placeholders.append(", ");
+			}
+			placeholders.append(placeholder);
+		}
+		return placeholders.toString();
+	}
+	
+	private static <T> List<List<T>> chunks(List<T> list) {
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		for (int start = 0; start < list.size(); start += MAX_ROWS_PER_STATEMENT) {
+			chunks.add(list.subList(start, 
+					Math.min(start + MAX_ROWS_PER_STATEMENT, list.size())));
+		}
+		return chunks;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.SQLException;
+
+import com.buddycloud.channeldirectory.commons.solr.SolrBatchIndexer;
+
+/**
+ * Sends replayed posts and channels to Solr, new posts to the channel
+ * activity, and applies replayed retractions and purges, through the
+ * crawlers and the {@link PostRetractor} that logged them.
+ * 
+ * Records before the offset the channel activity was last written up 
+ * to were counted already, and are replayed again after a crash 
+ * without touching the activity.
+ *
+ */
+public class IndexingSink implements IngestSink {
+
+	private final PostCrawler postCrawler;
+	private final MetaDataCrawler metaDataCrawler;
+	private final PostRetractor postRetractor;
+	private final SolrBatchIndexer indexer;
+	private final ActivityAggregator activityAggregator;
+	private final IngestLog ingestLog;
+	
+	private long countedOffset;
+
+	public IndexingSink(PostCrawler postCrawler, MetaDataCrawler metaDataCrawler,
+			PostRetractor postRetractor, SolrBatchIndexer indexer, 
+			ActivityAggregator activityAggregator, IngestLog ingestLog) {
+		this.postCrawler = postCrawler;
+		this.metaDataCrawler = metaDataCrawler;
+		this.postRetractor = postRetractor;
+		this.indexer = indexer;
+		this.activityAggregator = activityAggregator;
+		this.ingestLog = ingestLog;
+	}
+
+	/**
+	 * Reads the offset the channel activity was written up to.
+	 *
+	 * @throws SQLException
+	 */
+	public void load() throws SQLException {
+		long offset = activityAggregator.getCountedOffset(ingestLog.getName());
+		// A log started afresh counts from its beginning
+		this.countedOffset = offset > ingestLog.getEnd() ? 0 : offset;
+	}
+
+	@Override
+	public void write(IngestRecord record) throws Exception {
+		boolean countActivity = record.getOffset() >= countedOffset;
+		if (record.getType() == IngestRecord.POST) {
+			postCrawler.index(record, countActivity);
+		} else if (record.getType() == IngestRecord.CHANNEL) {
+			metaDataCrawler.index(record);
+		} else {
+			postRetractor.index(record, countActivity);
+		}
+	}
+
+	/**
+	 * Fails if either Solr or the database did not take
+	 * everything, so the replayer keeps the batch.
+	 */
+	@Override
+	public void flush(long nextOffset) throws Exception {
+		indexer.flushOrThrow();
+		activityAggregator.flushOrThrow(ingestLog.getName(), nextOffset);
+	}
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only log of crawled posts and channels, written by the
+ * crawler before anything reaches Solr or the database, and drained
+ * into them by the {@link IngestReplayer}. While Solr or the database
+ * are down, crawled records wait here instead of being lost.
+ *
+ * The log lives in crawler.ingest.dir as segment files named after
+ * the offset of their first byte, a new one being started once the
+ * current one reaches crawler.ingest.segmentsize bytes. Every record
+ * is its length, the CRC32 of its bytes and the bytes themselves, so
+ * a record cut short by a crash is found and dropped on {@link #open()}.
+ *
+ */
+public class IngestLog {
+
+	private static Logger LOGGER = Logger.getLogger(IngestLog.class);
+
+	private static final String DEF_DIR = "ingest-log";
+	private static final long DEF_SEGMENT_SIZE = 1024 * 1024 * 64; // 64 MB
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_SIZE = 12;
+
+	private final File dir;
+	private final long segmentSize;
+	private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+	private FileOutputStream out;
+	private long activeBase;
+	private long end;
+
+	public IngestLog(Properties configuration) {
+		String dirStr = configuration.getProperty("crawler.ingest.dir");
+		this.dir = new File(dirStr == null ? DEF_DIR : dirStr);
+
+		String segmentSizeStr = configuration.getProperty("crawler.ingest.segmentsize");
+		this.segmentSize = segmentSizeStr == null ? DEF_SEGMENT_SIZE
+				: Long.parseLong(segmentSizeStr);
+	}
+
+	/**
+	 * Finds the segments left by previous runs and drops whatever
+	 * follows the last valid record of the newest one.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		File[] files = dir.listFiles();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(SEGMENT_SUFFIX)) {
+				long base = Long.parseLong(name.substring(0,
+						name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(base, file);
+			}
+		}
+
+		if (segments.isEmpty()) {
+			startSegment(0);
+			return;
+		}
+
+		Entry<Long, File> last = segments.lastEntry();
+		File file = last.getValue();
+		long valid = validLength(file);
+		if (valid < file.length()) {
+			LOGGER.warn("Dropping " + (file.length() - valid)
+					+ " bytes of incomplete records from " + file);
+			RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+			try {
+				truncated.setLength(valid);
+			} finally {
+				truncated.close();
+			}
+		}
+		this.activeBase = last.getKey();
+		this.end = activeBase + valid;
+		this.out = new FileOutputStream(file, true);
+	}
+
+	private static long validLength(File file) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		long valid = 0;
+		try {
+			while (true) {
+				valid += HEADER_SIZE + readRecord(in).length;
+			}
+		} catch (IOException e) {
+			// Either the end of the segment or a torn record
+			return valid;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void startSegment(long base) throws IOException {
+		File file = new File(dir, String.format("%020d", base) + SEGMENT_SUFFIX);
+		segments.put(base, file);
+		this.out = new FileOutputStream(file, true);
+		this.activeBase = base;
+		this.end = base;
+	}
+
+	/**
+	 * Appends a record to the log. The record is handed to the
+	 * operating system at once, so it survives a crash of the crawler;
+	 * {@link #flush()} also makes it survive a crash of the machine.
+	 *
+	 * @param record
+	 * @throws IOException
+	 */
+	public synchronized void append(IngestRecord record) throws IOException {
+		if (out == null) {
+			throw new IOException("The ingest log is closed.");
+		}
+		byte[] payload = record.toBytes();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(payload.length);
+		data.writeLong(crc.getValue());
+		data.write(payload);
+
+		if (end - activeBase >= segmentSize) {
+			out.close();
+			startSegment(end);
+		}
+		out.write(bytes.toByteArray());
+		end += bytes.size();
+	}
+
+	/**
+	 * Forces the records appended so far to disk.
+	 */
+	public synchronized void flush() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.getFD().sync();
+		} catch (IOException e) {
+			LOGGER.warn("Could not sync the ingest log to disk.", e);
+		}
+	}
+
+	/**
+	 * Reads up to max records from a single segment.
+	 *
+	 * @param offset where to start reading
+	 * @param max
+	 * @return the records read and the offset that follows them
+	 * @throws IOException
+	 */
+	public Batch read(long offset, int max) throws IOException {
+		File file;
+		long base;
+		long limit;
+		synchronized (this) {
+			Entry<Long, File> segment = segments.floorEntry(offset);
+			if (segment == null) {
+				// Deleted under us, carry on from the oldest record left
+				segment = segments.firstEntry();
+				offset = segment.getKey();
+			}
+			base = segment.getKey();
+			Long next = segments.higherKey(base);
+			limit = next == null ? end : next;
+			if (offset >= limit) {
+				return new Batch(new ArrayList<IngestRecord>(), offset);
+			}
+			file = segment.getValue();
+		}
+
+		List<IngestRecord> records = new ArrayList<IngestRecord>();
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(offset - base);
+			while (records.size() < max && offset < limit) {
+				byte[] payload;
+				try {
+					payload = readRecord(in);
+				} catch (IOException e) {
+					LOGGER.error("Corrupt record at offset " + offset
+							+ " of the ingest log, skipping the rest of " + file, e);
+					return new Batch(records, limit);
+				}
+				IngestRecord record = IngestRecord.fromBytes(payload);
+				record.setOffset(offset);
+				records.add(record);
+				offset += HEADER_SIZE + payload.length;
+			}
+		} finally {
+			in.close();
+		}
+		return new Batch(records, offset);
+	}
+
+	private static byte[] readRecord(DataInput in) throws IOException {
+		int length = in.readInt();
+		long checksum = in.readLong();
+		if (length < 0) {
+			throw new IOException("Invalid record length " + length);
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if (crc.getValue() != checksum) {
+			throw new IOException("Record checksum mismatch");
+		}
+		return payload;
+	}
+
+	/**
+	 * Deletes the segments that only hold records before the given offset.
+	 * The segment being written to is always kept.
+	 *
+	 * @param offset
+	 */
+	public synchronized void deleteBefore(long offset) {
+		Iterator<Entry<Long, File>> iterator = segments.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Entry<Long, File> segment = iterator.next();
+			Long next = segments.higherKey(segment.getKey());
+			if (next == null || next > offset) {
+				return;
+			}
+			if (!segment.getValue().delete()) {
+				LOGGER.warn("Could not delete " + segment.getValue());
+				return;
+			}
+			iterator.remove();
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * @return the host name and directory of this log, 
+	 * telling it apart from the logs of other crawler instances
+	 */
+	public String getName() {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "localhost";
+		}
+		return host + ":" + dir.getAbsolutePath();
+	}
+
+	public synchronized long getEnd() {
+		return end;
+	}
+
+	public synchronized void close() {
+		if (out == null) {
+			return;
+		}
+		flush();
+		try {
+			out.close();
+		} catch (IOException e) {
+			LOGGER.warn(e);
+		}
+		out = null;
+	}
+
+	/**
+	 * Records read from the log, and the offset to read the next ones from.
+	 */
+	public static class Batch {
+
+		private final List<IngestRecord> records;
+		private final long nextOffset;
+
+		public Batch(List<IngestRecord> records, long nextOffset) {
+			this.records = records;
+			this.nextOffset = nextOffset;
+		}
+
+		public List<IngestRecord> getRecords() {
+			return records;
+		}
+
+		public long getNextOffset() {
+			return nextOffset;
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.buddycloud.channeldirectory.search.handler.response.ChannelData;
+import com.buddycloud.channeldirectory.search.handler.response.Geolocation;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
+
+/**
+ * A crawled post or channel, or items retracted from a node or the
+ * purge of a node, as written to the {@link IngestLog}. Retractions
+ * and purges go through the log as well, so they are applied after
+ * the posts logged before them.
+ *
+ */
+public class IngestRecord {
+
+	public static final byte POST = 1;
+	public static final byte CHANNEL = 2;
+	public static final byte RETRACTION = 3;
+	public static final byte PURGE = 4;
+
+	private final byte type;
+	private final PostData postData;
+	private final boolean newPost;
+	private final ChannelData channelData;
+	private final String nodeId;
+	private final List<String> itemIds;
+	private final List<Date> published;
+	private long offset;
+
+	private IngestRecord(byte type, PostData postData, boolean newPost,
+			ChannelData channelData, String nodeId, List<String> itemIds, 
+			List<Date> published) {
+		this.type = type;
+		this.postData = postData;
+		this.newPost = newPost;
+		this.channelData = channelData;
+		this.nodeId = nodeId;
+		this.itemIds = itemIds;
+		this.published = published;
+	}
+
+	/**
+	 * @param postData a post with its parent ids set
+	 * @param newPost whether the post counts for the channel activity
+	 * @return
+	 */
+	public static IngestRecord post(PostData postData, boolean newPost) {
+		return new IngestRecord(POST, postData, newPost, null, null, null, null);
+	}
+
+	public static IngestRecord channel(ChannelData channelData) {
+		return new IngestRecord(CHANNEL, null, false, channelData, null, null, null);
+	}
+
+	/**
+	 * @param nodeId
+	 * @param itemIds the pubsub item ids of the retracted posts
+	 * @param published the published date of each of them, 
+	 * or null for posts that were not counted in the channel activity
+	 * @return
+	 */
+	public static IngestRecord retraction(String nodeId, List<String> itemIds, 
+			List<Date> published) {
+		return new IngestRecord(RETRACTION, null, false, null, nodeId, itemIds, published);
+	}
+
+	public static IngestRecord purge(String nodeId) {
+		return new IngestRecord(PURGE, null, false, null, nodeId, null, null);
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public PostData getPostData() {
+		return postData;
+	}
+
+	public boolean isNewPost() {
+		return newPost;
+	}
+
+	public ChannelData getChannelData() {
+		return channelData;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public List<String> getItemIds() {
+		return itemIds;
+	}
+
+	public List<Date> getPublished() {
+		return published;
+	}
+
+	/**
+	 * @return the offset of the record in the {@link IngestLog} it was read from
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		if (type == POST) {
+			out.writeBoolean(newPost);
+			writeString(out, postData.getId());
+			writeString(out, postData.getType());
+			writeGeolocation(out, postData.getGeolocation());
+			writeString(out, postData.getAuthor());
+			writeString(out, postData.getAuthorUri());
+			writeString(out, postData.getContent());
+			writeString(out, postData.getServerId());
+			writeString(out, postData.getInReplyTo());
+			writeDate(out, postData.getUpdated());
+			writeDate(out, postData.getPublished());
+			writeString(out, postData.getParentSimpleId());
+			writeString(out, postData.getParentFullId());
+		} else if (type == RETRACTION) {
+			writeString(out, nodeId);
+			out.writeInt(itemIds.size());
+			for (int i = 0; i < itemIds.size(); i++) {
+				writeString(out, itemIds.get(i));
+				writeDate(out, published.get(i));
+			}
+		} else if (type == PURGE) {
+			writeString(out, nodeId);
+		} else {
+			writeString(out, channelData.getId());
+			writeString(out, channelData.getType());
+			writeString(out, channelData.getTitle());
+			writeGeolocation(out, channelData.getGeolocation());
+			writeString(out, channelData.getChannelType());
+			writeString(out, channelData.getDescription());
+			writeDate(out, channelData.getCreationDate());
+			writeString(out, channelData.getDefaultAffiliation());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static IngestRecord fromBytes(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		byte type = in.readByte();
+		if (type == POST) {
+			boolean newPost = in.readBoolean();
+			PostData postData = new PostData();
+			postData.setId(readString(in));
+			postData.setType(readString(in));
+			postData.setGeolocation(readGeolocation(in));
+			postData.setAuthor(readString(in));
+			postData.setAuthorURI(readString(in));
+			postData.setContent(readString(in));
+			postData.setServerId(readString(in));
+			postData.setInReplyTo(readString(in));
+			postData.setUpdated(readDate(in));
+			postData.setPublished(readDate(in));
+			postData.setParentSimpleId(readString(in));
+			postData.setParentFullId(readString(in));
+			return post(postData, newPost);
+		}
+		if (type == CHANNEL) {
+			ChannelData channelData = new ChannelData();
+			channelData.setId(readString(in));
+			channelData.setType(readString(in));
+			channelData.setTitle(readString(in));
+			channelData.setGeolocation(readGeolocation(in));
+			channelData.setChannelType(readString(in));
+			channelData.setDescription(readString(in));
+			channelData.setCreationDate(readDate(in));
+			channelData.setDefaultAffiliation(readString(in));
+			return channel(channelData);
+		}
+		if (type == RETRACTION) {
+			String nodeId = readString(in);
+			int size = in.readInt();
+			List<String> itemIds = new ArrayList<String>(size);
+			List<Date> published = new ArrayList<Date>(size);
+			for (int i = 0; i < size; i++) {
+				itemIds.add(readString(in));
+				published.add(readDate(in));
+			}
+			return retraction(nodeId, itemIds, published);
+		}
+		if (type == PURGE) {
+			return purge(readString(in));
+		}
+		throw new IOException("Unknown ingest record type " + type);
+	}
+
+	// Strings are written as UTF-8 bytes, as posts may
+	// be longer than what writeUTF can take
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeDate(DataOutputStream out, Date value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeLong(value.getTime());
+		}
+	}
+
+	private static Date readDate(DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Date(in.readLong()) : null;
+	}
+
+	private static void writeDouble(DataOutputStream out, Double value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeDouble(value);
+		}
+	}
+
+	private static Double readDouble(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readDouble() : null;
+	}
+
+	private static void writeGeolocation(DataOutputStream out, Geolocation value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			writeDouble(out, value.getLat());
+			writeDouble(out, value.getLng());
+			writeString(out, value.getText());
+		}
+	}
+
+	private static Geolocation readGeolocation(DataInputStream in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		Geolocation geolocation = new Geolocation();
+		geolocation.setLat(readDouble(in));
+		geolocation.setLng(readDouble(in));
+		geolocation.setText(readString(in));
+		return geolocation;
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.crawler.node.IngestLog.Batch;
+
+/**
+ * Drains the {@link IngestLog} into an {@link IngestSink}, in batches
+ * of crawler.ingest.batchsize records, from a single worker thread.
+ *
+ * The offset of the next record to replay is kept in the log directory
+ * and only moves forward once the sink flushed the whole batch, so
+ * records are delivered at least once. Sinks are told on every flush
+ * how far the log was written to them, to tell records replayed again
+ * after a crash apart. While the sink fails to flush,
+ * the worker retries with a growing backoff of up to
+ * crawler.ingest.maxbackoff milliseconds and the log simply grows,
+ * without slowing the crawler down.
+ *
+ */
+public class IngestReplayer {
+
+	private static Logger LOGGER = Logger.getLogger(IngestReplayer.class);
+
+	private static final int DEF_BATCH_SIZE = 500;
+	private static final long DEF_POLL_INTERVAL = 1000; // In milliseconds
+	private static final long DEF_MAX_BACKOFF = 60000; // In milliseconds
+	private static final String OFFSET_FILE = "replayed.offset";
+
+	private final IngestLog log;
+	private final IngestSink sink;
+	private final File offsetFile;
+	private final int batchSize;
+	private final long pollInterval;
+	private final long maxBackoff;
+
+	private long offset;
+
+	public IngestReplayer(Properties configuration, IngestLog log, IngestSink sink) {
+		this.log = log;
+		this.sink = sink;
+		this.offsetFile = new File(log.getDirectory(), OFFSET_FILE);
+
+		String batchSizeStr = configuration.getProperty("crawler.ingest.batchsize");
+		this.batchSize = batchSizeStr == null ? DEF_BATCH_SIZE
+				: Integer.parseInt(batchSizeStr);
+
+		String pollIntervalStr = configuration.getProperty("crawler.ingest.pollinterval");
+		this.pollInterval = pollIntervalStr == null ? DEF_POLL_INTERVAL
+				: Long.parseLong(pollIntervalStr);
+
+		String maxBackoffStr = configuration.getProperty("crawler.ingest.maxbackoff");
+		this.maxBackoff = maxBackoffStr == null ? DEF_MAX_BACKOFF
+				: Long.parseLong(maxBackoffStr);
+	}
+
+	/**
+	 * Reads the offset replayed so far.
+	 *
+	 * @throws IOException
+	 */
+	public void load() throws IOException {
+		if (!offsetFile.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(offsetFile));
+		try {
+			this.offset = in.readLong();
+		} finally {
+			in.close();
+		}
+		LOGGER.info((log.getEnd() - offset) + " bytes of the ingest log left to replay.");
+	}
+
+	public void start() {
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "ingest-replayer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	private void work() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				if (!replay()) {
+					Thread.sleep(pollInterval);
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				LOGGER.error("Could not read the ingest log.", e);
+				try {
+					Thread.sleep(maxBackoff);
+				} catch (InterruptedException e1) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replays the next batch of records.
+	 *
+	 * @return whether there was anything to replay
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	boolean replay() throws IOException, InterruptedException {
+		Batch batch = log.read(offset, batchSize);
+		if (batch.getNextOffset() == offset) {
+			return false;
+		}
+
+		for (IngestRecord record : batch.getRecords()) {
+			try {
+				sink.write(record);
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				// Not a downstream outage, those show up on flush
+				LOGGER.warn("Dropping ingest record that could not be indexed.", e);
+			}
+		}
+
+		long backoff = pollInterval;
+		while (true) {
+			try {
+				sink.flush(batch.getNextOffset());
+				break;
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				LOGGER.warn("Could not flush replayed records, retrying in "
+						+ backoff + " ms.", e);
+			}
+			Thread.sleep(backoff);
+			backoff = Math.min(maxBackoff, backoff * 2);
+		}
+
+		this.offset = batch.getNextOffset();
+		saveOffset();
+		log.deleteBefore(offset);
+		return true;
+	}
+
+	private void saveOffset() throws IOException {
+		File tmp = new File(offsetFile.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(fileOut);
+		try {
+			out.writeLong(offset);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(offsetFile)) {
+			offsetFile.delete();
+			if (!tmp.renameTo(offsetFile)) {
+				throw new IOException("Could not replace " + offsetFile);
+			}
+		}
+	}
+
+	long getOffset() {
+		return offset;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+/**
+ * Where the {@link IngestReplayer} sends the records of the {@link IngestLog}.
+ *
+ */
+public interface IngestSink {
+
+	/**
+	 * Buffers a record to be sent on the next flush.
+	 *
+	 * @param record
+	 * @throws Exception if the record itself cannot be indexed
+	 */
+	void write(IngestRecord record) throws Exception;
+
+	/**
+	 * Sends every record written so far.
+	 *
+	 * @param nextOffset the offset of the log that follows them
+	 * @throws Exception if any of them could not be sent,
+	 * in which case they are kept for the next flush
+	 */
+	void flush(long nextOffset) throws Exception;
+
+}
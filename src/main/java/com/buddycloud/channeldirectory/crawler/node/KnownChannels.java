@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+import com.buddycloud.channeldirectory.commons.solr.SolrServerFactory;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+/**
+ * Keeps the jids of every channel indexed in the channel core, 
+ * so the activity of a post can be updated without asking Solr 
+ * whether its channel is registered.
+ * 
+ * The set is seeded from the channel core by {@link #load()} and
+ * grows as {@link MetaDataCrawler} indexes channels. A jid that is
+ * not in the set is still checked against Solr before giving up.
+ * Jids Solr does not know are remembered for 
+ * crawler.knownchannels.missttl milliseconds, so posts of 
+ * unregistered channels do not query Solr each time.
+ *
+ */
+public class KnownChannels {
+
+	private static Logger LOGGER = Logger.getLogger(KnownChannels.class);
+	
+	private static final int PAGE_SIZE = 1000;
+	private static final int DEF_MISS_CACHE_SIZE = 100000;
+	private static final long DEF_MISS_TTL = 10 * 60 * 1000; // 10 minutes
+	
+	private final Set<String> channels = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+	private final Map<String, Long> misses;
+	private final long missTtl;
+	
+	private final Properties configuration;
+	private final SolrServerFactory solrFactory;
+	
+	public KnownChannels(Properties configuration) {
+		this(configuration, new SolrServerFactory());
+	}
+	
+	public KnownChannels(Properties configuration, SolrServerFactory solrFactory) {
+		this.configuration = configuration;
+		this.solrFactory = solrFactory;
+		
+		String missCacheSizeStr = configuration.getProperty("crawler.knownchannels.misscachesize");
+		int missCacheSize = missCacheSizeStr == null ? DEF_MISS_CACHE_SIZE 
+				: Integer.parseInt(missCacheSizeStr);
+		this.misses = new ConcurrentLinkedHashMap.Builder<String, Long>()
+				.maximumWeightedCapacity(missCacheSize).build();
+		
+		String missTtlStr = configuration.getProperty("crawler.knownchannels.missttl");
+		this.missTtl = missTtlStr == null ? DEF_MISS_TTL : Long.parseLong(missTtlStr);
+	}
+	
+	/**
+	 * Pages through the channel core adding every jid to the set.
+	 * 
+	 * @throws Exception
+	 */
+	public void load() throws Exception {
+		SolrServer solrServer = solrFactory.createChannelCore(configuration);
+		
+		int start = 0;
+		while (true) {
+			SolrQuery solrQuery = new SolrQuery("*:*");
+			solrQuery.setFields("jid");
+			solrQuery.setStart(start);
+			solrQuery.setRows(PAGE_SIZE);
+			
+			SolrDocumentList results = solrServer.query(solrQuery).getResults();
+			for (SolrDocument document : results) {
+				Object jid = document.getFieldValue("jid");
+				if (jid != null) {
+					channels.add(jid.toString());
+				}
+			}
+			
+			start += results.size();
+			if (results.isEmpty() || start >= results.getNumFound()) {
+				break;
+			}
+		}
+		
+		LOGGER.info("Loaded " + channels.size() + " known channels.");
+	}
+	
+	/**
+	 * @param channelJid
+	 */
+	public void add(String channelJid) {
+		channels.add(channelJid);
+		misses.remove(channelJid);
+	}
+	
+	/**
+	 * @param channelJid
+	 * @return true if the channel is indexed in the channel core
+	 * @throws Exception
+	 */
+	public boolean contains(String channelJid) throws Exception {
+		if (channels.contains(channelJid)) {
+			return true;
+		}
+		
+		long now = System.currentTimeMillis();
+		Long missed = misses.get(channelJid);
+		if (missed != null && now - missed < missTtl) {
+			return false;
+		}
+		
+		if (isChannelRegistered(channelJid)) {
+			add(channelJid);
+			return true;
+		}
+		misses.put(channelJid, now);
+		return false;
+	}
+	
+	private boolean isChannelRegistered(String channelJid) throws Exception {
+		SolrServer solrServer = solrFactory.createChannelCore(configuration);
+		SolrQuery solrQuery = new SolrQuery("jid:" + channelJid);
+		return !solrServer.query(solrQuery).getResults().isEmpty();
+	}
+}
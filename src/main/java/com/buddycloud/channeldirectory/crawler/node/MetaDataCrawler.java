@@ -37,6 +37,7 @@ import org.jivesoftware.smackx.xdata.FormField;
 import org.jivesoftware.smackx.xdata.packet.DataForm;
 
 import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+import com.buddycloud.channeldirectory.commons.solr.SolrBatchIndexer;
 import com.buddycloud.channeldirectory.commons.solr.SolrServerFactory;
 import com.buddycloud.channeldirectory.search.handler.response.ChannelData;
 import com.buddycloud.channeldirectory.search.handler.response.Geolocation;
@@ -54,13 +55,20 @@ public class MetaDataCrawler implements NodeCrawler {
 	private static final DateFormat DATE_FORMAT = new SimpleDateFormat(
 			"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 
-	private Properties configuration;
 	private final ChannelDirectoryDataSource dataSource;
-
-	public MetaDataCrawler(Properties configuration,
-			ChannelDirectoryDataSource dataSource) {
-		this.configuration = configuration;
+	private final SolrBatchIndexer indexer;
+	private final KnownChannels knownChannels;
+	private final CrawlState crawlState;
+	private final IngestLog ingestLog;
+
+	public MetaDataCrawler(ChannelDirectoryDataSource dataSource, 
+			SolrBatchIndexer indexer, KnownChannels knownChannels, 
+			CrawlState crawlState, IngestLog ingestLog) {
 		this.dataSource = dataSource;
+		this.indexer = indexer;
+		this.knownChannels = knownChannels;
+		this.crawlState = crawlState;
+		this.ingestLog = ingestLog;
 	}
 
 	/*
@@ -78,9 +86,10 @@ public class MetaDataCrawler implements NodeCrawler {
 			return;
 		}
 
-		CrawlerHelper.enqueueNewServer(nodeId, dataSource);
+		crawlState.enqueueNewServer(nodeId);
 
-		fetchAndUpdateMetadata(node, nodeId, configuration);
+		ChannelData channelData = fetchMetadata(node, nodeId);
+		ingestLog.append(IngestRecord.channel(channelData));
 
 		try {
 			updateSubscribedNode(nodeId, server);
@@ -90,27 +99,46 @@ public class MetaDataCrawler implements NodeCrawler {
 
 	}
 
+	/**
+	 * Indexes a channel replayed from the ingest log.
+	 */
+	void index(IngestRecord record) throws InterruptedException {
+		ChannelData channelData = record.getChannelData();
+		indexer.addChannel(toSolrDocument(channelData));
+		knownChannels.add(channelData.getId());
+	}
+
+	/**
+	 * Fetches the metadata of a single node and indexes it right away,
+	 * for callers outside the crawler that need it searchable at once.
+	 */
 	public static ChannelData fetchAndUpdateMetadata(BuddycloudNode node, String nodeId,
 			Properties configuration) throws Exception {
 
-		DiscoverInfo discoverInfo = null;
+		ChannelData channelData = fetchMetadata(node, nodeId);
+
 		try {
-			discoverInfo = node.discoverInfo();
+			insertOrUpate(channelData, configuration);
 		} catch (Exception e) {
-			throw e;
+			LOGGER.warn("Could not update node metadata.", e);
 		}
 
-		DataForm form = DataForm.from(discoverInfo);
-
-		ChannelData channelData = extractChannelData(nodeId, form);
+		return channelData;
+	}
 
+	private static ChannelData fetchMetadata(BuddycloudNode node, String nodeId)
+			throws Exception {
+		
+		DiscoverInfo discoverInfo = null;
 		try {
-			insertOrUpate(channelData, configuration);
+			discoverInfo = node.discoverInfo();
 		} catch (Exception e) {
-			LOGGER.warn("Could not update node metadata.", e);
+			throw e;
 		}
 
-		return channelData;
+		DataForm form = DataForm.from(discoverInfo);
+
+		return extractChannelData(nodeId, form);
 	}
 
 	private static ChannelData extractChannelData(String nodeId, DataForm form) {
@@ -143,7 +171,7 @@ public class MetaDataCrawler implements NodeCrawler {
 				geolocation.setText(fieldValue);
 			} else if (formField.getVariable().equals("pubsub#creation_date")) {
 				try {
-					channelData.setCreationDate(DATE_FORMAT.parse(fieldValue));
+					channelData.setCreationDate(parseDate(fieldValue));
 				} catch (ParseException e) {
 					LOGGER.warn("Unable to parse creation date for [" + nodeId
 							+ "].", e);
@@ -163,7 +191,14 @@ public class MetaDataCrawler implements NodeCrawler {
 
 	private static void insertOrUpate(ChannelData channelData,
 			Properties configuration) throws Exception {
+		SolrServer solrServer = new SolrServerFactory()
+				.createChannelCore(configuration);
+		solrServer.add(toSolrDocument(channelData));
+		solrServer.commit();
+	}
 
+	private static SolrInputDocument toSolrDocument(ChannelData channelData) {
+		
 		SolrInputDocument object = new SolrInputDocument();
 
 		if (channelData.getGeolocation() != null) {
@@ -171,8 +206,7 @@ public class MetaDataCrawler implements NodeCrawler {
 			Double lng = channelData.getGeolocation().getLng();
 
 			if (lat != null && lng != null) {
-				object.setField("geoloc", LATLNG_FORMAT.format(lat) + ","
-						+ LATLNG_FORMAT.format(lng));
+				object.setField("geoloc", formatLatLng(lat, lng));
 			}
 			String geoText = channelData.getGeolocation().getText();
 			if (geoText != null) {
@@ -189,11 +223,23 @@ public class MetaDataCrawler implements NodeCrawler {
 		object.setField("channel-type", channelData.getChannelType()); // topic
 																		// or
 																		// personal
+		return object;
+	}
 
-		SolrServer solrServer = new SolrServerFactory()
-				.createChannelCore(configuration);
-		solrServer.add(object);
-		solrServer.commit();
+	/**
+	 * {@link DateFormat} is not thread-safe and this
+	 * crawler is shared by all crawler workers.
+	 */
+	private static java.util.Date parseDate(String date) throws ParseException {
+		synchronized (DATE_FORMAT) {
+			return DATE_FORMAT.parse(date);
+		}
+	}
+
+	private static String formatLatLng(Double lat, Double lng) {
+		synchronized (LATLNG_FORMAT) {
+			return LATLNG_FORMAT.format(lat) + "," + LATLNG_FORMAT.format(lng);
+		}
 	}
 
 	private void updateSubscribedNode(String nodeName, String server)
@@ -16,30 +16,19 @@
 package com.buddycloud.channeldirectory.crawler.node;
 
 import java.io.IOException;
-import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.LinkedList;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.Properties;
 
 import org.apache.log4j.Logger;
-import org.apache.solr.client.solrj.SolrServer;
-import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.common.SolrInputDocument;
-import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smackx.pubsub.BuddycloudNode;
 import org.jivesoftware.smackx.pubsub.Item;
 import org.jivesoftware.smackx.pubsub.Node;
-import org.jivesoftware.smackx.rsm.packet.RSMSet;
 
-import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
-import com.buddycloud.channeldirectory.commons.solr.SolrServerFactory;
+import com.buddycloud.channeldirectory.commons.solr.SolrBatchIndexer;
 import com.buddycloud.channeldirectory.search.handler.response.Geolocation;
 import com.buddycloud.channeldirectory.search.handler.response.PostData;
 
@@ -55,15 +44,35 @@ public class PostCrawler implements NodeCrawler {
 	 */
 	private static final DecimalFormat LATLNG_FORMAT = new DecimalFormat("#0.00", 
 			new DecimalFormatSymbols(Locale.US));
-	private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 	private static Logger LOGGER = Logger.getLogger(PostCrawler.class);
 	
-	private Properties configuration;
-	private final ChannelDirectoryDataSource dataSource;
+	private final SolrBatchIndexer indexer;
+	private final ActivityAggregator activityAggregator;
+	private final CrawlState crawlState;
 	
-	public PostCrawler(Properties configuration, ChannelDirectoryDataSource dataSource) {
-		this.configuration = configuration;
-		this.dataSource = dataSource;
+	/**
+	 * Content hashes of indexed posts, so a post that was pushed 
+	 * to us or crawled from the firehose is not indexed and counted 
+	 * again when its node is crawled, or the other way around.
+	 */
+	private final SeenItemIndex seenItems;
+	
+	/**
+	 * Crawled posts are appended here, and only reach Solr and 
+	 * the channel activity through {@link #index(IngestRecord)}.
+	 */
+	private final IngestLog ingestLog;
+	private final RSMPageSizes pageSizes;
+	
+	public PostCrawler(SolrBatchIndexer indexer, ActivityAggregator activityAggregator, 
+			CrawlState crawlState, SeenItemIndex seenItems, IngestLog ingestLog, 
+			RSMPageSizes pageSizes) {
+		this.indexer = indexer;
+		this.activityAggregator = activityAggregator;
+		this.crawlState = crawlState;
+		this.seenItems = seenItems;
+		this.ingestLog = ingestLog;
+		this.pageSizes = pageSizes;
 	}
 	
 	/* (non-Javadoc)
@@ -77,117 +86,124 @@ public class PostCrawler implements NodeCrawler {
 		// node@domain
 		String channelId = CrawlerHelper.getChannelFromNode(nodeId);
 		
-		String afterItem = CrawlerHelper.getLastItemCrawled(
-				node, server, dataSource);
+		String afterItem = crawlState.getLastItemCrawled(nodeId, server);
 				
-		String olderItemId = null;
 		String mostRecentItemId = null;
 		
-		while (true) {
-			List<PacketExtension> additionalExtensions = new LinkedList<PacketExtension>();
-			List<PacketExtension> returnedExtensions = new LinkedList<PacketExtension>();
-			List<Item> items = null;
-			if (olderItemId != null) {
-				RSMSet nextRsmSet = RSMSet.newAfter(olderItemId);
-				additionalExtensions.add(nextRsmSet);
-			}
-			items = node.getItems(additionalExtensions, returnedExtensions);
-			if (items.isEmpty()) {
-				break;
-			}
-			boolean done = false;
-			for (Item item : items) {
-				Element itemEntry = CrawlerHelper.getAtomEntry(item);
-				String itemId = itemEntry.elementText("id");
-				if (itemId.equals(afterItem)) {
-					done = true;
-					break;
+		RSMPageIterator<Item> pages = RSMPageIterator.items(node, null, afterItem, 
+				pageSizes, server);
+		try {
+			List<Item> items;
+			while ((items = pages.next()) != null) {
+				boolean done = false;
+				for (Item item : items) {
+					PostData postData = CrawlerHelper.getPostData(item);
+					String itemId = postData.getId();
+					if (itemId.equals(afterItem)) {
+						done = true;
+						break;
+					}
+					if (mostRecentItemId == null) {
+						mostRecentItemId = itemId;
+					}
+					try {
+						processPost(nodeId, channelId, postData);
+					} catch (IOException e) {
+						// Not in the ingest log, so not crawled either
+						throw e;
+					} catch (Exception e) {
+						LOGGER.warn(e);
+					}
 				}
-				if (mostRecentItemId == null) {
-					mostRecentItemId = itemId;
-				}
-				olderItemId = itemId;
-				try {
-					processPost(nodeId, channelId, item);
-				} catch (Exception e) {
-					LOGGER.warn(e);
+				flush();
+				if (done) {
+					break;
 				}
 			}
-			if (done) {
-				break;
-			}
+		} finally {
+			pages.close();
 		}
-		CrawlerHelper.updateLastItemCrawled(node, 
-				mostRecentItemId, server, dataSource);
+		crawlState.updateLastItemCrawled(nodeId, mostRecentItemId, server);
 	}
 
-	void processPost(String nodeId, String channel, Item item)
-			throws Exception {
-		PostData postData = saveToSolr(nodeId, channel, item);
-		ActivityHelper.updateActivity(postData, dataSource, configuration);
+	/**
+	 * Forces the posts crawled so far to disk.
+	 */
+	void flush() {
+		ingestLog.flush();
+		seenItems.flush();
 	}
 
-	private PostData saveToSolr(String nodeFullJid, String nodeId, Item item)
-			throws DocumentException, ParseException, SolrServerException,
-			IOException {
-		Element atomEntry = CrawlerHelper.getAtomEntry(item);
-		
-		PostData postData = new PostData();
-		
-		postData.setParentFullId(nodeFullJid);
-		postData.setParentSimpleId(nodeId);
-		
-		Element authorElement = atomEntry.element("author");
-		String authorName = authorElement.elementText("name");
-		String authorUri = authorElement.elementText("uri");
-		
-		postData.setAuthor(authorName);
-		postData.setAuthorURI(authorUri);
-		
-		String content = atomEntry.elementText("content");
-		String updated = atomEntry.elementText("updated");
-		String published = atomEntry.elementText("published");
-		String id = atomEntry.elementText("id");
-		
-		postData.setContent(content);
-		postData.setUpdated(DATE_FORMAT.parse(updated));
-		postData.setPublished(DATE_FORMAT.parse(published));
-		postData.setId(id);
-		
-		Element geolocElement = atomEntry.element("geoloc");
+	/**
+	 * Appends the given post to the ingest log, unless this same 
+	 * version of it has already been crawled. Edited posts are indexed 
+	 * again, but are only counted once in the channel activity.
+	 * 
+	 * @throws IOException if the post could not be appended, in which
+	 * case the crawl must not move past it
+	 */
+	void processPost(String nodeId, String channel, PostData postData)
+			throws Exception {
+		Date updated = postData.getUpdated();
+		if (postData.getPublished() == null || updated == null) {
+			throw new IllegalArgumentException("Post " + postData.getId() 
+					+ " has no valid published or updated date.");
+		}
 		
-		if (geolocElement != null) {
-			Geolocation geolocation = new Geolocation();
-			
-			String text = geolocElement.elementText("text");
-			geolocation.setText(text);
-			
-			String lat = geolocElement.elementText("lat");
-			String lon = geolocElement.elementText("lon");
-			
-			if (lat != null && lon != null) {
-				geolocation.setLat(Double.valueOf(lat));
-				geolocation.setLng(Double.valueOf(lon));
-			}
-			
-			postData.setGeolocation(geolocation);
+		String itemKey = SeenItemIndex.itemKey(nodeId, 
+				CrawlerHelper.getItemIdFromAtomId(postData.getId()));
+		long contentHash = SeenItemIndex.contentHash(updated.getTime(), postData.getContent());
+		long previous = seenItems.put(itemKey, contentHash, 
+				postData.getPublished().getTime());
+		if (previous == contentHash) {
+			return;
 		}
 		
-		Element inReplyToElement = atomEntry.element("in-reply-to");
-		if (inReplyToElement != null) {
-			String replyRef = inReplyToElement.attributeValue("ref");
-			postData.setInReplyTo(replyRef);
+		postData.setParentFullId(nodeId);
+		postData.setParentSimpleId(channel);
+		try {
+			ingestLog.append(IngestRecord.post(postData, 
+					previous == SeenItemIndex.NONE));
+		} catch (Exception e) {
+			seenItems.revert(itemKey, contentHash, previous);
+			throw e;
+		}
+	}
+
+	/**
+	 * Indexes a post replayed from the ingest log.
+	 * 
+	 * @param countActivity false if the post was counted before a crash
+	 */
+	void index(IngestRecord record, boolean countActivity) throws InterruptedException {
+		PostData postData = record.getPostData();
+		try {
+			insert(postData);
+		} catch (RuntimeException e) {
+			// Dropped by the replayer, so a later crawl may bring it in again
+			forget(postData);
+			throw e;
+		}
+		if (countActivity && record.isNewPost()) {
+			activityAggregator.add(postData);
 		}
-		insert(postData);
-		return postData;
 	}
 
-	private void insert(PostData postData) throws SolrServerException,
-			IOException {
+	private void forget(PostData postData) {
+		try {
+			seenItems.remove(SeenItemIndex.itemKey(postData.getParentFullId(), 
+					CrawlerHelper.getItemIdFromAtomId(postData.getId())));
+		} catch (Exception e) {
+			LOGGER.warn("Could not forget post " + postData.getId(), e);
+		}
+	}
+
+	private void insert(PostData postData) throws InterruptedException {
 		
 		SolrInputDocument postDocument = new SolrInputDocument();
 		
 		postDocument.addField("id", postData.getId());
+		postDocument.addField("item_id", CrawlerHelper.getItemIdFromAtomId(postData.getId()));
 		postDocument.addField("parent_simpleid", postData.getParentSimpleId());
 		postDocument.addField("parent_fullid", postData.getParentFullId());
 		postDocument.addField("inreplyto", postData.getInReplyTo());
@@ -206,8 +222,7 @@ public class PostCrawler implements NodeCrawler {
 			Double lng = geolocation.getLng();
 			
 			if (lat != null && lng != null) {
-				postDocument.setField("geoloc", LATLNG_FORMAT.format(lat) + ","
-						+ LATLNG_FORMAT.format(lng));
+				postDocument.setField("geoloc", formatLatLng(lat, lng));
 			}
 			
 			if (geolocation.getText() != null) {
@@ -215,9 +230,13 @@ public class PostCrawler implements NodeCrawler {
 			}
 		}
 		
-		SolrServer solrServer = new SolrServerFactory().createPostCore(configuration);
-		solrServer.add(postDocument);
-		solrServer.commit();
+		indexer.addPost(postDocument);
+	}
+
+	private static String formatLatLng(Double lat, Double lng) {
+		synchronized (LATLNG_FORMAT) {
+			return LATLNG_FORMAT.format(lat) + "," + LATLNG_FORMAT.format(lng);
+		}
 	}
 
 	/* (non-Javadoc)
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+import com.buddycloud.channeldirectory.commons.solr.SolrBatchIndexer;
+import com.buddycloud.channeldirectory.commons.solr.SolrServerFactory;
+
+/**
+ * Removes retracted and purged posts from the post core, and
+ * their activity from channel_activity.
+ * 
+ * Retractions and purges are appended to the {@link IngestLog}, and
+ * only applied through {@link #index(IngestRecord)} once the posts
+ * logged before them were replayed, so a post retracted while its 
+ * add is still waiting in the log does not come back. 
+ * 
+ * Retracted posts are forgotten by the {@link SeenItemIndex} right away,
+ * and the posts of a purged node once the purge is replayed, so they 
+ * are indexed again if republished. The published
+ * date it kept for each retracted post is logged along, so the activity
+ * of the right day is decremented without looking the post up in Solr.
+ * Retracted items are deleted with a delete by query per batch of up 
+ * to 200 items, sent through the {@link SolrBatchIndexer}.
+ *
+ */
+public class PostRetractor {
+
+	private static Logger LOGGER = Logger.getLogger(PostRetractor.class);
+	
+	private static final int MAX_ITEMS_PER_QUERY = 200;
+	
+	private final Properties configuration;
+	private final SolrServerFactory solrFactory;
+	private final SolrBatchIndexer indexer;
+	private final ActivityAggregator activityAggregator;
+	private final SeenItemIndex seenItems;
+	private final IngestLog ingestLog;
+	
+	public PostRetractor(Properties configuration, SolrBatchIndexer indexer, 
+			ActivityAggregator activityAggregator, SeenItemIndex seenItems, 
+			IngestLog ingestLog) {
+		this(configuration, new SolrServerFactory(), indexer, activityAggregator, 
+				seenItems, ingestLog);
+	}
+	
+	public PostRetractor(Properties configuration, SolrServerFactory solrFactory, 
+			SolrBatchIndexer indexer, ActivityAggregator activityAggregator, 
+			SeenItemIndex seenItems, IngestLog ingestLog) {
+		this.configuration = configuration;
+		this.solrFactory = solrFactory;
+		this.indexer = indexer;
+		this.activityAggregator = activityAggregator;
+		this.seenItems = seenItems;
+		this.ingestLog = ingestLog;
+	}
+	
+	/**
+	 * Logs the retraction of the given pubsub items, grouped by node.
+	 * 
+	 * @param itemIdsByNode
+	 * @throws Exception
+	 */
+	public void retract(Map<String, List<String>> itemIdsByNode) throws Exception {
+		for (Entry<String, List<String>> entry : itemIdsByNode.entrySet()) {
+			String nodeId = entry.getKey();
+			List<String> itemIds = entry.getValue();
+			List<Date> published = new ArrayList<Date>(itemIds.size());
+			for (String itemId : itemIds) {
+				long publishedTime = seenItems.remove(SeenItemIndex.itemKey(nodeId, itemId));
+				published.add(publishedTime == SeenItemIndex.NONE ? null 
+						: new Date(publishedTime));
+			}
+			ingestLog.append(IngestRecord.retraction(nodeId, itemIds, published));
+		}
+	}
+	
+	/**
+	 * Logs the purge of the given node. Purging a posts
+	 * node also drops the activity of its channel.
+	 * 
+	 * @param nodeId
+	 * @throws Exception
+	 */
+	public void purge(String nodeId) throws Exception {
+		ingestLog.append(IngestRecord.purge(nodeId));
+	}
+	
+	/**
+	 * Applies a retraction or a purge replayed from the ingest log.
+	 * 
+	 * @param countActivity false if the record was counted before a crash
+	 */
+	void index(IngestRecord record, boolean countActivity) throws Exception {
+		String nodeId = record.getNodeId();
+		if (record.getType() == IngestRecord.PURGE) {
+			// Before the delete reaches Solr, as the posts are looked up there
+			try {
+				forgetNode(nodeId);
+			} catch (Exception e) {
+				LOGGER.warn("Could not forget the posts of purged node " + nodeId 
+						+ ", they are only indexed again if edited.", e);
+			}
+			indexer.deletePosts("parent_fullid:" + ClientUtils.escapeQueryChars(nodeId));
+			if (countActivity && nodeId.endsWith("/posts")) {
+				activityAggregator.clear(CrawlerHelper.getChannelFromNode(nodeId));
+			}
+			return;
+		}
+		
+		String channelJid = CrawlerHelper.getChannelFromNode(nodeId);
+		for (Date published : record.getPublished()) {
+			if (countActivity && published != null) {
+				activityAggregator.remove(channelJid, published);
+			}
+		}
+		
+		List<String> itemIds = record.getItemIds();
+		for (int start = 0; start < itemIds.size(); start += MAX_ITEMS_PER_QUERY) {
+			List<String> chunk = itemIds.subList(start, 
+					Math.min(start + MAX_ITEMS_PER_QUERY, itemIds.size()));
+			indexer.deletePosts(createItemsClause(nodeId, chunk));
+		}
+	}
+	
+	private static String createItemsClause(String nodeId, List<String> itemIds) {
+		StringBuilder clause = new StringBuilder();
+		clause.append("(parent_fullid:").append(ClientUtils.escapeQueryChars(nodeId));
+		clause.append(" AND item_id:(");
+		for (int i = 0; i < itemIds.size(); i++) {
+			if (i > 0) {
+				clause.append(" OR ");
+			}
+			clause.append(ClientUtils.escapeQueryChars(itemIds.get(i)));
+		}
+		clause.append("))");
+		return clause.toString();
+	}
+	
+	/**
+	 * Removes the indexed posts of the given node from the {@link SeenItemIndex}.
+	 */
+	private void forgetNode(String nodeId) throws Exception {
+		SolrServer solrServer = solrFactory.createPostCore(configuration);
+		SolrQuery solrQuery = new SolrQuery(
+				"parent_fullid:" + ClientUtils.escapeQueryChars(nodeId));
+		solrQuery.setFields("item_id");
+		solrQuery.setRows(MAX_ITEMS_PER_QUERY);
+		
+		int start = 0;
+		while (true) {
+			solrQuery.setStart(start);
+			SolrDocumentList results = solrServer.query(solrQuery).getResults();
+			for (SolrDocument document : results) {
+				seenItems.remove(SeenItemIndex.itemKey(nodeId, 
+						(String) document.getFieldValue("item_id")));
+			}
+			start += results.size();
+			if (results.isEmpty() || start >= results.getNumFound()) {
+				return;
+			}
+		}
+	}
+}
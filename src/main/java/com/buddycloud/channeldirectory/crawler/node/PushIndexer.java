@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
+
+/**
+ * Indexes posts pushed to us by the channel servers we are subscribed
+ * to, through the same path as the {@link PostCrawler}, and hands
+ * retracted items and purged nodes over to the {@link PostRetractor}.
+ * 
+ * Events are queued, up to crawler.push.queuesize of them, and
+ * processed by a single worker in batches of crawler.push.batchsize.
+ * Posts that don't fit in the queue are dropped, the next crawl of
+ * their node picks them up. Crawls don't notice deleted items though,
+ * so retractions and purges wait up to crawler.push.offertimeout 
+ * milliseconds for room in the queue before being dropped.
+ * 
+ */
+public class PushIndexer {
+
+	private static Logger LOGGER = Logger.getLogger(PushIndexer.class);
+	
+	private static final int DEF_QUEUE_SIZE = 10000;
+	private static final int DEF_BATCH_SIZE = 100;
+	private static final long DEF_OFFER_TIMEOUT = 5000; // In milliseconds
+	
+	private final PostCrawler postCrawler;
+	private final PostRetractor postRetractor;
+	private final BlockingQueue<PushEvent> queue;
+	private final int batchSize;
+	private final long offerTimeout;
+	private final Thread worker;
+	
+	public PushIndexer(Properties configuration, PostCrawler postCrawler, 
+			PostRetractor postRetractor) {
+		this.postCrawler = postCrawler;
+		this.postRetractor = postRetractor;
+		
+		String queueSizeStr = configuration.getProperty("crawler.push.queuesize");
+		int queueSize = queueSizeStr == null ? DEF_QUEUE_SIZE 
+				: Integer.parseInt(queueSizeStr);
+		this.queue = new ArrayBlockingQueue<PushEvent>(queueSize);
+		
+		String batchSizeStr = configuration.getProperty("crawler.push.batchsize");
+		this.batchSize = batchSizeStr == null ? DEF_BATCH_SIZE 
+				: Integer.parseInt(batchSizeStr);
+		
+		String offerTimeoutStr = configuration.getProperty("crawler.push.offertimeout");
+		this.offerTimeout = offerTimeoutStr == null ? DEF_OFFER_TIMEOUT 
+				: Long.parseLong(offerTimeoutStr);
+		
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "push-indexer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	/**
+	 * Enqueues a post published to the given node. 
+	 * Never blocks, so it can be called from the packet reader.
+	 * 
+	 * @param nodeId
+	 * @param postData
+	 * @return false if the queue was full and the post was dropped
+	 */
+	public boolean offer(String nodeId, PostData postData) {
+		if (!queue.offer(new PushEvent(nodeId, postData, null))) {
+			LOGGER.warn("Push queue is full, dropping post " + postData.getId() 
+					+ ". It will be indexed on the next crawl of " + nodeId);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Enqueues items retracted from the given node, waiting
+	 * for room in the queue up to crawler.push.offertimeout.
+	 * 
+	 * @param nodeId
+	 * @param itemIds
+	 * @return false if the queue stayed full and the retraction was dropped
+	 */
+	public boolean offerRetraction(String nodeId, List<String> itemIds) {
+		if (!offerOrWait(new PushEvent(nodeId, null, itemIds))) {
+			LOGGER.warn("Push queue is full, dropping " + itemIds.size() 
+					+ " items retracted from " + nodeId 
+					+ ". They stay indexed until their node is purged.");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Enqueues the purge of the given node, waiting for
+	 * room in the queue up to crawler.push.offertimeout.
+	 * 
+	 * @param nodeId
+	 * @return false if the queue stayed full and the purge was dropped
+	 */
+	public boolean offerPurge(String nodeId) {
+		if (!offerOrWait(new PushEvent(nodeId, null, null))) {
+			LOGGER.warn("Push queue is full, dropping purge of " + nodeId 
+					+ ". Its posts stay indexed.");
+			return false;
+		}
+		return true;
+	}
+	
+	private boolean offerOrWait(PushEvent event) {
+		try {
+			return queue.offer(event, offerTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	private void work() {
+		List<PushEvent> batch = new ArrayList<PushEvent>(batchSize);
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch, batchSize - 1);
+			
+			try {
+				process(batch);
+			} catch (InterruptedException e) {
+				break;
+			}
+			postCrawler.flush();
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Events are handled in the order they were queued, so a post
+	 * republished after a retraction or a purge of its node survives it.
+	 */
+	private void process(List<PushEvent> batch) throws InterruptedException {
+		for (PushEvent event : batch) {
+			try {
+				if (event.postData != null) {
+					postCrawler.processPost(event.nodeId, 
+							CrawlerHelper.getChannelFromNode(event.nodeId), 
+							event.postData);
+				} else if (event.itemIds != null) {
+					postRetractor.retract(Collections.singletonMap(
+							event.nodeId, event.itemIds));
+				} else {
+					postRetractor.purge(event.nodeId);
+				}
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				LOGGER.warn("Could not index pushed event of " + event.nodeId, e);
+			}
+		}
+	}
+	
+	/**
+	 * Stops the worker, events still queued are left
+	 * for the next crawl.
+	 */
+	public void close() {
+		worker.interrupt();
+	}
+	
+	/**
+	 * A published post, retracted items (itemIds) 
+	 * or a purge of the node (neither).
+	 */
+	private static class PushEvent {
+		
+		private final String nodeId;
+		private final PostData postData;
+		private final List<String> itemIds;
+		
+		public PushEvent(String nodeId, PostData postData, List<String> itemIds) {
+			this.nodeId = nodeId;
+			this.postData = postData;
+			this.itemIds = itemIds;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.jivesoftware.smack.SmackException.NoResponseException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.util.PacketUtil;
+import org.jivesoftware.smackx.pubsub.BuddycloudNode;
+import org.jivesoftware.smackx.pubsub.Item;
+import org.jivesoftware.smackx.rsm.packet.RSMSet;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Pages through an RSM-paged pubsub request, asking for the next
+ * page as soon as the current one arrives, so the next page is on
+ * its way while the current one is being processed.
+ *
+ * Callers that stop before the last page should {@link #close()}
+ * the iterator, to drop the page requested ahead. Callers that stop
+ * at a known item should rather have the {@link Pager} tell so, as
+ * incremental crawls mostly stop in their first page, and nothing
+ * is requested ahead of a page the pager marks as the last one.
+ *
+ * Given {@link RSMPageSizes}, every page is asked with the page size
+ * tuned for its server, and the time it took and its size are fed 
+ * back to it. The size is estimated from one item serialized per page,
+ * as serializing every parsed item again would cost more than the page.
+ *
+ */
+public class RSMPageIterator<T> {
+
+	private final Pager<T> pager;
+	private final RSMPageSizes pageSizes;
+	private final String server;
+	
+	private ListenableFuture<List<T>> pending;
+	private List<PacketExtension> pendingExtensions;
+	private int pendingMax;
+	private long pendingRequested;
+	private volatile long pendingAnswered;
+	private boolean paged;
+	private double averageItemSize;
+	private int sampledItems;
+
+	/**
+	 * Requests the first page right away, leaving
+	 * the page size to the server.
+	 *
+	 * @param pager
+	 * @param after the item to start after, or null to start from the top
+	 */
+	public RSMPageIterator(Pager<T> pager, String after) {
+		this(pager, after, null, null);
+	}
+	
+	/**
+	 * Requests the first page right away.
+	 *
+	 * @param pager
+	 * @param after the item to start after, or null to start from the top
+	 * @param pageSizes the page sizes to ask with, or null to leave them to the server
+	 * @param server the channel server the pages come from
+	 */
+	public RSMPageIterator(Pager<T> pager, String after, 
+			RSMPageSizes pageSizes, String server) {
+		this.pager = pager;
+		this.pageSizes = pageSizes;
+		this.server = server;
+		request(after);
+	}
+
+	private void request(String after) {
+		List<PacketExtension> additionalExtensions = new LinkedList<PacketExtension>();
+		if (pageSizes != null) {
+			this.pendingMax = pageSizes.getMax(server);
+			additionalExtensions.add(after == null ? new RSMSet(pendingMax) 
+					: new RSMSet(pendingMax, after, RSMSet.PageDirection.after));
+		} else if (after != null) {
+			additionalExtensions.add(RSMSet.newAfter(after));
+		}
+		this.pendingExtensions = new LinkedList<PacketExtension>();
+		this.pending = pager.fetch(additionalExtensions, pendingExtensions);
+		
+		// Fetching may wait for a request slot, which is not the server's doing
+		this.pendingRequested = System.currentTimeMillis();
+		this.pendingAnswered = 0;
+		pending.addListener(new Runnable() {
+			@Override
+			public void run() {
+				pendingAnswered = System.currentTimeMillis();
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+	
+	private void recordPage(List<T> page) {
+		if (pageSizes == null) {
+			return;
+		}
+		long latency = Math.max(0, pendingAnswered - pendingRequested);
+		if (!page.isEmpty() && page.get(0) instanceof PacketExtension) {
+			int itemSize = ((PacketExtension) page.get(0)).toXML().length();
+			averageItemSize += (itemSize - averageItemSize) / ++sampledItems;
+		}
+		long stanzaSize = Math.round(averageItemSize * page.size());
+		pageSizes.succeeded(server, pendingMax, page.size(), latency, stanzaSize);
+	}
+
+	/**
+	 * Waits for the next page and requests the one after it.
+	 *
+	 * @return the next page, or null after the last one
+	 * @throws Exception if the page could not be fetched
+	 */
+	public List<T> next() throws Exception {
+		if (pending == null) {
+			return null;
+		}
+		List<T> page;
+		try {
+			page = pending.get();
+		} catch (ExecutionException e) {
+			pending = null;
+			Throwable cause = e.getCause();
+			if (pageSizes != null && isOverloaded(cause)) {
+				pageSizes.failed(server);
+			}
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+		recordPage(page);
+		RSMSet returnedRsmSet = PacketUtil.packetExtensionfromCollection(
+				pendingExtensions, RSMSet.ELEMENT, RSMSet.NAMESPACE);
+		if (returnedRsmSet != null) {
+			paged = true;
+		}
+		if (page.isEmpty()) {
+			pending = null;
+			return null;
+		}
+
+		String after = pager.getAfter(page, returnedRsmSet);
+		if (after == null) {
+			pending = null;
+		} else {
+			request(after);
+		}
+		return page;
+	}
+
+	/**
+	 * Only timeouts and wait-type errors tell the page was too 
+	 * big for the server, any other error is an answer like any other.
+	 */
+	private static boolean isOverloaded(Throwable cause) {
+		if (cause instanceof NoResponseException) {
+			return true;
+		}
+		if (cause instanceof XMPPErrorException) {
+			XMPPError error = ((XMPPErrorException) cause).getXMPPError();
+			return error != null && error.getType() == XMPPError.Type.WAIT;
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether any page so far was answered with an RSM set,
+	 * without which a server may have left out what did not fit 
+	 */
+	public boolean isPaged() {
+		return paged;
+	}
+
+	/**
+	 * Drops the page requested ahead, if any.
+	 */
+	public void close() {
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+
+	/**
+	 * Pages through the items of the given node, after
+	 * the Atom id of the last item of every page.
+	 *
+	 * @param node
+	 * @param after
+	 * @return
+	 */
+	public static RSMPageIterator<Item> items(final BuddycloudNode node, String after) {
+		return items(node, after, null, null, null);
+	}
+	
+	/**
+	 * Pages through the items of the given node with the page sizes
+	 * tuned for its server, down to the page holding the given item.
+	 *
+	 * @param node
+	 * @param after
+	 * @param stopItemId the Atom id of the item to stop at, or null
+	 * @param pageSizes
+	 * @param server
+	 * @return
+	 */
+	public static RSMPageIterator<Item> items(final BuddycloudNode node, String after, 
+			final String stopItemId, RSMPageSizes pageSizes, String server) {
+		return new RSMPageIterator<Item>(new Pager<Item>() {
+			@Override
+			public ListenableFuture<List<Item>> fetch(List<PacketExtension> additionalExtensions,
+					List<PacketExtension> returnedExtensions) {
+				return node.getItemsAsync(additionalExtensions, returnedExtensions);
+			}
+
+			@Override
+			public String getAfter(List<Item> page, RSMSet returnedRsmSet) 
+					throws Exception {
+				String itemId = null;
+				for (Item item : page) {
+					itemId = CrawlerHelper.getPostData(item).getId();
+					if (itemId.equals(stopItemId)) {
+						return null;
+					}
+				}
+				return itemId;
+			}
+		}, after, pageSizes, server);
+	}
+
+	/**
+	 * A single RSM-paged request.
+	 */
+	public static interface Pager<T> {
+
+		/**
+		 * Requests a page.
+		 *
+		 * @param additionalExtensions the RSM set of the page
+		 * @param returnedExtensions filled in with the extensions of the answer
+		 * @return
+		 */
+		ListenableFuture<List<T>> fetch(List<PacketExtension> additionalExtensions,
+				List<PacketExtension> returnedExtensions);
+
+		/**
+		 * @param page
+		 * @param returnedRsmSet the RSM set of the answer, if any
+		 * @return the item to ask the next page after, or null after the last page
+		 * @throws Exception
+		 */
+		String getAfter(List<T> page, RSMSet returnedRsmSet) throws Exception;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.commons.ConfigurationUtils;
+
+/**
+ * Tunes the RSM page size (the max of every RSM set) asked to each
+ * channel server, instead of taking whatever default page the server
+ * returns.
+ *
+ * A full page that came back within crawler.rsm.latencytarget
+ * milliseconds and under crawler.rsm.maxstanzasize characters grows
+ * the page size by half, up to crawler.rsm.maxmax. A slow page shrinks
+ * it by a quarter, an oversized one down to what would have fit, and
+ * a timeout or a wait-type error halves it, down to crawler.rsm.minmax.
+ * The page size of every server is kept by {@link ServerCapabilities},
+ * so the next crawl starts from it.
+ *
+ */
+public class RSMPageSizes {
+
+	private static Logger LOGGER = Logger.getLogger(RSMPageSizes.class);
+
+	private static final int DEF_INITIAL_MAX = 50;
+	private static final int DEF_MIN_MAX = 10;
+	private static final int DEF_MAX_MAX = 1000;
+	private static final long DEF_LATENCY_TARGET = 2000; // In milliseconds
+	private static final long DEF_MAX_STANZA_SIZE = 512 * 1024; // In characters
+
+	private final ServerCapabilities capabilities;
+	private final int initialMax;
+	private final int minMax;
+	private final int maxMax;
+	private final long latencyTarget;
+	private final long maxStanzaSize;
+
+	public RSMPageSizes(Properties configuration, ServerCapabilities capabilities) {
+		this.capabilities = capabilities;
+		this.initialMax = ConfigurationUtils.getInt(configuration, 
+				"crawler.rsm.initialmax", DEF_INITIAL_MAX);
+		this.minMax = ConfigurationUtils.getInt(configuration, 
+				"crawler.rsm.minmax", DEF_MIN_MAX);
+		this.maxMax = ConfigurationUtils.getInt(configuration, 
+				"crawler.rsm.maxmax", DEF_MAX_MAX);
+		this.latencyTarget = ConfigurationUtils.getLong(configuration, 
+				"crawler.rsm.latencytarget", DEF_LATENCY_TARGET);
+		this.maxStanzaSize = ConfigurationUtils.getLong(configuration, 
+				"crawler.rsm.maxstanzasize", DEF_MAX_STANZA_SIZE);
+	}
+
+	/**
+	 * @param server
+	 * @return the page size to ask the given server for
+	 */
+	public int getMax(String server) {
+		int max = capabilities.getRsmMax(server);
+		return max <= 0 ? initialMax : max;
+	}
+
+	/**
+	 * Records a page received from the given server.
+	 *
+	 * @param server
+	 * @param requestedMax the page size the page was asked with
+	 * @param items the number of items in the page
+	 * @param latency in milliseconds
+	 * @param stanzaSize the length of the items, in characters
+	 */
+	public synchronized void succeeded(String server, int requestedMax, int items,
+			long latency, long stanzaSize) {
+		int max = getMax(server);
+		int newMax = max;
+		if (stanzaSize > maxStanzaSize) {
+			newMax = (int) (requestedMax * maxStanzaSize / stanzaSize);
+		} else if (latency > latencyTarget) {
+			newMax = max * 3 / 4;
+		} else if (items >= requestedMax && requestedMax >= max) {
+			newMax = max + Math.max(1, max / 2);
+		}
+		update(server, max, newMax);
+	}
+
+	/**
+	 * Records a timeout or a wait-type error from the given server.
+	 *
+	 * @param server
+	 */
+	public synchronized void failed(String server) {
+		int max = getMax(server);
+		update(server, max, max / 2);
+	}
+
+	private void update(String server, int max, int newMax) {
+		newMax = Math.max(minMax, Math.min(maxMax, newMax));
+		if (newMax == max) {
+			return;
+		}
+		LOGGER.debug("RSM page size of " + server + " is now " + newMax);
+		capabilities.setRsmMax(server, newMax);
+	}
+}
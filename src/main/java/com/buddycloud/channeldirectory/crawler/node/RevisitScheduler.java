@@ -0,0 +1,263 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+/**
+ * Decides when each node is due for its next visit, so active
+ * channels are crawled often and dormant ones rarely.
+ * 
+ * A node's revisit interval is crawler.revisit.maxinterval divided by
+ * one plus the summarized_activity of its channel, scaled between 0.5x
+ * and 1.5x by how often recent visits found new items, and kept within
+ * crawler.revisit.mininterval. The last visit of a node is the oldest
+ * of its metadata_updated, subscribers_updated and items_crawled
+ * timestamps, which are all written when a visit succeeds.
+ * Nodes that were never visited are due right away. A failed visit
+ * is retried after crawler.revisit.retrybackoff milliseconds, doubled
+ * on every further failure up to crawler.revisit.mininterval.
+ * 
+ * Nodes of servers with a working firehose only need their metadata
+ * and followers refreshed, as their posts come with the firehose,
+ * so they are visited at most every crawler.revisit.metadatainterval.
+ *
+ */
+public class RevisitScheduler {
+
+	private static Logger LOGGER = Logger.getLogger(RevisitScheduler.class);
+	
+	private static final long DEF_MIN_INTERVAL = 30L * 60 * 1000; // 30 minutes
+	private static final long DEF_MAX_INTERVAL = 7L * 24 * 60 * 60 * 1000; // 7 days
+	private static final long DEF_METADATA_INTERVAL = 24L * 60 * 60 * 1000; // 1 day
+	private static final long DEF_RETRY_BACKOFF = 60L * 1000; // 1 minute
+	private static final double INITIAL_YIELD = 0.5;
+	private static final double YIELD_WEIGHT = 0.3;
+	
+	private final ChannelDirectoryDataSource dataSource;
+	private final ServerCapabilities capabilities;
+	private final long minInterval;
+	private final long maxInterval;
+	private final long metadataInterval;
+	private final long retryBackoff;
+	
+	private final ConcurrentMap<String, NodeVisit> visits = 
+			new ConcurrentHashMap<String, NodeVisit>();
+	private volatile Map<String, Long> channelActivity = new HashMap<String, Long>();
+	
+	public RevisitScheduler(Properties configuration, ChannelDirectoryDataSource dataSource, 
+			ServerCapabilities capabilities) {
+		this.dataSource = dataSource;
+		this.capabilities = capabilities;
+		
+		String minIntervalStr = configuration.getProperty("crawler.revisit.mininterval");
+		this.minInterval = minIntervalStr == null ? DEF_MIN_INTERVAL 
+				: Long.parseLong(minIntervalStr);
+		
+		String maxIntervalStr = configuration.getProperty("crawler.revisit.maxinterval");
+		this.maxInterval = maxIntervalStr == null ? DEF_MAX_INTERVAL 
+				: Long.parseLong(maxIntervalStr);
+		
+		String metadataIntervalStr = configuration.getProperty("crawler.revisit.metadatainterval");
+		this.metadataInterval = metadataIntervalStr == null ? DEF_METADATA_INTERVAL 
+				: Long.parseLong(metadataIntervalStr);
+		
+		String retryBackoffStr = configuration.getProperty("crawler.revisit.retrybackoff");
+		this.retryBackoff = retryBackoffStr == null ? DEF_RETRY_BACKOFF 
+				: Long.parseLong(retryBackoffStr);
+	}
+	
+	/**
+	 * Loads the last visit of every subscribed node, 
+	 * along with the current channel activity.
+	 * 
+	 * @throws SQLException
+	 */
+	public void load() throws SQLException {
+		loadActivity();
+		
+		Statement statement = dataSource.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(
+					"SELECT name, server, metadata_updated, subscribers_updated, items_crawled " +
+					"FROM subscribed_node");
+			while (resultSet.next()) {
+				Timestamp lastVisit = oldest(resultSet.getTimestamp("metadata_updated"), 
+						resultSet.getTimestamp("subscribers_updated"), 
+						resultSet.getTimestamp("items_crawled"));
+				if (lastVisit == null) {
+					continue;
+				}
+				String node = resultSet.getString("name");
+				String server = resultSet.getString("server");
+				NodeVisit visit = new NodeVisit();
+				visit.nextVisit = lastVisit.getTime() + getInterval(node, server, visit.yield);
+				visits.put(key(node, server), visit);
+			}
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+	
+	/**
+	 * Refreshes the summarized activity of every channel, 
+	 * meant to be called once per crawl cycle.
+	 * 
+	 * @throws SQLException
+	 */
+	public void loadActivity() throws SQLException {
+		Map<String, Long> activity = new HashMap<String, Long>();
+		Statement statement = dataSource.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(
+					"SELECT channel_jid, summarized_activity FROM channel_activity");
+			while (resultSet.next()) {
+				activity.put(resultSet.getString("channel_jid"), 
+						resultSet.getLong("summarized_activity"));
+			}
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+		this.channelActivity = activity;
+	}
+	
+	private static Timestamp oldest(Timestamp... timestamps) {
+		Timestamp oldest = null;
+		for (Timestamp timestamp : timestamps) {
+			if (timestamp == null) {
+				return null;
+			}
+			if (oldest == null || timestamp.before(oldest)) {
+				oldest = timestamp;
+			}
+		}
+		return oldest;
+	}
+	
+	/**
+	 * @param node
+	 * @param server
+	 * @return when the given node is due, 0 if it was never visited
+	 */
+	public long getNextVisit(String node, String server) {
+		NodeVisit visit = visits.get(key(node, server));
+		return visit == null ? 0 : visit.nextVisit;
+	}
+	
+	/**
+	 * Schedules the next visit of the given node. Successful visits are
+	 * written to subscribed_node, failed ones are retried shortly.
+	 * 
+	 * @param node
+	 * @param server
+	 * @param foundNewItems whether the visit found items newer than the last one
+	 * @param succeeded whether every crawler succeeded
+	 */
+	public void visited(String node, String server, boolean foundNewItems, boolean succeeded) {
+		long now = System.currentTimeMillis();
+		
+		NodeVisit visit = visits.get(key(node, server));
+		if (visit == null) {
+			visit = new NodeVisit();
+			visits.put(key(node, server), visit);
+		}
+		
+		if (!succeeded) {
+			visit.failures++;
+			visit.nextVisit = now + getRetryInterval(visit.failures);
+			return;
+		}
+		visit.failures = 0;
+		visit.yield = (1 - YIELD_WEIGHT) * visit.yield + YIELD_WEIGHT * (foundNewItems ? 1 : 0);
+		visit.nextVisit = now + getInterval(node, server, visit.yield);
+		
+		Timestamp visited = new Timestamp(now);
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.prepareStatement(
+					"UPDATE subscribed_node SET metadata_updated = ?, " +
+					"subscribers_updated = ?, items_crawled = ? " +
+					"WHERE name = ? AND server = ?", 
+					visited, visited, visited, node, server);
+			statement.execute();
+		} catch (SQLException e) {
+			LOGGER.warn("Could not record visit of " + node + " at " + server, e);
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+	
+	/**
+	 * Forgets the visits of nodes that were removed from the given server.
+	 * 
+	 * @param nodes
+	 * @param server
+	 */
+	public void removeNodes(Collection<String> nodes, String server) {
+		for (String node : nodes) {
+			visits.remove(key(node, server));
+		}
+	}
+	
+	long getRetryInterval(int failures) {
+		long interval = retryBackoff;
+		for (int i = 1; i < failures && interval < minInterval; i++) {
+			interval *= 2;
+		}
+		return Math.min(minInterval, interval);
+	}
+	
+	long getInterval(String node, String server, double yield) {
+		Long activity = null;
+		String[] nodeSplitted = node.split("/");
+		if (nodeSplitted.length > 2) {
+			activity = channelActivity.get(nodeSplitted[2]);
+		}
+		
+		double interval = (double) maxInterval / (1 + (activity == null ? 0 : activity));
+		interval *= 1.5 - yield;
+		
+		long nodeInterval = Math.max(minInterval, Math.min(maxInterval, (long) interval));
+		if (capabilities.isFirehoseSupported(server)) {
+			return Math.max(metadataInterval, nodeInterval);
+		}
+		return nodeInterval;
+	}
+	
+	private static String key(String node, String server) {
+		return server + node;
+	}
+	
+	private static class NodeVisit {
+		private volatile long nextVisit;
+		private volatile double yield = INITIAL_YIELD;
+		private volatile int failures;
+	}
+}
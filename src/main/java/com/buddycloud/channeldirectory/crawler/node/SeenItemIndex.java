@@ -0,0 +1,409 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers a content hash of every post indexed so far, keyed by
+ * its node and item id, so unchanged posts coming from the firehose, a node
+ * crawl or a push are dropped before they reach Solr and the channel
+ * activity, while edited posts still go through. The published date
+ * of every post is kept along, so a retracted post can be taken out
+ * of the activity of its day without looking it up in Solr.
+ *
+ * Ids and content hashes are kept as 64-bit hashes in sorted
+ * arrays, with recent changes in a small map that is merged into
+ * them every {@link #MERGE_THRESHOLD} changes, and a Bloom filter
+ * in front that answers for most new posts without a lookup.
+ * Every change is appended to crawler.seenitems.file, which is
+ * read back on {@link #load()}, and rewritten with only the live
+ * posts whenever most of its records are stale.
+ *
+ */
+public class SeenItemIndex {
+
+	private static Logger LOGGER = Logger.getLogger(SeenItemIndex.class);
+
+	/**
+	 * Content hash returned for posts that were never seen.
+	 */
+	public static final long NONE = 0;
+
+	private static final String DEF_FILE = "seen-items.dat";
+	private static final int DEF_EXPECTED_SIZE = 1000000;
+	private static final int BLOOM_BITS_PER_ITEM = 10;
+	private static final int BLOOM_HASHES = 7;
+	private static final int MERGE_THRESHOLD = 10000;
+
+	private final File file;
+	private final BitSet bloomFilter;
+	private final int bloomBits;
+
+	private long[] sortedIds = new long[0];
+	private long[] sortedHashes = new long[0];
+	private long[] sortedPublished = new long[0];
+	private Map<Long, Seen> recent = new HashMap<Long, Seen>();
+	private DataOutputStream log;
+	private long logRecords;
+
+	public SeenItemIndex(Properties configuration) {
+		String fileStr = configuration.getProperty("crawler.seenitems.file");
+		this.file = new File(fileStr == null ? DEF_FILE : fileStr);
+
+		String expectedSizeStr = configuration.getProperty("crawler.seenitems.expectedsize");
+		int expectedSize = expectedSizeStr == null ? DEF_EXPECTED_SIZE
+				: Integer.parseInt(expectedSizeStr);
+		this.bloomBits = Math.max(64, expectedSize * BLOOM_BITS_PER_ITEM);
+		this.bloomFilter = new BitSet(bloomBits);
+	}
+
+	/**
+	 * Reads back every change appended to the index file,
+	 * rewriting it if most of its records are stale.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void load() throws IOException {
+		int records = 0;
+		if (file.exists()) {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					long id = in.readLong();
+					long hash = in.readLong();
+					long published = in.readLong();
+					set(id, hash, published);
+					records++;
+				}
+			} catch (EOFException e) {
+				// A record cut short by a crash is dropped
+			} finally {
+				in.close();
+			}
+		}
+		this.logRecords = records;
+		merge();
+
+		if (isStale()) {
+			compact();
+		}
+		openLog();
+
+		LOGGER.info("Loaded " + sortedIds.length + " seen items.");
+	}
+
+	private void openLog() throws FileNotFoundException {
+		this.log = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file, true)));
+	}
+
+	private boolean isStale() {
+		return logRecords > 2 * (sortedIds.length + recent.size()) + MERGE_THRESHOLD;
+	}
+
+	/**
+	 * Rewrites the index file with the live posts only. The file
+	 * is replaced atomically, so a crash keeps either version.
+	 */
+	private void compact() throws IOException {
+		merge();
+		File compacted = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(compacted);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		try {
+			for (int i = 0; i < sortedIds.length; i++) {
+				out.writeLong(sortedIds[i]);
+				out.writeLong(sortedHashes[i]);
+				out.writeLong(sortedPublished[i]);
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(compacted.toPath(), file.toPath(), 
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		this.logRecords = sortedIds.length;
+	}
+
+	/**
+	 * Records the content hash of the given post.
+	 *
+	 * @param itemId see {@link #itemKey(String, String)}
+	 * @param contentHash see {@link #contentHash(long, String)}
+	 * @param published the published date of the post, in milliseconds
+	 * @return the content hash previously recorded, or {@link #NONE}
+	 * @throws IOException
+	 */
+	public synchronized long put(String itemId, long contentHash, long published) 
+			throws IOException {
+		long id = idHash(itemId);
+		long previous = get(id).hash;
+		if (previous != contentHash) {
+			set(id, contentHash, published);
+			append(id, contentHash, published);
+		}
+		return previous;
+	}
+
+	/**
+	 * Puts back the previous content hash of the given post, unless
+	 * it changed again since, for posts that failed to be indexed.
+	 *
+	 * @param itemId
+	 * @param contentHash the content hash that was put
+	 * @param previous the content hash returned by put
+	 * @throws IOException
+	 */
+	public synchronized void revert(String itemId, long contentHash, long previous)
+			throws IOException {
+		long id = idHash(itemId);
+		Seen seen = get(id);
+		if (seen.hash == contentHash && previous != contentHash) {
+			set(id, previous, seen.published);
+			append(id, previous, seen.published);
+		}
+	}
+
+	/**
+	 * Forgets the given post, for retracted and purged posts,
+	 * so the same post is indexed again if it is republished.
+	 *
+	 * @param itemId
+	 * @return the published date of the post, in milliseconds,
+	 * or {@link #NONE} if it was never seen
+	 * @throws IOException
+	 */
+	public synchronized long remove(String itemId) throws IOException {
+		long id = idHash(itemId);
+		Seen seen = get(id);
+		if (seen.hash == NONE) {
+			return NONE;
+		}
+		set(id, NONE, NONE);
+		append(id, NONE, NONE);
+		return seen.published;
+	}
+
+	/**
+	 * Writes the changes appended so far to the index file.
+	 */
+	public synchronized void flush() {
+		if (log == null) {
+			return;
+		}
+		try {
+			log.flush();
+		} catch (IOException e) {
+			LOGGER.warn("Could not write seen items to " + file, e);
+		}
+	}
+
+	public synchronized void close() {
+		flush();
+		if (log == null) {
+			return;
+		}
+		try {
+			log.close();
+		} catch (IOException e) {
+			LOGGER.warn(e);
+		}
+		log = null;
+	}
+
+	private void append(long id, long hash, long published) throws IOException {
+		if (log == null) {
+			return;
+		}
+		log.writeLong(id);
+		log.writeLong(hash);
+		log.writeLong(published);
+		logRecords++;
+		
+		if (isStale()) {
+			try {
+				log.close();
+				compact();
+			} finally {
+				openLog();
+			}
+		}
+	}
+
+	private Seen get(long id) {
+		if (!mightContain(id)) {
+			return Seen.UNSEEN;
+		}
+		Seen seen = recent.get(id);
+		if (seen != null) {
+			return seen;
+		}
+		int i = Arrays.binarySearch(sortedIds, id);
+		return i < 0 ? Seen.UNSEEN : new Seen(sortedHashes[i], sortedPublished[i]);
+	}
+
+	private void set(long id, long hash, long published) {
+		addToBloomFilter(id);
+		recent.put(id, new Seen(hash, published));
+		if (recent.size() >= MERGE_THRESHOLD) {
+			merge();
+		}
+	}
+
+	/**
+	 * Merges the recent changes into the sorted arrays,
+	 * dropping reverted posts.
+	 */
+	private void merge() {
+		if (recent.isEmpty()) {
+			return;
+		}
+		long[] recentIds = new long[recent.size()];
+		int n = 0;
+		for (Long id : recent.keySet()) {
+			recentIds[n++] = id;
+		}
+		Arrays.sort(recentIds);
+
+		long[] mergedIds = new long[sortedIds.length + recentIds.length];
+		long[] mergedHashes = new long[mergedIds.length];
+		long[] mergedPublished = new long[mergedIds.length];
+		int i = 0, j = 0, m = 0;
+		while (i < sortedIds.length || j < recentIds.length) {
+			long id;
+			Seen seen;
+			if (j == recentIds.length
+					|| (i < sortedIds.length && sortedIds[i] < recentIds[j])) {
+				id = sortedIds[i];
+				seen = new Seen(sortedHashes[i], sortedPublished[i++]);
+			} else {
+				if (i < sortedIds.length && sortedIds[i] == recentIds[j]) {
+					i++;
+				}
+				id = recentIds[j++];
+				seen = recent.get(id);
+			}
+			if (seen.hash != NONE) {
+				mergedIds[m] = id;
+				mergedHashes[m] = seen.hash;
+				mergedPublished[m++] = seen.published;
+			}
+		}
+		this.sortedIds = Arrays.copyOf(mergedIds, m);
+		this.sortedHashes = Arrays.copyOf(mergedHashes, m);
+		this.sortedPublished = Arrays.copyOf(mergedPublished, m);
+		this.recent = new HashMap<Long, Seen>();
+	}
+
+	private boolean mightContain(long id) {
+		int h1 = (int) id;
+		int h2 = (int) (id >>> 32);
+		for (int k = 1; k <= BLOOM_HASHES; k++) {
+			if (!bloomFilter.get(((h1 + k * h2) & Integer.MAX_VALUE) % bloomBits)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void addToBloomFilter(long id) {
+		int h1 = (int) id;
+		int h2 = (int) (id >>> 32);
+		for (int k = 1; k <= BLOOM_HASHES; k++) {
+			bloomFilter.set(((h1 + k * h2) & Integer.MAX_VALUE) % bloomBits);
+		}
+	}
+
+	/**
+	 * @param nodeId
+	 * @param itemId the pubsub item id of the post
+	 * @return the key of a post, the same whether it was crawled, 
+	 * pushed or retracted
+	 */
+	public static String itemKey(String nodeId, String itemId) {
+		return nodeId + "," + itemId;
+	}
+
+	/**
+	 * @param updated the updated timestamp of the post
+	 * @param content the body of the post
+	 * @return the content hash of a post, never {@link #NONE}
+	 */
+	public static long contentHash(long updated, String content) {
+		long hash = hash(updated + "\n" + (content == null ? "" : content));
+		return hash == NONE ? 1 : hash;
+	}
+
+	private static long idHash(String itemId) {
+		return hash(itemId);
+	}
+
+	private static long hash(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(
+					value.getBytes("UTF-8"));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The content hash and published date of a post.
+	 */
+	private static class Seen {
+
+		private static final Seen UNSEEN = new Seen(NONE, NONE);
+
+		private final long hash;
+		private final long published;
+
+		public Seen(long hash, long published) {
+			this.hash = hash;
+			this.published = published;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+/**
+ * In-process copy of channel_server, which records what each
+ * channel server was found to support the last time it was
+ * checked: a working firehose node, along with the RSM page
+ * size found to work best for it by {@link RSMPageSizes}.
+ *
+ * Capabilities are updated on every server crawl, so a server
+ * whose firehose breaks falls back to per-node crawls on the
+ * next cycle. Unknown servers support nothing until checked.
+ *
+ */
+public class ServerCapabilities {
+
+	private static Logger LOGGER = Logger.getLogger(ServerCapabilities.class);
+
+	private final ChannelDirectoryDataSource dataSource;
+	private final ConcurrentMap<String, Capabilities> servers =
+			new ConcurrentHashMap<String, Capabilities>();
+
+	public ServerCapabilities(ChannelDirectoryDataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Loads the capabilities of every checked server.
+	 *
+	 * @throws SQLException
+	 */
+	public void load() throws SQLException {
+		Statement statement = dataSource.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(
+					"SELECT name, firehose, rsm_max FROM channel_server");
+			while (resultSet.next()) {
+				Capabilities capabilities = new Capabilities();
+				capabilities.firehose = resultSet.getBoolean("firehose");
+				capabilities.rsmMax = resultSet.getInt("rsm_max");
+				servers.put(resultSet.getString("name"), capabilities);
+			}
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+
+	/**
+	 * @param server
+	 * @return whether the last firehose crawl of the given server succeeded
+	 */
+	public boolean isFirehoseSupported(String server) {
+		Capabilities capabilities = servers.get(server);
+		return capabilities != null && capabilities.firehose;
+	}
+
+	/**
+	 * @param server
+	 * @return the RSM page size to ask the given server for, or 0 if unknown
+	 */
+	public int getRsmMax(String server) {
+		Capabilities capabilities = servers.get(server);
+		return capabilities == null ? 0 : capabilities.rsmMax;
+	}
+
+	public void setFirehoseSupported(String server, boolean firehose) {
+		Capabilities capabilities = getCapabilities(server);
+		if (capabilities.firehose != firehose) {
+			LOGGER.info("Firehose of " + server + " is "
+					+ (firehose ? "working." : "not working."));
+		}
+		capabilities.firehose = firehose;
+		store(server, capabilities);
+	}
+
+	public void setRsmMax(String server, int rsmMax) {
+		Capabilities capabilities = getCapabilities(server);
+		capabilities.rsmMax = rsmMax;
+		store(server, capabilities);
+	}
+
+	private Capabilities getCapabilities(String server) {
+		Capabilities capabilities = servers.get(server);
+		if (capabilities == null) {
+			Capabilities newCapabilities = new Capabilities();
+			capabilities = servers.putIfAbsent(server, newCapabilities);
+			if (capabilities == null) {
+				capabilities = newCapabilities;
+			}
+		}
+		return capabilities;
+	}
+
+	private void store(String server, Capabilities capabilities) {
+		Timestamp checked = new Timestamp(System.currentTimeMillis());
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.prepareStatement(
+					"UPDATE channel_server SET firehose = ?, rsm_max = ?, " +
+					"checked = ? WHERE name = ?",
+					capabilities.firehose, capabilities.rsmMax, checked, server);
+			statement.execute();
+			if (statement.getUpdateCount() > 0) {
+				return;
+			}
+			ChannelDirectoryDataSource.close(statement);
+			statement = null;
+
+			statement = dataSource.prepareStatement(
+					"INSERT INTO channel_server(name, firehose, rsm_max, checked) " +
+					"VALUES (?, ?, ?, ?)",
+					server, capabilities.firehose, capabilities.rsmMax, checked);
+			statement.execute();
+		} catch (SQLException e) {
+			LOGGER.warn("Could not store capabilities of " + server, e);
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+
+	private static class Capabilities {
+		private volatile boolean firehose;
+		private volatile int rsmMax;
+	}
+}
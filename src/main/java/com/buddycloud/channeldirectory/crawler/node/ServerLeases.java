@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.buddycloud.channeldirectory.commons.ConfigurationUtils;
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+/**
+ * Leases channel servers to crawler instances through the
+ * lease_owner and lease_expires columns of channel_server, so
+ * several crawler processes can share the same database and
+ * each channel server is crawled by one of them at a time.
+ *
+ * A lease is taken with a single conditional UPDATE, which only
+ * succeeds if the server is not leased, is leased by this instance
+ * or its lease expired, and lasts crawler.lease.duration milliseconds
+ * unless renewed. Expiry is reckoned by the database clock, as the
+ * clocks of the crawler hosts may disagree. Instances are told apart
+ * by crawler.instance, which defaults to the process id and host name.
+ *
+ */
+public class ServerLeases {
+
+	private static Logger LOGGER = Logger.getLogger(ServerLeases.class);
+
+	private static final long DEF_LEASE_DURATION = 60000 * 30; // 30 minutes
+	
+	private static final String EXPIRES = 
+			"CURRENT_TIMESTAMP + CAST(? AS BIGINT) * INTERVAL '0.001' SECOND";
+
+	private final ChannelDirectoryDataSource dataSource;
+	private final String owner;
+	private final long leaseDuration;
+
+	public ServerLeases(Properties configuration, ChannelDirectoryDataSource dataSource) {
+		this.dataSource = dataSource;
+
+		String owner = configuration.getProperty("crawler.instance");
+		this.owner = owner == null ? ManagementFactory.getRuntimeMXBean().getName() : owner;
+
+		this.leaseDuration = ConfigurationUtils.getLong(configuration, 
+				"crawler.lease.duration", DEF_LEASE_DURATION);
+	}
+
+	/**
+	 * Takes or renews the lease of the given server.
+	 *
+	 * @param server
+	 * @return whether this instance holds the lease
+	 */
+	public boolean claim(String server) {
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.prepareStatement(
+					"UPDATE channel_server SET lease_owner = ?, lease_expires = " + EXPIRES +
+					" WHERE name = ? AND (lease_owner IS NULL OR lease_owner = ? " +
+					"OR lease_expires < CURRENT_TIMESTAMP)",
+					owner, leaseDuration, server, owner);
+			statement.execute();
+			if (statement.getUpdateCount() > 0) {
+				return true;
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Could not claim the lease of " + server, e);
+			return false;
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+
+		// Either the server is leased by another instance, or it has no row
+		// yet, in which case only one of the instances can insert it
+		statement = null;
+		try {
+			statement = dataSource.prepareStatement(
+					"INSERT INTO channel_server(name, lease_owner, lease_expires) " +
+					"VALUES (?, ?, " + EXPIRES + ")", server, owner, leaseDuration);
+			statement.execute();
+			return true;
+		} catch (SQLException e) {
+			// Integrity constraint violation, the row is there and leased already
+			if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+				LOGGER.warn("Could not claim the lease of " + server, e);
+			}
+			return false;
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+
+	/**
+	 * Extends the lease of the given server, if still held.
+	 *
+	 * @param server
+	 * @return whether this instance still holds the lease
+	 */
+	public boolean renew(String server) {
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.prepareStatement(
+					"UPDATE channel_server SET lease_expires = " + EXPIRES +
+					" WHERE name = ? AND lease_owner = ?",
+					leaseDuration, server, owner);
+			statement.execute();
+			return statement.getUpdateCount() > 0;
+		} catch (SQLException e) {
+			LOGGER.warn("Could not renew the lease of " + server, e);
+			return false;
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+
+	/**
+	 * Gives up the lease of the given server.
+	 *
+	 * @param server
+	 */
+	public void release(String server) {
+		PreparedStatement statement = null;
+		try {
+			statement = dataSource.prepareStatement(
+					"UPDATE channel_server SET lease_owner = NULL, lease_expires = NULL " +
+					"WHERE name = ? AND lease_owner = ?",
+					server, owner);
+			statement.execute();
+		} catch (SQLException e) {
+			LOGGER.warn("Could not release the lease of " + server, e);
+		} finally {
+			ChannelDirectoryDataSource.close(statement);
+		}
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+}
@@ -104,10 +104,28 @@ public class XMPPUtils {
 
 	public static XMPPConnection createCrawlerConnection(Properties configuration)
 			throws Exception {
+		return createCrawlerConnection(configuration, 0);
+	}
+	
+	/**
+	 * Creates the index-th crawler connection, logged in with 
+	 * crawler.xmpp.username.index and crawler.xmpp.password.index
+	 * if they are set, or with the default crawler account.
+	 * 
+	 * @param configuration
+	 * @param index
+	 * @return
+	 * @throws Exception
+	 */
+	public static XMPPConnection createCrawlerConnection(Properties configuration, 
+			int index) throws Exception {
 		
 		String serviceName = configuration.getProperty("crawler.xmpp.servicename");
 		String host = configuration.getProperty("crawler.xmpp.host");
-		String userName = configuration.getProperty("crawler.xmpp.username");
+		String userName = configuration.getProperty("crawler.xmpp.username." + index, 
+				configuration.getProperty("crawler.xmpp.username"));
+		String password = configuration.getProperty("crawler.xmpp.password." + index, 
+				configuration.getProperty("crawler.xmpp.password"));
 		
 		ConnectionConfiguration cc = new ConnectionConfiguration(
 				host,
@@ -120,9 +138,8 @@ public class XMPPUtils {
 		XMPPTCPConnection connection = new XMPPTCPConnection(cc);
 		connection.setPacketReplyTimeout(REPLY_TIMEOUT);
 		connection.connect();
-		connection.login(userName, 
-				configuration.getProperty("crawler.xmpp.password"), 
-				"crawler-" + Math.abs(new Random().nextLong()));
+		connection.login(userName, password, 
+				"crawler-" + index + "-" + Math.abs(new Random().nextLong()));
 		
 		return connection;
 	}
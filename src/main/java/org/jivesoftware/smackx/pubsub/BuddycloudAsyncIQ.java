@@ -0,0 +1,117 @@
+package org.jivesoftware.smackx.pubsub;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackException.NoResponseException;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ValueFuture;
+
+/**
+ * Sends IQs without waiting for their answer, so a single thread
+ * can have many requests in flight on the same connection.
+ *
+ * The future fails with a {@link NoResponseException} if no answer
+ * arrives within the packet reply timeout of the connection, and with
+ * an {@link XMPPErrorException} if the answer is an error. Requests
+ * are still paced by the {@link BuddycloudRateController} of the
+ * server, which may make the sending thread wait for its slot.
+ *
+ * The packet listener of a request is removed as soon as its future
+ * is done, whether answered, timed out, failed or cancelled.
+ *
+ */
+public class BuddycloudAsyncIQ {
+
+	private static final ScheduledExecutorService TIMEOUTS =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "async-iq-timeouts");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * @param connection
+	 * @param request
+	 * @param rateController
+	 * @param handler turns the answer into the result of the future
+	 * @return
+	 */
+	public static <T> ListenableFuture<T> send(final XMPPConnection connection,
+			IQ request, final BuddycloudRateController rateController,
+			final Function<IQ, T> handler) {
+
+		final ValueFuture<T> future = ValueFuture.create();
+		rateController.acquire();
+		final long start = System.currentTimeMillis();
+
+		final PacketListener listener = new PacketListener() {
+			@Override
+			public void processPacket(Packet packet) {
+				connection.removePacketListener(this);
+				IQ reply = (IQ) packet;
+				if (reply.getType() == IQ.Type.error) {
+					XMPPErrorException e = new XMPPErrorException(reply.getError());
+					if (future.setException(e)) {
+						BuddycloudNode.answered(rateController, e, start);
+					}
+					return;
+				}
+				T result;
+				try {
+					result = handler.apply(reply);
+				} catch (RuntimeException e) {
+					future.setException(e);
+					return;
+				}
+				if (future.set(result)) {
+					rateController.succeeded(System.currentTimeMillis() - start);
+				}
+			}
+		};
+		connection.addPacketListener(listener, new PacketIDFilter(request.getPacketID()));
+
+		final ScheduledFuture<?> timeout = TIMEOUTS.schedule(new Runnable() {
+			@Override
+			public void run() {
+				connection.removePacketListener(listener);
+				if (future.setException(new NoResponseException())) {
+					rateController.failed();
+				}
+			}
+		}, connection.getPacketReplyTimeout(), TimeUnit.MILLISECONDS);
+
+		// Also drops the listener of requests cancelled before their answer
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				timeout.cancel(false);
+				connection.removePacketListener(listener);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+		try {
+			connection.sendPacket(request);
+		} catch (NotConnectedException e) {
+			connection.removePacketListener(listener);
+			future.setException(e);
+		}
+		return future;
+	}
+}
@@ -0,0 +1,81 @@
+package org.jivesoftware.smackx.pubsub;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.util.XmlStringBuilder;
+
+import com.buddycloud.channeldirectory.search.handler.response.Geolocation;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
+
+public class BuddycloudAtomEntry implements PacketExtension {
+
+	public static final String ELEMENT_NAME = "entry";
+	public static final String NAMESPACE = "http://www.w3.org/2005/Atom";
+	public static final String THREAD_NAMESPACE = "http://purl.org/syndication/thread/1.0";
+	
+	private final PostData postData;
+
+	public BuddycloudAtomEntry(PostData postData) {
+		this.postData = postData;
+	}
+
+	public PostData getPostData() {
+		return postData;
+	}
+
+	public String getElementName() {
+		return ELEMENT_NAME;
+	}
+
+	public String getNamespace() {
+		return NAMESPACE;
+	}
+
+	@Override
+	public CharSequence toXML() {
+		XmlStringBuilder xml = new XmlStringBuilder();
+		xml.halfOpenElement(getElementName());
+		xml.xmlnsAttribute(getNamespace());
+		xml.rightAngleBracket();
+		
+		xml.optElement("id", postData.getId());
+		if (postData.getAuthor() != null || postData.getAuthorUri() != null) {
+			xml.openElement("author");
+			xml.optElement("name", postData.getAuthor());
+			xml.optElement("uri", postData.getAuthorUri());
+			xml.closeElement("author");
+		}
+		xml.optElement("content", postData.getContent());
+		if (postData.getPublished() != null) {
+			xml.element("published", BuddycloudAtomEntryProvider.formatDate(
+					postData.getPublished()));
+		}
+		if (postData.getUpdated() != null) {
+			xml.element("updated", BuddycloudAtomEntryProvider.formatDate(
+					postData.getUpdated()));
+		}
+		
+		Geolocation geolocation = postData.getGeolocation();
+		if (geolocation != null) {
+			xml.halfOpenElement("geoloc");
+			xml.xmlnsAttribute(Geolocation.NAMESPACE);
+			xml.rightAngleBracket();
+			xml.optElement("text", geolocation.getText());
+			if (geolocation.getLat() != null && geolocation.getLng() != null) {
+				xml.element("lat", geolocation.getLat().toString());
+				xml.element("lon", geolocation.getLng().toString());
+			}
+			xml.closeElement("geoloc");
+		}
+		
+		if (postData.getInReplyTo() != null) {
+			xml.halfOpenElement("in-reply-to");
+			xml.xmlnsAttribute(THREAD_NAMESPACE);
+			xml.attribute("ref", postData.getInReplyTo());
+			xml.closeEmptyElement();
+		}
+		
+		xml.closeElement(getElementName());
+		return xml;
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.jivesoftware.smackx.pubsub;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.xmlpull.v1.XmlPullParser;
+
+import com.buddycloud.channeldirectory.search.handler.response.Geolocation;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
+
+/**
+ * Parses Atom entry payloads straight into {@link PostData} while the
+ * packet is being read, so the crawlers never have to serialize the
+ * payload back to XML and parse it again.
+ * 
+ * Dates that can't be parsed are left null, a bad entry
+ * must not break the parsing of the whole packet.
+ */
+public class BuddycloudAtomEntryProvider implements PacketExtensionProvider {
+
+	private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+	
+	@Override
+	public PacketExtension parseExtension(XmlPullParser parser) throws Exception {
+		PostData postData = new PostData();
+		Geolocation geolocation = null;
+		
+		int entryDepth = parser.getDepth();
+		String container = null;
+		
+		while (true) {
+			int eventType = parser.next();
+			int depth = parser.getDepth();
+			
+			if (eventType == XmlPullParser.END_TAG) {
+				if (depth == entryDepth) {
+					break;
+				}
+				if (depth == entryDepth + 1) {
+					container = null;
+				}
+				continue;
+			}
+			if (eventType == XmlPullParser.END_DOCUMENT) {
+				break;
+			}
+			if (eventType != XmlPullParser.START_TAG) {
+				continue;
+			}
+			
+			String name = parser.getName();
+			
+			if (depth == entryDepth + 1) {
+				if (name.equals("id")) {
+					postData.setId(readText(parser));
+				} else if (name.equals("content")) {
+					postData.setContent(readText(parser));
+				} else if (name.equals("updated")) {
+					postData.setUpdated(parseDate(readText(parser)));
+				} else if (name.equals("published")) {
+					postData.setPublished(parseDate(readText(parser)));
+				} else if (name.equals("in-reply-to")) {
+					postData.setInReplyTo(parser.getAttributeValue(null, "ref"));
+				} else if (name.equals("author")) {
+					container = name;
+				} else if (name.equals("geoloc")) {
+					container = name;
+					geolocation = new Geolocation();
+					postData.setGeolocation(geolocation);
+				}
+			} else if (depth == entryDepth + 2 && container != null) {
+				if (container.equals("author")) {
+					if (name.equals("name")) {
+						postData.setAuthor(readText(parser));
+					} else if (name.equals("uri")) {
+						postData.setAuthorURI(readText(parser));
+					}
+				} else if (container.equals("geoloc")) {
+					if (name.equals("text")) {
+						geolocation.setText(readText(parser));
+					} else if (name.equals("lat")) {
+						geolocation.setLat(parseDouble(readText(parser)));
+					} else if (name.equals("lon")) {
+						geolocation.setLng(parseDouble(readText(parser)));
+					}
+				}
+			}
+		}
+		
+		if (geolocation != null && (geolocation.getLat() == null 
+				|| geolocation.getLng() == null)) {
+			geolocation.setLat(null);
+			geolocation.setLng(null);
+		}
+		
+		return new BuddycloudAtomEntry(postData);
+	}
+
+	/**
+	 * Reads the text of the current element and leaves the 
+	 * parser on its end tag.
+	 */
+	private static String readText(XmlPullParser parser) throws Exception {
+		StringBuilder text = new StringBuilder();
+		int depth = parser.getDepth();
+		while (true) {
+			int eventType = parser.next();
+			if (eventType == XmlPullParser.TEXT) {
+				text.append(parser.getText());
+			} else if (eventType == XmlPullParser.END_DOCUMENT 
+					|| (eventType == XmlPullParser.END_TAG && parser.getDepth() == depth)) {
+				break;
+			}
+		}
+		return text.toString();
+	}
+	
+	private static Double parseDouble(String value) {
+		try {
+			return Double.valueOf(value.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * {@link DateFormat} is not thread-safe and every
+	 * connection parses packets on its own thread.
+	 */
+	private static Date parseDate(String date) {
+		synchronized (DATE_FORMAT) {
+			try {
+				return DATE_FORMAT.parse(date.trim());
+			} catch (ParseException e) {
+				return null;
+			}
+		}
+	}
+	
+	static String formatDate(Date date) {
+		synchronized (DATE_FORMAT) {
+			return DATE_FORMAT.format(date);
+		}
+	}
+}
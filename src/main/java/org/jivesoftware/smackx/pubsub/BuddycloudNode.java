@@ -6,25 +6,84 @@ import java.util.List;
 
 import org.jivesoftware.smack.SmackException.NoResponseException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.IQ.Type;
 import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
 import org.jivesoftware.smackx.pubsub.packet.PubSub;
+import org.jivesoftware.smackx.pubsub.listener.ItemDeleteListener;
+import org.jivesoftware.smackx.pubsub.listener.ItemEventListener;
+import org.jivesoftware.smackx.pubsub.listener.NodeConfigListener;
 import org.jivesoftware.smackx.pubsub.packet.PubSubNamespace;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+
 public class BuddycloudNode {
 
 	private final Node node;
+	private final BuddycloudRateController rateController;
 
-	public BuddycloudNode(Node node) {
+	public BuddycloudNode(Node node, BuddycloudRateController rateController) {
 		this.node = node;
+		this.rateController = rateController;
+	}
+	
+	/**
+	 * Only wait-type errors tell us to slow down, 
+	 * any other error is an answer like any other.
+	 */
+	static void answered(BuddycloudRateController rateController, 
+			XMPPErrorException e, long start) {
+		if (e.getXMPPError() != null && e.getXMPPError().getType() == XMPPError.Type.WAIT) {
+			rateController.failed();
+		} else {
+			rateController.succeeded(System.currentTimeMillis() - start);
+		}
 	}
 
 	public List<BuddycloudAffiliation> getBuddycloudAffiliations(List<PacketExtension> additionalExtensions,
 			Collection<PacketExtension> returnedExtensions) throws NoResponseException, XMPPErrorException,
 			NotConnectedException {
 		
+		PubSub pubSub = createAffiliationsRequest(additionalExtensions);
+		rateController.acquire();
+		long start = System.currentTimeMillis();
+		PubSub reply = null;
+		try {
+			reply = (PubSub) node.sendPubsubPacket(pubSub);
+			rateController.succeeded(System.currentTimeMillis() - start);
+		} catch (NoResponseException e) {
+			rateController.failed();
+			throw e;
+		} catch (XMPPErrorException e) {
+			answered(rateController, e, start);
+			throw e;
+		}
+		return parseAffiliations(reply, returnedExtensions);
+	}
+	
+	/**
+	 * Same as {@link #getBuddycloudAffiliations(List, Collection)}, without 
+	 * waiting for the answer. The returned extensions are filled in before 
+	 * the future completes.
+	 */
+	public ListenableFuture<List<BuddycloudAffiliation>> getBuddycloudAffiliationsAsync(
+			List<PacketExtension> additionalExtensions, 
+			final Collection<PacketExtension> returnedExtensions) {
+		return BuddycloudAsyncIQ.send(node.con, createAffiliationsRequest(additionalExtensions), 
+				rateController, new Function<IQ, List<BuddycloudAffiliation>>() {
+			@Override
+			public List<BuddycloudAffiliation> apply(IQ reply) {
+				return parseAffiliations((PubSub) reply, returnedExtensions);
+			}
+		});
+	}
+	
+	private PubSub createAffiliationsRequest(List<PacketExtension> additionalExtensions) {
 		PubSub pubSub = node.createPubsubPacket(Type.get, new NodeExtension(
 				PubSubElementType.AFFILIATIONS, node.getId()));
 		if (additionalExtensions != null) {
@@ -32,7 +91,11 @@ public class BuddycloudNode {
 				pubSub.addExtension(pe);
 			}
 		}
-		PubSub reply = (PubSub) node.sendPubsubPacket(pubSub);
+		return pubSub;
+	}
+	
+	private static List<BuddycloudAffiliation> parseAffiliations(PubSub reply, 
+			Collection<PacketExtension> returnedExtensions) {
 		if (returnedExtensions != null) {
 			returnedExtensions.addAll(reply.getExtensions());
 		}
@@ -45,21 +108,122 @@ public class BuddycloudNode {
 		return node.getId();
 	}
 
+	/**
+	 * @return the connection this node was fetched on
+	 */
+	public XMPPConnection getConnection() {
+		return node.con;
+	}
+
+	public Subscription subscribe(String jid) throws NoResponseException, 
+			XMPPErrorException, NotConnectedException {
+		rateController.acquire();
+		long start = System.currentTimeMillis();
+		try {
+			Subscription subscription = node.subscribe(jid);
+			rateController.succeeded(System.currentTimeMillis() - start);
+			return subscription;
+		} catch (NoResponseException e) {
+			rateController.failed();
+			throw e;
+		} catch (XMPPErrorException e) {
+			answered(rateController, e, start);
+			throw e;
+		}
+	}
+
+	public void addItemEventListener(ItemEventListener<Item> listener) {
+		node.addItemEventListener(listener);
+	}
+
+	public void addItemDeleteListener(ItemDeleteListener listener) {
+		node.addItemDeleteListener(listener);
+	}
+
+	public void addConfigurationListener(NodeConfigListener listener) {
+		node.addConfigurationListener(listener);
+	}
+
 	public DiscoverInfo discoverInfo() throws NoResponseException, XMPPErrorException, NotConnectedException {
-		return node.discoverInfo();
+		rateController.acquire();
+		long start = System.currentTimeMillis();
+		try {
+			DiscoverInfo info = node.discoverInfo();
+			rateController.succeeded(System.currentTimeMillis() - start);
+			return info;
+		} catch (NoResponseException e) {
+			rateController.failed();
+			throw e;
+		} catch (XMPPErrorException e) {
+			answered(rateController, e, start);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Same as {@link #discoverInfo()}, without waiting for the answer.
+	 */
+	public ListenableFuture<DiscoverInfo> discoverInfoAsync() {
+		DiscoverInfo request = new DiscoverInfo();
+		request.setTo(node.to);
+		request.setNode(getId());
+		return BuddycloudAsyncIQ.send(node.con, request, rateController, 
+				new Function<IQ, DiscoverInfo>() {
+			@Override
+			public DiscoverInfo apply(IQ reply) {
+				return (DiscoverInfo) reply;
+			}
+		});
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Item> getItems(List<PacketExtension> additionalExtensions,
 			List<PacketExtension> returnedExtensions) throws NoResponseException, XMPPErrorException, NotConnectedException {
+		PubSub request = createItemsRequest(additionalExtensions);
+		rateController.acquire();
+		long start = System.currentTimeMillis();
+		PubSub result = null;
+		try {
+			result = (PubSub) node.con.createPacketCollectorAndSend(request)
+					.nextResultOrThrow();
+			rateController.succeeded(System.currentTimeMillis() - start);
+		} catch (NoResponseException e) {
+			rateController.failed();
+			throw e;
+		} catch (XMPPErrorException e) {
+			answered(rateController, e, start);
+			throw e;
+		}
+		return parseItems(result, returnedExtensions);
+	}
+	
+	/**
+	 * Same as {@link #getItems(List, List)}, without waiting for the answer.
+	 * The returned extensions are filled in before the future completes.
+	 */
+	public ListenableFuture<List<Item>> getItemsAsync(List<PacketExtension> additionalExtensions,
+			final List<PacketExtension> returnedExtensions) {
+		return BuddycloudAsyncIQ.send(node.con, createItemsRequest(additionalExtensions), 
+				rateController, new Function<IQ, List<Item>>() {
+			@Override
+			public List<Item> apply(IQ reply) {
+				return parseItems((PubSub) reply, returnedExtensions);
+			}
+		});
+	}
+	
+	private PubSub createItemsRequest(List<PacketExtension> additionalExtensions) {
 		PubSub request = node.createPubsubPacket(Type.get, new GetItemsRequest(getId()));
 		if (additionalExtensions != null) {
 			for (PacketExtension pe : additionalExtensions) {
 				request.addExtension(pe);
 			}
 		}
-		PubSub result = (PubSub) node.con.createPacketCollectorAndSend(request)
-				.nextResultOrThrow();
+		return request;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static List<Item> parseItems(PubSub result, 
+			List<PacketExtension> returnedExtensions) {
 		if (returnedExtensions != null) {
 			returnedExtensions.addAll(result.getExtensions());
 		}
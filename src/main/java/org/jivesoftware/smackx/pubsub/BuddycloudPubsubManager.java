@@ -4,10 +4,14 @@ import org.jivesoftware.smack.SmackException.NoResponseException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smackx.disco.packet.DiscoverItems;
 import org.jivesoftware.smackx.pubsub.packet.PubSubNamespace;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+
 public class BuddycloudPubsubManager {
 
 	static {
@@ -24,32 +28,125 @@ public class BuddycloudPubsubManager {
 				PubSubNamespace.OWNER.getXmlns(), affiliationProvider);
 		ProviderManager.addExtensionProvider(BuddycloudAffiliation.ELEMENT_NAME, 
 				PubSubNamespace.BASIC.getXmlns(), affiliationProvider);
+		
+		// Parse Atom entries straight into PostData
+		ProviderManager.addExtensionProvider(BuddycloudAtomEntry.ELEMENT_NAME, 
+				BuddycloudAtomEntry.NAMESPACE, new BuddycloudAtomEntryProvider());
 	}
 	
 	private final PubSubManager manager;
 	private XMPPConnection connection;
 	private final String toAddress;
+	private final BuddycloudRateController rateController;
 	
 	public BuddycloudPubsubManager(XMPPConnection connection, String toAddress) {
+		this(connection, toAddress, new BuddycloudRateController(
+				BuddycloudRateController.DEF_INITIAL_RATE, BuddycloudRateController.DEF_MIN_RATE, 
+				BuddycloudRateController.DEF_MAX_RATE, BuddycloudRateController.DEF_LATENCY_TARGET));
+	}
+	
+	public BuddycloudPubsubManager(XMPPConnection connection, String toAddress, 
+			BuddycloudRateController rateController) {
 		this.manager = new PubSubManager(connection, toAddress);
 		this.connection = connection;
 		this.toAddress = toAddress;
+		this.rateController = rateController;
 	}
 
 	public BuddycloudNode getNode(String id) throws NoResponseException,
 			XMPPErrorException, NotConnectedException {
-		return new BuddycloudNode(manager.getNode(id));
+		rateController.acquire();
+		long start = System.currentTimeMillis();
+		try {
+			Node node = manager.getNode(id);
+			rateController.succeeded(System.currentTimeMillis() - start);
+			return new BuddycloudNode(node, rateController);
+		} catch (NoResponseException e) {
+			rateController.failed();
+			throw e;
+		} catch (XMPPErrorException e) {
+			BuddycloudNode.answered(rateController, e, start);
+			throw e;
+		}
 	}
 
 	public DiscoverItems discoverNodes(String nodeId)
 			throws NoResponseException, XMPPErrorException,
 			NotConnectedException {
-		return manager.discoverNodes(nodeId);
+		rateController.acquire();
+		long start = System.currentTimeMillis();
+		try {
+			DiscoverItems items = manager.discoverNodes(nodeId);
+			rateController.succeeded(System.currentTimeMillis() - start);
+			return items;
+		} catch (NoResponseException e) {
+			rateController.failed();
+			throw e;
+		} catch (XMPPErrorException e) {
+			BuddycloudNode.answered(rateController, e, start);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Sends the given disco#items request, used to 
+	 * page through the nodes of the server.
+	 */
+	public DiscoverItems sendDiscoverItems(DiscoverItems request)
+			throws NoResponseException, XMPPErrorException,
+			NotConnectedException {
+		rateController.acquire();
+		long start = System.currentTimeMillis();
+		try {
+			DiscoverItems items = (DiscoverItems) connection
+					.createPacketCollectorAndSend(request).nextResultOrThrow();
+			rateController.succeeded(System.currentTimeMillis() - start);
+			return items;
+		} catch (NoResponseException e) {
+			rateController.failed();
+			throw e;
+		} catch (XMPPErrorException e) {
+			BuddycloudNode.answered(rateController, e, start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Same as {@link #discoverNodes(String)}, without waiting for the answer.
+	 */
+	public ListenableFuture<DiscoverItems> discoverNodesAsync(String nodeId) {
+		DiscoverItems request = new DiscoverItems();
+		if (nodeId != null) {
+			request.setNode(nodeId);
+		}
+		request.setTo(toAddress);
+		return sendDiscoverItemsAsync(request);
+	}
+	
+	/**
+	 * Same as {@link #sendDiscoverItems(DiscoverItems)}, 
+	 * without waiting for the answer.
+	 */
+	public ListenableFuture<DiscoverItems> sendDiscoverItemsAsync(DiscoverItems request) {
+		return BuddycloudAsyncIQ.send(connection, request, rateController, 
+				new Function<IQ, DiscoverItems>() {
+			@Override
+			public DiscoverItems apply(IQ reply) {
+				return (DiscoverItems) reply;
+			}
+		});
 	}
 
 	public BuddycloudNode getFirehoseNode() {
 		BuddycloudFirehoseNode firehose = new BuddycloudFirehoseNode(connection);
 		firehose.setTo(toAddress);
-		return new BuddycloudNode(firehose);
+		return new BuddycloudNode(firehose, rateController);
+	}
+	
+	/**
+	 * @return the current request rate to this server, in requests per second
+	 */
+	public double getRate() {
+		return rateController.getRate();
 	}
 }
@@ -0,0 +1,106 @@
+package org.jivesoftware.smackx.pubsub;
+
+/**
+ * Paces the IQs sent to a single channel server with additive
+ * increase, multiplicative decrease (AIMD).
+ *
+ * Every answer received within the latency target raises the rate
+ * by about one request per second per second, while a slow answer,
+ * a timeout or a wait-type error cuts it by half. Cuts happen at
+ * most once per latency target, so a burst of failures from requests
+ * sent at the same rate only counts once.
+ *
+ */
+public class BuddycloudRateController {
+
+	public static final double DEF_INITIAL_RATE = 5;
+	public static final double DEF_MIN_RATE = 0.5;
+	public static final double DEF_MAX_RATE = 50;
+	public static final long DEF_LATENCY_TARGET = 2000; // In milliseconds
+	
+	private static final double DECREASE_FACTOR = 0.5;
+	private static final double ADDITIVE_INCREASE = 1.0; // Requests per second, per second
+
+	private final double minRate;
+	private final double maxRate;
+	private final long latencyTarget;
+
+	private double rate;
+	private long nextSlot;
+	private long lastDecrease;
+
+	/**
+	 * @param initialRate in requests per second
+	 * @param minRate in requests per second
+	 * @param maxRate in requests per second
+	 * @param latencyTarget in milliseconds
+	 */
+	public BuddycloudRateController(double initialRate, double minRate,
+			double maxRate, long latencyTarget) {
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.latencyTarget = latencyTarget;
+		this.rate = Math.max(minRate, Math.min(maxRate, initialRate));
+	}
+
+	/**
+	 * Waits for the next request slot of this server.
+	 * Callers are served in the order they arrive.
+	 */
+	public void acquire() {
+		long wait = reserve(System.nanoTime());
+		if (wait <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return how long to wait for the reserved slot, in nanoseconds
+	 */
+	synchronized long reserve(long now) {
+		long slot = Math.max(now, nextSlot);
+		nextSlot = slot + (long) (1000000000L / rate);
+		return slot - now;
+	}
+
+	/**
+	 * Records an answer received after the given latency.
+	 *
+	 * @param latency in milliseconds
+	 */
+	public synchronized void succeeded(long latency) {
+		if (latency > latencyTarget) {
+			decrease();
+			return;
+		}
+		rate = Math.min(maxRate, rate + ADDITIVE_INCREASE / rate);
+	}
+
+	/**
+	 * Records a timeout or an error telling us to slow down.
+	 */
+	public synchronized void failed() {
+		decrease();
+	}
+
+	private void decrease() {
+		long now = System.currentTimeMillis();
+		if (now - lastDecrease < latencyTarget) {
+			return;
+		}
+		lastDecrease = now;
+		rate = Math.max(minRate, rate * DECREASE_FACTOR);
+	}
+
+	/**
+	 * @return the current rate, in requests per second
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+}
@@ -25,8 +25,17 @@ public class HSQLDBTest {
 		p.setProperty("mahout.jdbc.driver", "org.hsqldb.jdbcDriver");
 		this.dataSource = new ChannelDirectoryDataSource(p);
 		
+		createPostgresTypes();
 		runBatch("resources/schema/create-schema.sql");
 		runBatch("resources/schema/update-schema-0.sql");
+		runBatch("resources/schema/update-schema-1.sql");
+		runBatch("resources/schema/update-schema-2.sql");
+		runBatch("resources/schema/update-schema-3.sql");
+		runBatch("resources/schema/update-schema-4.sql");
+		runBatch("resources/schema/update-schema-5.sql");
+		runBatch("resources/schema/update-schema-6.sql");
+		runBatch("resources/schema/update-schema-7.sql");
+		runBatch("resources/schema/update-schema-8.sql");
 	}
 
 	@After
@@ -34,6 +43,20 @@ public class HSQLDBTest {
 		runBatch("resources/schema/drop-schema.sql");
 	}
 	
+	/**
+	 * HSQLDB has no BYTEA, even in PostgreSQL mode.
+	 */
+	private void createPostgresTypes() throws SQLException {
+		Statement st = dataSource.createStatement();
+		try {
+			st.execute("CREATE DOMAIN BYTEA AS VARBINARY(65536)");
+		} catch (SQLException e) {
+			// Already created by a previous test
+		} finally {
+			ChannelDirectoryDataSource.close(st);
+		}
+	}
+	
 	private void runBatch(String batchFile) throws PropertyVetoException,
 	SQLException, IOException, FileNotFoundException {
 		Statement st = dataSource.createStatement();
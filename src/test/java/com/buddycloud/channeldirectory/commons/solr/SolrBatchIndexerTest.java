@@ -0,0 +1,175 @@
+/*
+ * Copyright 2011 buddycloud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buddycloud.channeldirectory.commons.solr;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class SolrBatchIndexerTest {
+
+	private static final int BATCH_SIZE = 3;
+
+	private SolrServer postServer;
+	private List<UpdateRequest> requests;
+	private SolrBatchIndexer indexer;
+
+	@Before
+	public void setUp() throws Exception {
+		SolrServerFactory solrFactory = Mockito.mock(SolrServerFactory.class);
+		postServer = Mockito.mock(SolrServer.class);
+		Mockito.when(solrFactory.createPostCore(
+				Mockito.any(Properties.class))).thenReturn(postServer);
+		Mockito.when(solrFactory.createChannelCore(
+				Mockito.any(Properties.class))).thenReturn(Mockito.mock(SolrServer.class));
+
+		requests = new LinkedList<UpdateRequest>();
+		Mockito.when(postServer.request(Mockito.any(SolrRequest.class))).thenAnswer(
+				new Answer<NamedList<Object>>() {
+					@Override
+					public NamedList<Object> answer(InvocationOnMock invocation) {
+						requests.add((UpdateRequest) invocation.getArguments()[0]);
+						return new NamedList<Object>();
+					}
+				});
+
+		Properties properties = new Properties();
+		properties.setProperty("solr.batchsize", String.valueOf(BATCH_SIZE));
+		properties.setProperty("solr.flushinterval", "3600000");
+		properties.setProperty("solr.commitwithin", "5000");
+		indexer = new SolrBatchIndexer(properties, solrFactory);
+	}
+
+	@After
+	public void tearDown() {
+		indexer.close();
+	}
+
+	@Test
+	public void testFlushOnBatchSize() throws Exception {
+		for (int i = 0; i < BATCH_SIZE - 1; i++) {
+			indexer.addPost(createDocument(i));
+		}
+		Assert.assertTrue(requests.isEmpty());
+
+		indexer.addPost(createDocument(BATCH_SIZE));
+
+		Assert.assertEquals(1, requests.size());
+		Assert.assertEquals(BATCH_SIZE, requests.get(0).getDocuments().size());
+		Assert.assertEquals(5000, requests.get(0).getCommitWithin());
+		Mockito.verify(postServer, Mockito.never()).commit();
+	}
+
+	@Test
+	public void testFlushOnClose() throws Exception {
+		indexer.addPost(createDocument(1));
+		indexer.close();
+
+		Assert.assertEquals(1, requests.size());
+		Assert.assertEquals(1, requests.get(0).getDocuments().size());
+	}
+
+	@Test
+	public void testDeletesAreSentWithTheBatch() throws Exception {
+		indexer.addPost(createDocument(1));
+		indexer.deletePosts("parent_fullid:node");
+		Assert.assertTrue(requests.isEmpty());
+		
+		indexer.deletePosts("parent_fullid:other");
+
+		Assert.assertEquals(2, requests.size());
+		Assert.assertEquals(1, requests.get(0).getDocuments().size());
+		Assert.assertNull(requests.get(0).getDeleteQuery());
+		Assert.assertNull(requests.get(1).getDocuments());
+		Assert.assertEquals(2, requests.get(1).getDeleteQuery().size());
+		Assert.assertEquals("parent_fullid:node", requests.get(1).getDeleteQuery().get(0));
+	}
+	
+	@Test
+	public void testDocumentAddedAfterADeleteSurvives() throws Exception {
+		final Set<String> indexed = new HashSet<String>();
+		Mockito.when(postServer.request(Mockito.any(SolrRequest.class))).thenAnswer(
+				new Answer<NamedList<Object>>() {
+					@Override
+					public NamedList<Object> answer(InvocationOnMock invocation) {
+						// Solr applies the deletes of a request after its adds
+						UpdateRequest request = (UpdateRequest) invocation.getArguments()[0];
+						if (request.getDocuments() != null) {
+							for (SolrInputDocument document : request.getDocuments()) {
+								indexed.add((String) document.getFieldValue("id"));
+							}
+						}
+						if (request.getDeleteQuery() != null) {
+							for (String query : request.getDeleteQuery()) {
+								indexed.remove(query.substring("id:".length()));
+							}
+						}
+						return new NamedList<Object>();
+					}
+				});
+		
+		indexer.addPost(createDocument(1));
+		indexer.deletePosts("id:1");
+		indexer.addPost(createDocument(1));
+		
+		Assert.assertTrue(indexed.contains("1"));
+	}
+
+	@Test
+	public void testRetryAfterFailure() throws Exception {
+		Mockito.doThrow(new IOException("Solr is down"))
+				.doAnswer(new Answer<NamedList<Object>>() {
+					@Override
+					public NamedList<Object> answer(InvocationOnMock invocation) {
+						requests.add((UpdateRequest) invocation.getArguments()[0]);
+						return new NamedList<Object>();
+					}
+				}).when(postServer).request(Mockito.any(SolrRequest.class));
+
+		indexer.addPost(createDocument(1));
+		indexer.flush();
+		Assert.assertTrue(requests.isEmpty());
+
+		indexer.addPost(createDocument(2));
+		indexer.flush();
+
+		Assert.assertEquals(1, requests.size());
+		Assert.assertEquals(2, requests.get(0).getDocuments().size());
+	}
+
+	private static SolrInputDocument createDocument(int id) {
+		SolrInputDocument document = new SolrInputDocument();
+		document.addField("id", String.valueOf(id));
+		return document;
+	}
+}
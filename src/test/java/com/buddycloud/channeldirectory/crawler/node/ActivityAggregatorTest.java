@@ -1,7 +1,6 @@
 package com.buddycloud.channeldirectory.crawler.node;
 
 import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.Date;
@@ -10,9 +9,7 @@ import java.util.Properties;
 import junit.framework.Assert;
 
 import org.apache.solr.client.solrj.SolrServer;
-import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.SolrParams;
 import org.junit.Before;
@@ -26,41 +23,188 @@ import com.buddycloud.channeldirectory.search.handler.response.PostData;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
-public class ActivityHelperTest extends HSQLDBTest {
+public class ActivityAggregatorTest extends HSQLDBTest {
 
 	private static final Long A_DAY = 24L * 60 * 60 * 1000;
+	private static final String CHANNEL = "whatever@whatever.com";
 	
-	private SolrServerFactory solrFactory;
-	private SolrServer solrServer;
+	private static final String LOG = "localhost:/ingest-log";
+	
+	private ActivityAggregator aggregator;
+	private long countedOffset;
 	
 	@Before
 	public void setUp() throws Exception {
-		solrFactory = Mockito.mock(SolrServerFactory.class);
-		solrServer = Mockito.mock(SolrServer.class);
+		SolrServerFactory solrFactory = Mockito.mock(SolrServerFactory.class);
+		SolrServer solrServer = Mockito.mock(SolrServer.class);
 		Mockito.when(solrFactory.createChannelCore(
 				Mockito.any(Properties.class))).thenReturn(solrServer);
+		QueryResponse queryResponse = Mockito.mock(QueryResponse.class);
+		Mockito.when(queryResponse.getResults()).thenReturn(new SolrDocumentList());
+		Mockito.when(solrServer.query(Mockito.any(SolrParams.class))).thenReturn(queryResponse);
+		
+		KnownChannels knownChannels = new KnownChannels(new Properties(), solrFactory);
+		knownChannels.add(CHANNEL);
+		
+		aggregator = new ActivityAggregator(getDataSource(), knownChannels);
+	}
+	
+	private void flush() throws Exception {
+		aggregator.flushOrThrow(LOG, ++countedOffset);
+	}
+	
+	@Test
+	public void testPostsAreMergedPerChannel() throws Exception {
+		aggregator.add(createPost(CHANNEL, 100 * A_DAY + 1));
+		aggregator.add(createPost(CHANNEL, 98 * A_DAY));
+		aggregator.add(createPost(CHANNEL, 100 * A_DAY));
+		aggregator.add(createPost("unknown@whatever.com", 100 * A_DAY));
+		
+		assertRowCount(0);
+		flush();
+		assertRowCount(1);
+		
+		Statement st = getDataSource().createStatement();
+		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
+		Assert.assertTrue(resultSet.next());
+		
+		ActivityWindow window = ActivityWindow.fromBytes(resultSet.getBytes("activity_window"));
+		Assert.assertEquals(100, window.getLastDay());
+		Assert.assertEquals(2, window.getCount(0));
+		Assert.assertEquals(1, window.getCount(2));
+		Assert.assertEquals(3, resultSet.getLong("summarized_activity"));
+		Assert.assertEquals(new Timestamp(100 * A_DAY + 1), resultSet.getTimestamp("updated"));
+		Assert.assertEquals(new Timestamp(98 * A_DAY), resultSet.getTimestamp("earliest"));
+		
+		ChannelDirectoryDataSource.close(st);
+	}
+	
+	@Test
+	public void testFlushUpdatesExistingActivity() throws Exception {
+		aggregator.add(createPost(CHANNEL, 100 * A_DAY));
+		flush();
+		
+		aggregator.add(createPost(CHANNEL, 102 * A_DAY));
+		aggregator.add(createPost(CHANNEL, 50 * A_DAY));
+		flush();
+		
+		assertRowCount(1);
+		
+		Statement st = getDataSource().createStatement();
+		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
+		Assert.assertTrue(resultSet.next());
+		
+		ActivityWindow window = ActivityWindow.fromBytes(resultSet.getBytes("activity_window"));
+		Assert.assertEquals(102, window.getLastDay());
+		Assert.assertEquals(1, window.getCount(0));
+		Assert.assertEquals(1, window.getCount(2));
+		Assert.assertEquals(2, resultSet.getLong("summarized_activity"));
+		Assert.assertEquals(new Timestamp(102 * A_DAY), resultSet.getTimestamp("updated"));
+		
+		ChannelDirectoryDataSource.close(st);
+	}
+	
+	@Test
+	public void testRemovedPostsAreRetracted() throws Exception {
+		aggregator.add(createPost(CHANNEL, 100 * A_DAY));
+		aggregator.add(createPost(CHANNEL, 99 * A_DAY));
+		flush();
+		
+		aggregator.remove(CHANNEL, new Date(99 * A_DAY));
+		aggregator.remove(CHANNEL, new Date(99 * A_DAY));
+		aggregator.remove("unknown@whatever.com", new Date(99 * A_DAY));
+		flush();
+		
+		assertRowCount(1);
+		
+		Statement st = getDataSource().createStatement();
+		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
+		Assert.assertTrue(resultSet.next());
+		
+		ActivityWindow window = ActivityWindow.fromBytes(resultSet.getBytes("activity_window"));
+		Assert.assertEquals(100, window.getLastDay());
+		Assert.assertEquals(1, window.getCount(0));
+		Assert.assertEquals(0, window.getCount(1));
+		Assert.assertEquals(1, resultSet.getLong("summarized_activity"));
+		Assert.assertEquals(new Timestamp(100 * A_DAY), resultSet.getTimestamp("updated"));
+		Assert.assertEquals(new Timestamp(99 * A_DAY), resultSet.getTimestamp("earliest"));
+		
+		ChannelDirectoryDataSource.close(st);
+	}
+	
+	@Test
+	public void testClearDropsActivity() throws Exception {
+		aggregator.add(createPost(CHANNEL, 100 * A_DAY));
+		flush();
+		aggregator.add(createPost(CHANNEL, 101 * A_DAY));
+		
+		aggregator.clear(CHANNEL);
+		flush();
+		
+		assertRowCount(0);
+	}
+	
+	@Test
+	public void testClearIsWrittenWithTheCountedOffset() throws Exception {
+		aggregator.add(createPost(CHANNEL, 100 * A_DAY));
+		aggregator.flushOrThrow(LOG, 10);
+		
+		aggregator.clear(CHANNEL);
+		aggregator.add(createPost(CHANNEL, 101 * A_DAY));
+		assertRowCount(1);
+		
+		aggregator.flushOrThrow(LOG, 20);
+		Assert.assertEquals(20, aggregator.getCountedOffset(LOG));
+		
+		Statement st = getDataSource().createStatement();
+		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
+		Assert.assertTrue(resultSet.next());
+		Assert.assertEquals(1, resultSet.getLong("summarized_activity"));
+		Assert.assertEquals(new Timestamp(101 * A_DAY), resultSet.getTimestamp("earliest"));
+		Assert.assertFalse(resultSet.next());
+		
+		ChannelDirectoryDataSource.close(st);
+	}
+	
+	@Test
+	public void testCountedOffsetIsWrittenWithActivity() throws Exception {
+		Assert.assertEquals(0, aggregator.getCountedOffset(LOG));
+		
+		aggregator.flushOrThrow(LOG, 10);
+		Assert.assertEquals(0, aggregator.getCountedOffset(LOG));
+		
+		aggregator.add(createPost(CHANNEL, 100 * A_DAY));
+		aggregator.flushOrThrow(LOG, 20);
+		Assert.assertEquals(20, aggregator.getCountedOffset(LOG));
+		
+		aggregator.add(createPost(CHANNEL, 100 * A_DAY));
+		aggregator.flushOrThrow(LOG, 30);
+		Assert.assertEquals(30, aggregator.getCountedOffset(LOG));
+		Assert.assertEquals(0, aggregator.getCountedOffset("otherhost:/ingest-log"));
 	}
 	
 	@Test(expected=IllegalArgumentException.class)
 	public void testNullPostData() {
-		ActivityHelper.updateActivity(null, null, null);
+		aggregator.add(null);
 	}
 	
 	@Test
-	public void testNoChannelInPostData() throws SQLException {
-		ActivityHelper.updateActivity(new PostData(), getDataSource(), null);
-		assertDBEmpty();
+	public void testNoChannelInPostData() throws Exception {
+		aggregator.add(new PostData());
+		flush();
+		assertRowCount(0);
 	}
 	
 	@Test
 	public void testNotRegisteredChannelInPostData() throws Exception {
 		PostData postData = new PostData();
-		postData.setParentSimpleId("whatever@whatever.com");
+		postData.setParentSimpleId("unknown@whatever.com");
+		postData.setPublished(new Date(100 * A_DAY));
 		
-		recordChannelSolrQuery();
-		ActivityHelper.updateActivity(postData, getDataSource(), null, solrFactory);
+		aggregator.add(postData);
+		flush();
 		
-		assertDBEmpty();
+		assertRowCount(0);
 	}
 
 	@Test
@@ -69,18 +213,17 @@ public class ActivityHelperTest extends HSQLDBTest {
 		long postTimestamp = A_DAY * postTimestampInHours;
 		
 		PostData postData = new PostData();
-		postData.setParentSimpleId("whatever@whatever.com");
+		postData.setParentSimpleId(CHANNEL);
 		postData.setPublished(new Date(postTimestamp));
 		
-		SolrDocumentList sdl = recordChannelSolrQuery();
-		sdl.add(new SolrDocument());
-		ActivityHelper.updateActivity(postData, getDataSource(), null, solrFactory);
+		aggregator.add(postData);
+		flush();
 		
 		Statement st = getDataSource().createStatement();
 		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
 		
 		Assert.assertTrue(resultSet.next());
-		Assert.assertEquals("whatever@whatever.com", 
+		Assert.assertEquals(CHANNEL, 
 				resultSet.getString("channel_jid"));
 		
 		JsonArray allActivity = new JsonArray();
@@ -90,7 +233,7 @@ public class ActivityHelperTest extends HSQLDBTest {
 		activityInThisHour.addProperty("a", 1);
 		allActivity.add(activityInThisHour);
 		
-		for (int i = 1; i < ActivityHelper.MAX_WINDOW_SIZE; i++) {
+		for (int i = 1; i < ActivityWindow.SIZE; i++) {
 			JsonObject activity = new JsonObject();
 			activity.addProperty("p", postTimestampInHours - i);
 			activity.addProperty("a", 0);
@@ -98,7 +241,8 @@ public class ActivityHelperTest extends HSQLDBTest {
 		}
 		
 		Assert.assertEquals(allActivity.toString(), 
-				resultSet.getString("detailed_activity"));
+				ActivityWindow.fromBytes(
+						resultSet.getBytes("activity_window")).toJson().toString());
 		
 		Assert.assertEquals(1, 
 				resultSet.getLong("summarized_activity"));
@@ -115,24 +259,23 @@ public class ActivityHelperTest extends HSQLDBTest {
 		long postTimestampInHours = 100;
 		long oldPostTimestamp = A_DAY * postTimestampInHours;
 		
-		SolrDocumentList sdl = recordChannelSolrQuery();
-		sdl.add(new SolrDocument());
-		
 		PostData newPostData = new PostData();
-		newPostData.setParentSimpleId("whatever@whatever.com");
+		newPostData.setParentSimpleId(CHANNEL);
 		newPostData.setPublished(new Date(oldPostTimestamp + 1));
-		ActivityHelper.updateActivity(newPostData, getDataSource(), null, solrFactory);
+		aggregator.add(newPostData);
+		flush();
 		
 		PostData oldPostData = new PostData();
-		oldPostData.setParentSimpleId("whatever@whatever.com");
+		oldPostData.setParentSimpleId(CHANNEL);
 		oldPostData.setPublished(new Date(oldPostTimestamp));
-		ActivityHelper.updateActivity(oldPostData, getDataSource(), null, solrFactory);
+		aggregator.add(oldPostData);
+		flush();
 		
 		Statement st = getDataSource().createStatement();
 		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
 		
 		Assert.assertTrue(resultSet.next());
-		Assert.assertEquals("whatever@whatever.com", 
+		Assert.assertEquals(CHANNEL, 
 				resultSet.getString("channel_jid"));
 		
 		JsonArray allActivity = new JsonArray();
@@ -142,7 +285,7 @@ public class ActivityHelperTest extends HSQLDBTest {
 		activityInThisHour.addProperty("a", 2);
 		allActivity.add(activityInThisHour);
 		
-		for (int i = 1; i < ActivityHelper.MAX_WINDOW_SIZE; i++) {
+		for (int i = 1; i < ActivityWindow.SIZE; i++) {
 			JsonObject activity = new JsonObject();
 			activity.addProperty("p", postTimestampInHours - i);
 			activity.addProperty("a", 0);
@@ -150,7 +293,8 @@ public class ActivityHelperTest extends HSQLDBTest {
 		}
 		
 		Assert.assertEquals(allActivity.toString(), 
-				resultSet.getString("detailed_activity"));
+				ActivityWindow.fromBytes(
+						resultSet.getBytes("activity_window")).toJson().toString());
 		Assert.assertEquals(2, 
 				resultSet.getLong("summarized_activity"));
 		Assert.assertEquals(new Timestamp(oldPostTimestamp + 1), 
@@ -166,24 +310,23 @@ public class ActivityHelperTest extends HSQLDBTest {
 		long postTimestampInHours = 100;
 		long oldPostTimestamp = A_DAY * postTimestampInHours;
 		
-		SolrDocumentList sdl = recordChannelSolrQuery();
-		sdl.add(new SolrDocument());
-		
 		PostData newPostData = new PostData();
-		newPostData.setParentSimpleId("whatever@whatever.com");
+		newPostData.setParentSimpleId(CHANNEL);
 		newPostData.setPublished(new Date(oldPostTimestamp + A_DAY + 1));
-		ActivityHelper.updateActivity(newPostData, getDataSource(), null, solrFactory);
+		aggregator.add(newPostData);
+		flush();
 		
 		PostData oldPostData = new PostData();
-		oldPostData.setParentSimpleId("whatever@whatever.com");
+		oldPostData.setParentSimpleId(CHANNEL);
 		oldPostData.setPublished(new Date(oldPostTimestamp));
-		ActivityHelper.updateActivity(oldPostData, getDataSource(), null, solrFactory);
+		aggregator.add(oldPostData);
+		flush();
 		
 		Statement st = getDataSource().createStatement();
 		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
 		
 		Assert.assertTrue(resultSet.next());
-		Assert.assertEquals("whatever@whatever.com", 
+		Assert.assertEquals(CHANNEL, 
 				resultSet.getString("channel_jid"));
 		
 		JsonArray allActivity = new JsonArray();
@@ -198,7 +341,7 @@ public class ActivityHelperTest extends HSQLDBTest {
 		activityInLastHour.addProperty("a", 1);
 		allActivity.add(activityInLastHour);
 		
-		for (int i = 2; i < ActivityHelper.MAX_WINDOW_SIZE; i++) {
+		for (int i = 2; i < ActivityWindow.SIZE; i++) {
 			JsonObject activity = new JsonObject();
 			activity.addProperty("p", postTimestampInHours - i + 1);
 			activity.addProperty("a", 0);
@@ -206,7 +349,8 @@ public class ActivityHelperTest extends HSQLDBTest {
 		}
 		
 		Assert.assertEquals(allActivity.toString(), 
-				resultSet.getString("detailed_activity"));
+				ActivityWindow.fromBytes(
+						resultSet.getBytes("activity_window")).toJson().toString());
 		Assert.assertEquals(2, 
 				resultSet.getLong("summarized_activity"));
 		Assert.assertEquals(new Timestamp(oldPostTimestamp + A_DAY + 1), 
@@ -222,26 +366,25 @@ public class ActivityHelperTest extends HSQLDBTest {
 		long postTimestampInHours = 100;
 		long oldPostTimestamp = A_DAY * postTimestampInHours;
 		
-		SolrDocumentList sdl = recordChannelSolrQuery();
-		sdl.add(new SolrDocument());
-		
 		final int skippingHours = 5;
 		
 		PostData newPostData = new PostData();
-		newPostData.setParentSimpleId("whatever@whatever.com");
+		newPostData.setParentSimpleId(CHANNEL);
 		newPostData.setPublished(new Date(oldPostTimestamp + skippingHours * A_DAY + 1));
-		ActivityHelper.updateActivity(newPostData, getDataSource(), null, solrFactory);
+		aggregator.add(newPostData);
+		flush();
 		
 		PostData oldPostData = new PostData();
-		oldPostData.setParentSimpleId("whatever@whatever.com");
+		oldPostData.setParentSimpleId(CHANNEL);
 		oldPostData.setPublished(new Date(oldPostTimestamp));
-		ActivityHelper.updateActivity(oldPostData, getDataSource(), null, solrFactory);
+		aggregator.add(oldPostData);
+		flush();
 		
 		Statement st = getDataSource().createStatement();
 		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
 		
 		Assert.assertTrue(resultSet.next());
-		Assert.assertEquals("whatever@whatever.com", 
+		Assert.assertEquals(CHANNEL, 
 				resultSet.getString("channel_jid"));
 		
 		JsonArray allActivity = new JsonArray();
@@ -262,7 +405,7 @@ public class ActivityHelperTest extends HSQLDBTest {
 		activityInLastHour.addProperty("a", 1);
 		allActivity.add(activityInLastHour);
 		
-		for (int i = 1; i < ActivityHelper.MAX_WINDOW_SIZE - skippingHours; i++) {
+		for (int i = 1; i < ActivityWindow.SIZE - skippingHours; i++) {
 			JsonObject activity = new JsonObject();
 			activity.addProperty("p", postTimestampInHours - i);
 			activity.addProperty("a", 0);
@@ -270,7 +413,8 @@ public class ActivityHelperTest extends HSQLDBTest {
 		}
 		
 		Assert.assertEquals(allActivity.toString(), 
-				resultSet.getString("detailed_activity"));
+				ActivityWindow.fromBytes(
+						resultSet.getBytes("activity_window")).toJson().toString());
 		
 		Assert.assertEquals(2, 
 				resultSet.getLong("summarized_activity"));
@@ -287,50 +431,50 @@ public class ActivityHelperTest extends HSQLDBTest {
 		long postTimestampInHours = 100;
 		long oldPostTimestamp = A_DAY * postTimestampInHours;
 		
-		SolrDocumentList sdl = recordChannelSolrQuery();
-		sdl.add(new SolrDocument());
-		
 		PostData newPostData = new PostData();
-		newPostData.setParentSimpleId("whatever@whatever.com");
+		newPostData.setParentSimpleId(CHANNEL);
 		newPostData.setPublished(new Date(oldPostTimestamp + 
-				ActivityHelper.MAX_WINDOW_SIZE * A_DAY));
-		ActivityHelper.updateActivity(newPostData, getDataSource(), null, solrFactory);
+				ActivityWindow.SIZE * A_DAY));
+		aggregator.add(newPostData);
+		flush();
 		
 		PostData oldPostData = new PostData();
-		oldPostData.setParentSimpleId("whatever@whatever.com");
+		oldPostData.setParentSimpleId(CHANNEL);
 		oldPostData.setPublished(new Date(oldPostTimestamp));
-		ActivityHelper.updateActivity(oldPostData, getDataSource(), null, solrFactory);
+		aggregator.add(oldPostData);
+		flush();
 		
 		Statement st = getDataSource().createStatement();
 		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
 		
 		Assert.assertTrue(resultSet.next());
-		Assert.assertEquals("whatever@whatever.com", 
+		Assert.assertEquals(CHANNEL, 
 				resultSet.getString("channel_jid"));
 		
 		JsonArray allActivity = new JsonArray();
 		
 		JsonObject activityInLastHour = new JsonObject();
-		activityInLastHour.addProperty("p", postTimestampInHours + ActivityHelper.MAX_WINDOW_SIZE);
+		activityInLastHour.addProperty("p", postTimestampInHours + ActivityWindow.SIZE);
 		activityInLastHour.addProperty("a", 1);
 		allActivity.add(activityInLastHour);
 		
-		for (int i = 1; i < ActivityHelper.MAX_WINDOW_SIZE; i++) {
+		for (int i = 1; i < ActivityWindow.SIZE; i++) {
 			JsonObject activity = new JsonObject();
-			activity.addProperty("p", postTimestampInHours + ActivityHelper.MAX_WINDOW_SIZE - i);
+			activity.addProperty("p", postTimestampInHours + ActivityWindow.SIZE - i);
 			activity.addProperty("a", 0);
 			allActivity.add(activity);
 		}
 		
 		Assert.assertEquals(allActivity.toString(), 
-				resultSet.getString("detailed_activity"));
+				ActivityWindow.fromBytes(
+						resultSet.getBytes("activity_window")).toJson().toString());
 		Assert.assertEquals(1, 
 				resultSet.getLong("summarized_activity"));
 		Assert.assertEquals(new Timestamp(oldPostTimestamp + 
-				ActivityHelper.MAX_WINDOW_SIZE * A_DAY), 
+				ActivityWindow.SIZE * A_DAY), 
 				resultSet.getTimestamp("updated"));
 		Assert.assertEquals(new Timestamp(oldPostTimestamp + 
-				ActivityHelper.MAX_WINDOW_SIZE * A_DAY), 
+				ActivityWindow.SIZE * A_DAY), 
 				resultSet.getTimestamp("earliest"));
 		
 		ChannelDirectoryDataSource.close(st);
@@ -342,28 +486,27 @@ public class ActivityHelperTest extends HSQLDBTest {
 		long oldPostTimestamp = A_DAY * postTimestampInHours;
 		
 		PostData oldPostData = new PostData();
-		oldPostData.setParentSimpleId("whatever@whatever.com");
+		oldPostData.setParentSimpleId(CHANNEL);
 		oldPostData.setPublished(new Date(oldPostTimestamp));
 		
-		SolrDocumentList sdl = recordChannelSolrQuery();
-		sdl.add(new SolrDocument());
-		
-		ActivityHelper.updateActivity(oldPostData, getDataSource(), null, solrFactory);
+		aggregator.add(oldPostData);
+		flush();
 		
 		final int skippingHours = 50;
 		final int windowMaxSize = 30;
 		
 		PostData newPostData = new PostData();
-		newPostData.setParentSimpleId("whatever@whatever.com");
+		newPostData.setParentSimpleId(CHANNEL);
 		newPostData.setPublished(new Date(oldPostTimestamp + skippingHours * A_DAY + 1));
 		
-		ActivityHelper.updateActivity(newPostData, getDataSource(), null, solrFactory);
+		aggregator.add(newPostData);
+		flush();
 		
 		Statement st = getDataSource().createStatement();
 		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
 		
 		Assert.assertTrue(resultSet.next());
-		Assert.assertEquals("whatever@whatever.com", 
+		Assert.assertEquals(CHANNEL, 
 				resultSet.getString("channel_jid"));
 		
 		JsonArray allActivity = new JsonArray();
@@ -380,7 +523,8 @@ public class ActivityHelperTest extends HSQLDBTest {
 		}
 		
 		Assert.assertEquals(allActivity.toString(), 
-				resultSet.getString("detailed_activity"));
+				ActivityWindow.fromBytes(
+						resultSet.getBytes("activity_window")).toJson().toString());
 		
 		Assert.assertEquals(1, 
 				resultSet.getLong("summarized_activity"));
@@ -392,19 +536,58 @@ public class ActivityHelperTest extends HSQLDBTest {
 		ChannelDirectoryDataSource.close(st);
 	}
 	
-	private SolrDocumentList recordChannelSolrQuery() throws SolrServerException {
-		QueryResponse res = Mockito.mock(QueryResponse.class);
-		SolrDocumentList sdl = new SolrDocumentList();
-		Mockito.when(res.getResults()).thenReturn(sdl);
-		Mockito.when(solrServer.query(Mockito.any(SolrParams.class))).thenReturn(res);
-		return sdl;
+	@Test
+	public void testJsonActivityIsConverted() throws Exception {
+		long postTimestampInHours = 100;
+		long oldPostTimestamp = A_DAY * postTimestampInHours;
+		
+		JsonArray allActivity = new JsonArray();
+		for (int i = 0; i < ActivityWindow.SIZE; i++) {
+			JsonObject activity = new JsonObject();
+			activity.addProperty("p", postTimestampInHours - i);
+			activity.addProperty("a", i == 0 ? 2 : 0);
+			allActivity.add(activity);
+		}
+		
+		Statement st = getDataSource().createStatement();
+		st.execute("INSERT INTO channel_activity(channel_jid, detailed_activity, " +
+				"summarized_activity, updated, earliest) VALUES ('whatever@whatever.com', '" + 
+				allActivity.toString() + "', 2, '1970-04-11 00:00:00', '1970-04-11 00:00:00')");
+		ChannelDirectoryDataSource.close(st);
+		
+		PostData postData = new PostData();
+		postData.setParentSimpleId(CHANNEL);
+		postData.setPublished(new Date(oldPostTimestamp));
+		aggregator.add(postData);
+		flush();
+		
+		st = getDataSource().createStatement();
+		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
+		Assert.assertTrue(resultSet.next());
+		
+		allActivity.get(0).getAsJsonObject().addProperty("a", 3);
+		Assert.assertEquals(allActivity.toString(), 
+				ActivityWindow.fromBytes(
+						resultSet.getBytes("activity_window")).toJson().toString());
+		Assert.assertNull(resultSet.getString("detailed_activity"));
+		Assert.assertEquals(3, 
+				resultSet.getLong("summarized_activity"));
+		
+		ChannelDirectoryDataSource.close(st);
 	}
 	
-	private void assertDBEmpty() throws SQLException {
+	private void assertRowCount(int expected) throws Exception {
 		Statement st = getDataSource().createStatement();
-		ResultSet resultSet = st.executeQuery("SELECT * FROM channel_activity");
-		Assert.assertFalse(resultSet.next());
+		ResultSet resultSet = st.executeQuery("SELECT COUNT(*) FROM channel_activity");
+		Assert.assertTrue(resultSet.next());
+		Assert.assertEquals(expected, resultSet.getInt(1));
 		ChannelDirectoryDataSource.close(st);
 	}
 	
+	private static PostData createPost(String channel, long published) {
+		PostData postData = new PostData();
+		postData.setParentSimpleId(channel);
+		postData.setPublished(new Date(published));
+		return postData;
+	}
 }
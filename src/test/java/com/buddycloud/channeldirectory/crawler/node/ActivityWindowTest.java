@@ -0,0 +1,77 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ActivityWindowTest {
+
+	@Test
+	public void testSlideForward() {
+		ActivityWindow window = ActivityWindow.create(100);
+		window.add(100, 2);
+		window.add(98, 1);
+		
+		Assert.assertTrue(window.add(103, 1));
+		
+		Assert.assertEquals(103, window.getLastDay());
+		Assert.assertEquals(1, window.getCount(0));
+		Assert.assertEquals(2, window.getCount(3));
+		Assert.assertEquals(1, window.getCount(5));
+		Assert.assertEquals(4, window.getSum());
+	}
+	
+	@Test
+	public void testSlidePastWholeWindow() {
+		ActivityWindow window = ActivityWindow.create(100);
+		window.add(100, 2);
+		
+		Assert.assertTrue(window.add(100 + ActivityWindow.SIZE, 1));
+		
+		Assert.assertEquals(1, window.getSum());
+	}
+	
+	@Test
+	public void testOlderThanWindow() {
+		ActivityWindow window = ActivityWindow.create(100);
+		
+		Assert.assertTrue(window.add(100 - ActivityWindow.SIZE + 1, 1));
+		Assert.assertFalse(window.add(100 - ActivityWindow.SIZE, 1));
+		Assert.assertEquals(1, window.getSum());
+	}
+	
+	@Test
+	public void testRetractDoesNotSlide() {
+		ActivityWindow window = ActivityWindow.create(100);
+		window.add(99, 1);
+		
+		Assert.assertTrue(window.add(99, -2));
+		Assert.assertFalse(window.add(101, -1));
+		
+		Assert.assertEquals(100, window.getLastDay());
+		Assert.assertEquals(0, window.getSum());
+	}
+	
+	@Test
+	public void testJsonRoundTrip() {
+		ActivityWindow window = ActivityWindow.create(100);
+		window.add(100, 3);
+		window.add(90, 1);
+		
+		String json = window.toJson().toString();
+		ActivityWindow converted = ActivityWindow.fromJson(json);
+		
+		Assert.assertEquals(json, converted.toJson().toString());
+		Assert.assertEquals(4, converted.getSum());
+	}
+	
+	@Test
+	public void testBytesAreUpdatedInPlace() {
+		ActivityWindow window = ActivityWindow.create(100);
+		byte[] bytes = window.toBytes();
+		
+		ActivityWindow.fromBytes(bytes).add(100, 5);
+		
+		Assert.assertEquals(5, window.getCount(0));
+	}
+}
@@ -0,0 +1,145 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+public class CrawlStateTest extends HSQLDBTest {
+
+	private static final String SERVER = "channels.whatever.com";
+	
+	@Test
+	public void testLoad() throws Exception {
+		execute("INSERT INTO subscribed_server(name) VALUES ('whatever.com')");
+		execute("INSERT INTO subscribed_node(name, server, last_item_crawled) " +
+				"VALUES ('/user/a@whatever.com/posts', '" + SERVER + "', 'item1')");
+		
+		CrawlState crawlState = new CrawlState(getDataSource());
+		crawlState.load();
+		
+		Assert.assertTrue(crawlState.isServerSubscribed("whatever.com"));
+		Assert.assertTrue(crawlState.isNodeSubscribed("/user/a@whatever.com/posts", SERVER));
+		Assert.assertEquals("item1", 
+				crawlState.getLastItemCrawled("/user/a@whatever.com/posts", SERVER));
+	}
+	
+	@Test
+	public void testEnqueueServersOnce() throws Exception {
+		CrawlState crawlState = new CrawlState(getDataSource());
+		crawlState.load();
+		
+		crawlState.enqueueNewServers(Arrays.asList(
+				"a@whatever.com", "b@whatever.com", "c@other.com"));
+		crawlState.enqueueNewServer("d@whatever.com");
+		
+		Assert.assertEquals(2, count("SELECT COUNT(*) FROM subscribed_server"));
+		Assert.assertTrue(crawlState.isServerSubscribed("other.com"));
+	}
+	
+	@Test
+	public void testRemoveNodes() throws Exception {
+		CrawlState crawlState = new CrawlState(getDataSource());
+		crawlState.load();
+		
+		crawlState.insertNodes(Arrays.asList("/user/a@whatever.com/posts", 
+				"/user/b@whatever.com/posts"), SERVER);
+		crawlState.removeNodes(Arrays.asList("/user/a@whatever.com/posts"), SERVER);
+		
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM subscribed_node"));
+		Assert.assertFalse(crawlState.isNodeSubscribed("/user/a@whatever.com/posts", SERVER));
+		Assert.assertEquals(1, crawlState.getNodes(SERVER).size());
+	}
+	
+	@Test
+	public void testInsertNodesSkipsExistingRows() throws Exception {
+		CrawlState crawlState = new CrawlState(getDataSource());
+		crawlState.load();
+		
+		// Inserted behind the cache back, makes the batch fail
+		execute("INSERT INTO subscribed_node(name, server) " +
+				"VALUES ('/user/a@whatever.com/posts', '" + SERVER + "')");
+		
+		crawlState.insertNodes(Arrays.asList("/user/a@whatever.com/posts", 
+				"/user/b@whatever.com/posts"), SERVER);
+		
+		Assert.assertEquals(2, count("SELECT COUNT(*) FROM subscribed_node"));
+		Assert.assertTrue(crawlState.isNodeSubscribed("/user/b@whatever.com/posts", SERVER));
+	}
+	
+	@Test
+	public void testFailedInsertsAreNotCached() throws Exception {
+		CrawlState crawlState = new CrawlState(getDataSource());
+		crawlState.load();
+		
+		// Longer than the name column
+		StringBuilder tooLong = new StringBuilder("/user/");
+		while (tooLong.length() <= 300) {
+			tooLong.append('a');
+		}
+		
+		crawlState.insertNodes(Arrays.asList(tooLong.toString(), 
+				"/user/b@whatever.com/posts"), SERVER);
+		crawlState.insertServers(Arrays.asList(tooLong.toString(), "whatever.com"));
+		
+		Assert.assertFalse(crawlState.isNodeSubscribed(tooLong.toString(), SERVER));
+		Assert.assertTrue(crawlState.isNodeSubscribed("/user/b@whatever.com/posts", SERVER));
+		Assert.assertFalse(crawlState.isServerSubscribed(tooLong.toString()));
+		Assert.assertTrue(crawlState.isServerSubscribed("whatever.com"));
+	}
+	
+	@Test
+	public void testUpdateLastItemCrawled() throws Exception {
+		CrawlState crawlState = new CrawlState(getDataSource());
+		crawlState.load();
+		
+		crawlState.updateLastItemCrawled("/user/a@whatever.com/posts", "item1", SERVER);
+		Assert.assertNull(crawlState.getLastItemCrawled("/user/a@whatever.com/posts", SERVER));
+		
+		crawlState.insertNode("/user/a@whatever.com/posts", SERVER);
+		crawlState.updateLastItemCrawled("/user/a@whatever.com/posts", "item1", SERVER);
+		
+		Assert.assertEquals("item1", 
+				crawlState.getLastItemCrawled("/user/a@whatever.com/posts", SERVER));
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM subscribed_node " +
+				"WHERE last_item_crawled = 'item1'"));
+	}
+	
+	@Test
+	public void testReloadSeesOtherInstances() throws Exception {
+		CrawlState crawlState = new CrawlState(getDataSource());
+		crawlState.load();
+		crawlState.insertNodes(Arrays.asList("/user/a@whatever.com/posts", 
+				"/user/b@whatever.com/posts"), SERVER);
+		
+		execute("UPDATE subscribed_node SET last_item_crawled = 'item2' " +
+				"WHERE name = '/user/a@whatever.com/posts'");
+		execute("DELETE FROM subscribed_node WHERE name = '/user/b@whatever.com/posts'");
+		crawlState.reload(SERVER);
+		
+		Assert.assertEquals("item2", 
+				crawlState.getLastItemCrawled("/user/a@whatever.com/posts", SERVER));
+		Assert.assertFalse(crawlState.isNodeSubscribed("/user/b@whatever.com/posts", SERVER));
+	}
+	
+	private void execute(String sql) throws Exception {
+		Statement st = getDataSource().createStatement();
+		st.execute(sql);
+		ChannelDirectoryDataSource.close(st);
+	}
+	
+	private int count(String sql) throws Exception {
+		Statement st = getDataSource().createStatement();
+		ResultSet resultSet = st.executeQuery(sql);
+		resultSet.next();
+		int count = resultSet.getInt(1);
+		ChannelDirectoryDataSource.close(st);
+		return count;
+	}
+}
@@ -0,0 +1,113 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+import com.buddycloud.channeldirectory.crawler.node.DiscoveryUtils.Discovery;
+
+public class DiscoveryCacheTest extends HSQLDBTest {
+
+	private static final String DOMAIN = "whatever.com";
+	private static final String CHANNEL_SERVER = "channels.whatever.com";
+	
+	private Properties properties;
+	
+	@Before
+	public void setUp() throws Exception {
+		new CrawlState(getDataSource()).insertServer(DOMAIN);
+		properties = new Properties();
+	}
+	
+	@Test
+	public void testDiscoveriesAreCachedAcrossRestarts() throws Exception {
+		CountingDiscoverer discoverer = new CountingDiscoverer(
+				new Discovery(CHANNEL_SERVER, 300));
+		DiscoveryCache cache = new DiscoveryCache(properties, getDataSource(), discoverer);
+		
+		Assert.assertEquals(CHANNEL_SERVER, cache.discover(DOMAIN));
+		Assert.assertEquals(CHANNEL_SERVER, cache.discover(DOMAIN));
+		Assert.assertEquals(1, discoverer.calls.get());
+		
+		DiscoveryCache reloaded = new DiscoveryCache(properties, getDataSource(), discoverer);
+		reloaded.load();
+		reloaded.prefetch(Arrays.asList(DOMAIN));
+		Assert.assertEquals(CHANNEL_SERVER, reloaded.discover(DOMAIN));
+		Assert.assertEquals(1, discoverer.calls.get());
+		
+		cache.shutdown();
+		reloaded.shutdown();
+	}
+	
+	@Test
+	public void testExpiredDiscoveriesAreRefreshed() throws Exception {
+		properties.setProperty("crawler.discovery.ttl", "0");
+		CountingDiscoverer discoverer = new CountingDiscoverer(
+				new Discovery(CHANNEL_SERVER, -1));
+		DiscoveryCache cache = new DiscoveryCache(properties, getDataSource(), discoverer);
+		
+		cache.prefetch(Arrays.asList(DOMAIN));
+		Assert.assertEquals(CHANNEL_SERVER, cache.discover(DOMAIN));
+		Assert.assertTrue(discoverer.calls.get() >= 1);
+		
+		discoverer.discovery = null;
+		Assert.assertNull(cache.discover(DOMAIN));
+		
+		DiscoveryCache reloaded = new DiscoveryCache(properties, getDataSource(), discoverer);
+		reloaded.load();
+		Assert.assertNull(reloaded.discover(DOMAIN));
+		
+		cache.shutdown();
+		reloaded.shutdown();
+	}
+	
+	@Test
+	public void testDiscoverDoesNotWaitForQueuedPrefetches() throws Exception {
+		properties.setProperty("crawler.discovery.threads", "1");
+		final CountDownLatch release = new CountDownLatch(1);
+		DiscoveryCache cache = new DiscoveryCache(properties, getDataSource(), 
+				new DiscoveryCache.Discoverer() {
+			@Override
+			public Discovery discover(String domain) {
+				if (domain.equals("slow.com")) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return new Discovery("channels." + domain, 300);
+			}
+		});
+		
+		cache.prefetch(Arrays.asList("slow.com", DOMAIN));
+		Assert.assertEquals(CHANNEL_SERVER, cache.discover(DOMAIN));
+		
+		release.countDown();
+		Assert.assertEquals("channels.slow.com", cache.discover("slow.com"));
+		cache.shutdown();
+	}
+	
+	private static class CountingDiscoverer implements DiscoveryCache.Discoverer {
+		
+		private final AtomicInteger calls = new AtomicInteger();
+		private volatile Discovery discovery;
+		
+		public CountingDiscoverer(Discovery discovery) {
+			this.discovery = discovery;
+		}
+		
+		@Override
+		public Discovery discover(String domain) {
+			calls.incrementAndGet();
+			return discovery;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+
+public class DomainHealthTest extends HSQLDBTest {
+
+	private static final String DOMAIN = "whatever.com";
+	private static final long HOUR = 60000 * 60;
+	
+	private Properties properties;
+	
+	@Before
+	public void setUp() throws Exception {
+		new CrawlState(getDataSource()).insertServer(DOMAIN);
+		properties = new Properties();
+		properties.setProperty("crawler.domain.backoff", String.valueOf(HOUR));
+		properties.setProperty("crawler.domain.maxbackoff", String.valueOf(4 * HOUR));
+		properties.setProperty("crawler.domain.quarantinethreshold", "5");
+		properties.setProperty("crawler.domain.quarantine", String.valueOf(1000 * HOUR));
+	}
+	
+	@Test
+	public void testFailuresBackOffExponentially() throws Exception {
+		DomainHealth health = new DomainHealth(properties, getDataSource());
+		long now = System.currentTimeMillis();
+		Assert.assertTrue(health.isEligible(DOMAIN, now));
+		
+		health.failed(DOMAIN);
+		Assert.assertFalse(health.isEligible(DOMAIN, now + HOUR / 2));
+		Assert.assertTrue(health.isEligible(DOMAIN, now + HOUR + 1000));
+		
+		health.failed(DOMAIN);
+		health.failed(DOMAIN);
+		Assert.assertFalse(health.isEligible(DOMAIN, now + 3 * HOUR));
+		Assert.assertTrue(health.isEligible(DOMAIN, now + 4 * HOUR + 1000));
+		
+		health.failed(DOMAIN);
+		Assert.assertTrue(health.isEligible(DOMAIN, now + 4 * HOUR + 1000));
+		
+		health.failed(DOMAIN);
+		Assert.assertFalse(health.isEligible(DOMAIN, now + 999 * HOUR));
+	}
+	
+	@Test
+	public void testHealthSurvivesRestartsUntilSuccess() throws Exception {
+		DomainHealth health = new DomainHealth(properties, getDataSource());
+		health.failed(DOMAIN);
+		
+		DomainHealth reloaded = new DomainHealth(properties, getDataSource());
+		reloaded.load();
+		Assert.assertFalse(reloaded.isEligible(DOMAIN));
+		
+		reloaded.succeeded(DOMAIN);
+		Assert.assertTrue(reloaded.isEligible(DOMAIN));
+		
+		reloaded = new DomainHealth(properties, getDataSource());
+		reloaded.load();
+		Assert.assertTrue(reloaded.isEligible(DOMAIN));
+	}
+}
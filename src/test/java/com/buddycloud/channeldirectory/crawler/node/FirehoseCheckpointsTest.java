@@ -0,0 +1,60 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+import com.buddycloud.channeldirectory.crawler.node.FirehoseCheckpoints.Checkpoint;
+
+public class FirehoseCheckpointsTest extends HSQLDBTest {
+
+	private static final String SERVER = "channels.whatever.com";
+
+	@Test
+	public void testNeverCrawledServer() throws Exception {
+		Checkpoint checkpoint = new FirehoseCheckpoints(getDataSource()).get(SERVER);
+
+		Assert.assertNull(checkpoint.getLastItem());
+		Assert.assertFalse(checkpoint.isInterrupted());
+	}
+
+	@Test
+	public void testInterruptedPassIsKept() throws Exception {
+		FirehoseCheckpoints checkpoints = new FirehoseCheckpoints(getDataSource());
+		checkpoints.save(SERVER, new Checkpoint("item1", new Date(1000), 
+				"item9", new Date(9000), "item5"));
+
+		Checkpoint checkpoint = new FirehoseCheckpoints(getDataSource()).get(SERVER);
+		Assert.assertTrue(checkpoint.isInterrupted());
+		Assert.assertEquals("item1", checkpoint.getLastItem());
+		Assert.assertEquals(1000, checkpoint.getLastPublished().getTime());
+		Assert.assertEquals("item9", checkpoint.getPassNewest());
+		Assert.assertEquals(9000, checkpoint.getPassNewestPublished().getTime());
+		Assert.assertEquals("item5", checkpoint.getPassAfter());
+
+		checkpoints.save(SERVER, new Checkpoint("item9", new Date(9000), null, null, null));
+		checkpoint = checkpoints.get(SERVER);
+		Assert.assertFalse(checkpoint.isInterrupted());
+		Assert.assertEquals("item9", checkpoint.getLastItem());
+		Assert.assertEquals(9000, checkpoint.getLastPublished().getTime());
+		Assert.assertNull(checkpoint.getPassNewestPublished());
+	}
+
+	@Test
+	public void testCheckpointKeepsCapabilities() throws Exception {
+		ServerCapabilities capabilities = new ServerCapabilities(getDataSource());
+		capabilities.setFirehoseSupported(SERVER, true);
+
+		new FirehoseCheckpoints(getDataSource()).save(SERVER,
+				new Checkpoint("item1", null, null, null, null));
+
+		ServerCapabilities reloaded = new ServerCapabilities(getDataSource());
+		reloaded.load();
+		Assert.assertTrue(reloaded.isFirehoseSupported(SERVER));
+		Assert.assertEquals("item1",
+				new FirehoseCheckpoints(getDataSource()).get(SERVER).getLastItem());
+	}
+}
@@ -0,0 +1,70 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+public class FollowerWriterTest extends HSQLDBTest {
+
+	@Test
+	public void testAddFollowers() throws Exception {
+		FollowerWriter writer = new FollowerWriter(getDataSource(), 10);
+		
+		writer.addFollowers("channel@whatever.com", 
+				Arrays.asList("a@whatever.com", "b@whatever.com", "a@whatever.com"));
+		
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM item"));
+		Assert.assertEquals(2, count("SELECT COUNT(*) FROM t_user"));
+		Assert.assertEquals(2, count("SELECT COUNT(*) FROM taste_preferences"));
+	}
+	
+	@Test
+	public void testExistingRowsAreReused() throws Exception {
+		execute("INSERT INTO t_user(jid) VALUES ('a@whatever.com')");
+		
+		FollowerWriter writer = new FollowerWriter(getDataSource(), 10);
+		writer.addFollowers("channel@whatever.com", 
+				Arrays.asList("a@whatever.com", "b@whatever.com"));
+		writer.addFollowers("channel@whatever.com", 
+				Arrays.asList("b@whatever.com", "c@whatever.com"));
+		writer.addFollowers("other@whatever.com", 
+				Arrays.asList("c@whatever.com"));
+		
+		Assert.assertEquals(2, count("SELECT COUNT(*) FROM item"));
+		Assert.assertEquals(3, count("SELECT COUNT(*) FROM t_user"));
+		Assert.assertEquals(4, count("SELECT COUNT(*) FROM taste_preferences"));
+	}
+	
+	@Test
+	public void testNewWriterSkipsExistingPreferences() throws Exception {
+		new FollowerWriter(getDataSource(), 10).addFollowers(
+				"channel@whatever.com", Arrays.asList("a@whatever.com"));
+		new FollowerWriter(getDataSource(), 10).addFollowers(
+				"channel@whatever.com", Arrays.asList("a@whatever.com"));
+		
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM t_user"));
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM taste_preferences"));
+	}
+	
+	private void execute(String sql) throws Exception {
+		Statement st = getDataSource().createStatement();
+		st.execute(sql);
+		ChannelDirectoryDataSource.close(st);
+	}
+	
+	private int count(String sql) throws Exception {
+		Statement st = getDataSource().createStatement();
+		ResultSet resultSet = st.executeQuery(sql);
+		resultSet.next();
+		int count = resultSet.getInt(1);
+		ChannelDirectoryDataSource.close(st);
+		return count;
+	}
+}
@@ -0,0 +1,168 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.buddycloud.channeldirectory.crawler.node.IngestLog.Batch;
+import com.buddycloud.channeldirectory.search.handler.response.ChannelData;
+import com.buddycloud.channeldirectory.search.handler.response.Geolocation;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
+
+public class IngestLogTest {
+
+	private File dir;
+	private Properties properties;
+	
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("ingest-log", "");
+		dir.delete();
+		properties = new Properties();
+		properties.setProperty("crawler.ingest.dir", dir.getPath());
+	}
+	
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	private static PostData createPost(int i) {
+		PostData postData = new PostData();
+		postData.setId("tag:channels.whatever.com,/user/a@whatever.com/posts," + i);
+		postData.setAuthor("a@whatever.com");
+		postData.setContent("Post " + i);
+		postData.setPublished(new Date(1000L * i));
+		postData.setUpdated(new Date(1000L * i));
+		postData.setParentFullId("/user/a@whatever.com/posts");
+		postData.setParentSimpleId("a@whatever.com");
+		return postData;
+	}
+	
+	@Test
+	public void testRecordsAreReadBack() throws Exception {
+		IngestLog log = new IngestLog(properties);
+		log.open();
+		
+		ChannelData channelData = new ChannelData();
+		channelData.setId("a@whatever.com");
+		channelData.setTitle("A channel");
+		channelData.setGeolocation(new Geolocation(-7.5, 110.25));
+		log.append(IngestRecord.channel(channelData));
+		log.append(IngestRecord.post(createPost(1), true));
+		
+		Batch batch = log.read(0, 10);
+		Assert.assertEquals(2, batch.getRecords().size());
+		Assert.assertEquals(log.getEnd(), batch.getNextOffset());
+		
+		ChannelData readChannel = batch.getRecords().get(0).getChannelData();
+		Assert.assertEquals("A channel", readChannel.getTitle());
+		Assert.assertEquals(110.25, readChannel.getGeolocation().getLng());
+		Assert.assertNull(readChannel.getDescription());
+		
+		IngestRecord readPost = batch.getRecords().get(1);
+		Assert.assertEquals(0, batch.getRecords().get(0).getOffset());
+		Assert.assertTrue(readPost.getOffset() > 0);
+		Assert.assertTrue(readPost.isNewPost());
+		Assert.assertEquals("Post 1", readPost.getPostData().getContent());
+		Assert.assertEquals(new Date(1000), readPost.getPostData().getPublished());
+		Assert.assertEquals("a@whatever.com", readPost.getPostData().getParentSimpleId());
+		Assert.assertNull(readPost.getPostData().getGeolocation());
+		
+		Assert.assertTrue(log.read(batch.getNextOffset(), 10).getRecords().isEmpty());
+		log.close();
+	}
+	
+	@Test
+	public void testRetractionsAndPurgesAreReadBack() throws Exception {
+		IngestLog log = new IngestLog(properties);
+		log.open();
+		
+		String node = "/user/a@whatever.com/posts";
+		log.append(IngestRecord.retraction(node, Arrays.asList("1", "2"), 
+				Arrays.asList(new Date(1000), null)));
+		log.append(IngestRecord.purge(node));
+		
+		List<IngestRecord> records = log.read(0, 10).getRecords();
+		Assert.assertEquals(IngestRecord.RETRACTION, records.get(0).getType());
+		Assert.assertEquals(node, records.get(0).getNodeId());
+		Assert.assertEquals(Arrays.asList("1", "2"), records.get(0).getItemIds());
+		Assert.assertEquals(Arrays.asList(new Date(1000), null), records.get(0).getPublished());
+		Assert.assertEquals(IngestRecord.PURGE, records.get(1).getType());
+		Assert.assertEquals(node, records.get(1).getNodeId());
+		log.close();
+	}
+	
+	@Test
+	public void testSegmentsAreRolledAndDeleted() throws Exception {
+		properties.setProperty("crawler.ingest.segmentsize", "200");
+		IngestLog log = new IngestLog(properties);
+		log.open();
+		
+		for (int i = 0; i < 20; i++) {
+			log.append(IngestRecord.post(createPost(i), true));
+		}
+		Assert.assertTrue(dir.listFiles().length > 1);
+		
+		List<IngestRecord> records = new ArrayList<IngestRecord>();
+		long offset = 0;
+		while (offset < log.getEnd()) {
+			Batch batch = log.read(offset, 3);
+			records.addAll(batch.getRecords());
+			offset = batch.getNextOffset();
+		}
+		Assert.assertEquals(20, records.size());
+		Assert.assertEquals("Post 19", records.get(19).getPostData().getContent());
+		
+		log.deleteBefore(offset);
+		Assert.assertEquals(1, dir.listFiles().length);
+		
+		log.append(IngestRecord.post(createPost(20), false));
+		Batch batch = log.read(offset, 10);
+		Assert.assertEquals(1, batch.getRecords().size());
+		Assert.assertFalse(batch.getRecords().get(0).isNewPost());
+		log.close();
+	}
+	
+	@Test
+	public void testTornRecordIsDroppedOnOpen() throws Exception {
+		IngestLog log = new IngestLog(properties);
+		log.open();
+		log.append(IngestRecord.post(createPost(1), true));
+		log.append(IngestRecord.post(createPost(2), true));
+		long end = log.getEnd();
+		log.close();
+		
+		File segment = dir.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(end - 5);
+		file.close();
+		
+		IngestLog reopened = new IngestLog(properties);
+		reopened.open();
+		Batch batch = reopened.read(0, 10);
+		Assert.assertEquals(1, batch.getRecords().size());
+		
+		reopened.append(IngestRecord.post(createPost(3), true));
+		batch = reopened.read(0, 10);
+		Assert.assertEquals(2, batch.getRecords().size());
+		Assert.assertEquals("Post 3", batch.getRecords().get(1).getPostData().getContent());
+		reopened.close();
+	}
+}
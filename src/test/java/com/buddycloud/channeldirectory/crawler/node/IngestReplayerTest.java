@@ -0,0 +1,94 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.buddycloud.channeldirectory.search.handler.response.ChannelData;
+
+public class IngestReplayerTest {
+
+	private File dir;
+	private Properties properties;
+	private IngestLog log;
+	
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("ingest-log", "");
+		dir.delete();
+		properties = new Properties();
+		properties.setProperty("crawler.ingest.dir", dir.getPath());
+		properties.setProperty("crawler.ingest.pollinterval", "1");
+		log = new IngestLog(properties);
+		log.open();
+	}
+	
+	@After
+	public void tearDown() {
+		log.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+	
+	private void appendChannel(String id) throws Exception {
+		ChannelData channelData = new ChannelData();
+		channelData.setId(id);
+		log.append(IngestRecord.channel(channelData));
+	}
+	
+	@Test
+	public void testOffsetOnlyMovesAfterFlush() throws Exception {
+		appendChannel("a@whatever.com");
+		appendChannel("b@whatever.com");
+		
+		FailingSink sink = new FailingSink(2);
+		IngestReplayer replayer = new IngestReplayer(properties, log, sink);
+		replayer.load();
+		
+		Assert.assertTrue(replayer.replay());
+		Assert.assertEquals(2, sink.written.size());
+		Assert.assertEquals(3, sink.flushes);
+		Assert.assertEquals(log.getEnd(), replayer.getOffset());
+		Assert.assertFalse(replayer.replay());
+		
+		appendChannel("c@whatever.com");
+		IngestReplayer restarted = new IngestReplayer(properties, log, sink);
+		restarted.load();
+		Assert.assertTrue(restarted.replay());
+		Assert.assertEquals(3, sink.written.size());
+		Assert.assertEquals("c@whatever.com", sink.written.get(2).getChannelData().getId());
+	}
+	
+	private static class FailingSink implements IngestSink {
+		
+		private final List<IngestRecord> written = new ArrayList<IngestRecord>();
+		private int failures;
+		private int flushes;
+		
+		public FailingSink(int failures) {
+			this.failures = failures;
+		}
+		
+		@Override
+		public void write(IngestRecord record) {
+			written.add(record);
+		}
+		
+		@Override
+		public void flush(long nextOffset) throws Exception {
+			flushes++;
+			if (failures-- > 0) {
+				throw new Exception("Solr is down");
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.buddycloud.channeldirectory.commons.solr.SolrServerFactory;
+
+public class KnownChannelsTest {
+
+	private SolrServerFactory solrFactory;
+	private SolrServer solrServer;
+	private KnownChannels knownChannels;
+	
+	@Before
+	public void setUp() throws Exception {
+		solrFactory = Mockito.mock(SolrServerFactory.class);
+		solrServer = Mockito.mock(SolrServer.class);
+		Mockito.when(solrFactory.createChannelCore(
+				Mockito.any(Properties.class))).thenReturn(solrServer);
+		knownChannels = new KnownChannels(new Properties(), solrFactory);
+	}
+	
+	@Test
+	public void testLoadedChannelNeedsNoQuery() throws Exception {
+		SolrDocumentList results = recordChannelSolrQuery();
+		SolrDocument document = new SolrDocument();
+		document.setField("jid", "whatever@whatever.com");
+		results.add(document);
+		results.setNumFound(1);
+		
+		knownChannels.load();
+		
+		Assert.assertTrue(knownChannels.contains("whatever@whatever.com"));
+		Mockito.verify(solrServer, Mockito.times(1)).query(Mockito.any(SolrParams.class));
+	}
+	
+	@Test
+	public void testUnknownChannelFallsBackToSolr() throws Exception {
+		SolrDocumentList results = recordChannelSolrQuery();
+		results.add(new SolrDocument());
+		
+		Assert.assertTrue(knownChannels.contains("whatever@whatever.com"));
+		Assert.assertTrue(knownChannels.contains("whatever@whatever.com"));
+		Mockito.verify(solrServer, Mockito.times(1)).query(Mockito.any(SolrParams.class));
+	}
+	
+	@Test
+	public void testMissesAreCached() throws Exception {
+		SolrDocumentList results = recordChannelSolrQuery();
+		
+		Assert.assertFalse(knownChannels.contains("whatever@whatever.com"));
+		
+		results.add(new SolrDocument());
+		Assert.assertFalse(knownChannels.contains("whatever@whatever.com"));
+		Mockito.verify(solrServer, Mockito.times(1)).query(Mockito.any(SolrParams.class));
+		
+		knownChannels.add("whatever@whatever.com");
+		Assert.assertTrue(knownChannels.contains("whatever@whatever.com"));
+	}
+	
+	@Test
+	public void testMissesExpire() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("crawler.knownchannels.missttl", "0");
+		knownChannels = new KnownChannels(properties, solrFactory);
+		SolrDocumentList results = recordChannelSolrQuery();
+		
+		Assert.assertFalse(knownChannels.contains("whatever@whatever.com"));
+		
+		results.add(new SolrDocument());
+		Assert.assertTrue(knownChannels.contains("whatever@whatever.com"));
+		Mockito.verify(solrServer, Mockito.times(2)).query(Mockito.any(SolrParams.class));
+	}
+	
+	@Test
+	public void testAddedChannelNeedsNoQuery() throws Exception {
+		knownChannels.add("whatever@whatever.com");
+		
+		Assert.assertTrue(knownChannels.contains("whatever@whatever.com"));
+		Mockito.verify(solrServer, Mockito.never()).query(Mockito.any(SolrParams.class));
+	}
+	
+	private SolrDocumentList recordChannelSolrQuery() throws Exception {
+		QueryResponse queryResponse = Mockito.mock(QueryResponse.class);
+		SolrDocumentList sdl = new SolrDocumentList();
+		Mockito.when(queryResponse.getResults()).thenReturn(sdl);
+		Mockito.when(solrServer.query(Mockito.any(SolrParams.class))).thenReturn(queryResponse);
+		return sdl;
+	}
+}
@@ -0,0 +1,76 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.buddycloud.channeldirectory.commons.solr.SolrBatchIndexer;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
+
+public class PostCrawlerTest {
+
+	private static final String NODE = "/user/a@whatever.com/posts";
+	
+	private SolrBatchIndexer indexer;
+	private ActivityAggregator activityAggregator;
+	private SeenItemIndex seenItems;
+	private PostCrawler postCrawler;
+	
+	@Before
+	public void setUp() throws Exception {
+		indexer = Mockito.mock(SolrBatchIndexer.class);
+		activityAggregator = Mockito.mock(ActivityAggregator.class);
+		seenItems = Mockito.mock(SeenItemIndex.class);
+		postCrawler = new PostCrawler(indexer, activityAggregator, 
+				Mockito.mock(CrawlState.class), seenItems, 
+				Mockito.mock(IngestLog.class), null);
+	}
+	
+	private static PostData createPost() {
+		PostData postData = new PostData();
+		postData.setId("tag:whatever.com," + NODE + ",item1");
+		postData.setParentFullId(NODE);
+		postData.setParentSimpleId("a@whatever.com");
+		postData.setPublished(new Date(1000));
+		postData.setUpdated(new Date(1000));
+		return postData;
+	}
+	
+	@Test
+	public void testReplayedPostIsCounted() throws Exception {
+		PostData postData = createPost();
+		postCrawler.index(IngestRecord.post(postData, true), true);
+		
+		Mockito.verify(indexer).addPost(Mockito.any(SolrInputDocument.class));
+		Mockito.verify(activityAggregator).add(postData);
+		Mockito.verify(seenItems, Mockito.never()).remove(Mockito.anyString());
+	}
+	
+	@Test
+	public void testDroppedPostIsForgotten() throws Exception {
+		Mockito.doThrow(new IllegalStateException()).when(indexer).addPost(
+				Mockito.any(SolrInputDocument.class));
+		
+		try {
+			postCrawler.index(IngestRecord.post(createPost(), true), true);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		Mockito.verify(seenItems).remove(SeenItemIndex.itemKey(NODE, "item1"));
+		Mockito.verifyZeroInteractions(activityAggregator);
+	}
+	
+	@Test
+	public void testPostCountedBeforeACrashIsNotCountedAgain() throws Exception {
+		postCrawler.index(IngestRecord.post(createPost(), true), false);
+		
+		Mockito.verify(indexer).addPost(Mockito.any(SolrInputDocument.class));
+		Mockito.verifyZeroInteractions(activityAggregator);
+	}
+}
@@ -0,0 +1,138 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.buddycloud.channeldirectory.commons.solr.SolrBatchIndexer;
+import com.buddycloud.channeldirectory.commons.solr.SolrServerFactory;
+
+public class PostRetractorTest {
+
+	private static final String NODE = "/user/a@whatever.com/posts";
+	
+	private SolrServer solrServer;
+	private SolrBatchIndexer indexer;
+	private ActivityAggregator activityAggregator;
+	private SeenItemIndex seenItems;
+	private IngestLog ingestLog;
+	private PostRetractor postRetractor;
+	
+	@Before
+	public void setUp() throws Exception {
+		SolrServerFactory solrFactory = Mockito.mock(SolrServerFactory.class);
+		solrServer = Mockito.mock(SolrServer.class);
+		Mockito.when(solrFactory.createPostCore(
+				Mockito.any(Properties.class))).thenReturn(solrServer);
+		
+		indexer = Mockito.mock(SolrBatchIndexer.class);
+		activityAggregator = Mockito.mock(ActivityAggregator.class);
+		seenItems = Mockito.mock(SeenItemIndex.class);
+		ingestLog = Mockito.mock(IngestLog.class);
+		postRetractor = new PostRetractor(new Properties(), solrFactory, 
+				indexer, activityAggregator, seenItems, ingestLog);
+	}
+	
+	private IngestRecord captureAppended() throws Exception {
+		ArgumentCaptor<IngestRecord> record = ArgumentCaptor.forClass(IngestRecord.class);
+		Mockito.verify(ingestLog).append(record.capture());
+		return record.getValue();
+	}
+	
+	@Test
+	public void testRetractionIsLogged() throws Exception {
+		Mockito.when(seenItems.remove(SeenItemIndex.itemKey(NODE, "item1"))).thenReturn(1000L);
+		
+		Map<String, List<String>> itemIds = new LinkedHashMap<String, List<String>>();
+		itemIds.put(NODE, Arrays.asList("item1", "item2"));
+		postRetractor.retract(itemIds);
+		
+		IngestRecord record = captureAppended();
+		Assert.assertEquals(IngestRecord.RETRACTION, record.getType());
+		Assert.assertEquals(NODE, record.getNodeId());
+		Assert.assertEquals(Arrays.asList("item1", "item2"), record.getItemIds());
+		Assert.assertEquals(Arrays.asList(new Date(1000), null), record.getPublished());
+		
+		// Nothing is applied before the retraction is replayed
+		Mockito.verifyZeroInteractions(indexer, activityAggregator);
+	}
+	
+	@Test
+	public void testReplayedRetractionDecrementsActivity() throws Exception {
+		postRetractor.index(IngestRecord.retraction(NODE, 
+				Arrays.asList("item1", "item2"), Arrays.asList(new Date(1000), null)), true);
+		
+		ArgumentCaptor<String> query = ArgumentCaptor.forClass(String.class);
+		Mockito.verify(indexer).deletePosts(query.capture());
+		Assert.assertEquals("(parent_fullid:/user/a@whatever.com/posts " +
+				"AND item_id:(item1 OR item2))", query.getValue());
+		Mockito.verify(activityAggregator).remove("a@whatever.com", new Date(1000));
+		Mockito.verifyNoMoreInteractions(activityAggregator);
+		Mockito.verifyZeroInteractions(solrServer);
+	}
+	
+	@Test
+	public void testReplayedRetractionSplitsLargeBatches() throws Exception {
+		List<String> items = new ArrayList<String>();
+		List<Date> published = new ArrayList<Date>();
+		for (int i = 0; i < 250; i++) {
+			items.add("item" + i);
+			published.add(null);
+		}
+		postRetractor.index(IngestRecord.retraction(NODE, items, published), true);
+		
+		Mockito.verify(indexer, Mockito.times(2)).deletePosts(Mockito.anyString());
+	}
+	
+	@Test
+	public void testPurgeForgetsIndexedPosts() throws Exception {
+		SolrDocument document = new SolrDocument();
+		document.setField("item_id", "item1");
+		SolrDocumentList results = new SolrDocumentList();
+		results.add(document);
+		results.setNumFound(1);
+		
+		QueryResponse queryResponse = Mockito.mock(QueryResponse.class);
+		Mockito.when(queryResponse.getResults()).thenReturn(results);
+		Mockito.when(solrServer.query(Mockito.any(SolrParams.class))).thenReturn(queryResponse);
+		
+		postRetractor.purge(NODE);
+		
+		IngestRecord record = captureAppended();
+		Assert.assertEquals(IngestRecord.PURGE, record.getType());
+		Mockito.verifyZeroInteractions(indexer, activityAggregator, seenItems, solrServer);
+		
+		postRetractor.index(record, true);
+		Mockito.verify(seenItems).remove(SeenItemIndex.itemKey(NODE, "item1"));
+		Mockito.verify(indexer).deletePosts("parent_fullid:/user/a@whatever.com/posts");
+		Mockito.verify(activityAggregator).clear("a@whatever.com");
+	}
+	
+	@Test
+	public void testReplayedPurgeIsAppliedWhenSolrIsDown() throws Exception {
+		Mockito.when(solrServer.query(Mockito.any(SolrParams.class))).thenThrow(
+				new SolrServerException("Solr is down"));
+		
+		postRetractor.index(IngestRecord.purge(NODE), true);
+		
+		Mockito.verify(indexer).deletePosts("parent_fullid:/user/a@whatever.com/posts");
+		Mockito.verify(activityAggregator).clear("a@whatever.com");
+	}
+}
@@ -0,0 +1,142 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.jivesoftware.smack.SmackException.NoResponseException;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smackx.rsm.packet.RSMSet;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class RSMPageIteratorTest {
+
+	@SuppressWarnings("unchecked")
+	private static final List<List<String>> PAGES = Arrays.asList(
+			Arrays.asList("a", "b"), Arrays.asList("c"), Collections.<String>emptyList());
+	
+	@Test
+	public void testNextPageIsRequestedAhead() throws Exception {
+		FakePager pager = new FakePager();
+		RSMPageIterator<String> pages = new RSMPageIterator<String>(pager, null);
+		Assert.assertEquals(1, pager.requested.size());
+		
+		Assert.assertEquals(PAGES.get(0), pages.next());
+		Assert.assertEquals(Arrays.asList(null, "b"), pager.requested);
+		
+		Assert.assertEquals(PAGES.get(1), pages.next());
+		Assert.assertEquals(Arrays.asList(null, "b", "c"), pager.requested);
+		
+		Assert.assertNull(pages.next());
+		Assert.assertNull(pages.next());
+		Assert.assertEquals(3, pager.requested.size());
+	}
+	
+	@Test
+	public void testNothingIsRequestedAfterTheLastPage() throws Exception {
+		FakePager pager = new FakePager() {
+			@Override
+			public String getAfter(List<String> page, RSMSet returnedRsmSet) {
+				return page.contains("a") ? null : super.getAfter(page, returnedRsmSet);
+			}
+		};
+		RSMPageIterator<String> pages = new RSMPageIterator<String>(pager, null);
+		
+		Assert.assertEquals(PAGES.get(0), pages.next());
+		Assert.assertEquals(1, pager.requested.size());
+		Assert.assertNull(pages.next());
+	}
+	
+	@Test
+	public void testPagedOnlyWhenAnsweredWithRsm() throws Exception {
+		RSMPageIterator<String> pages = new RSMPageIterator<String>(new FakePager(), null);
+		while (pages.next() != null);
+		Assert.assertFalse(pages.isPaged());
+		
+		pages = new RSMPageIterator<String>(new FakePager() {
+			@Override
+			public ListenableFuture<List<String>> fetch(List<PacketExtension> additionalExtensions,
+					List<PacketExtension> returnedExtensions) {
+				returnedExtensions.add(new RSMSet(2));
+				return super.fetch(additionalExtensions, returnedExtensions);
+			}
+		}, null);
+		pages.next();
+		Assert.assertTrue(pages.isPaged());
+	}
+	
+	@Test
+	public void testFailedPageIsThrown() throws Exception {
+		RSMPageIterator<String> pages = new RSMPageIterator<String>(new FakePager() {
+			@Override
+			public ListenableFuture<List<String>> fetch(List<PacketExtension> additionalExtensions,
+					List<PacketExtension> returnedExtensions) {
+				return Futures.immediateFailedFuture(new IllegalStateException("No response"));
+			}
+		}, "b");
+		
+		try {
+			pages.next();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		Assert.assertNull(pages.next());
+	}
+	
+	@Test
+	public void testOnlyTimeoutsAndWaitErrorsShrinkThePageSize() throws Exception {
+		RSMPageSizes pageSizes = Mockito.mock(RSMPageSizes.class);
+		Mockito.when(pageSizes.getMax("server")).thenReturn(50);
+		
+		failPage(new XMPPErrorException(new XMPPError(XMPPError.Condition.item_not_found)), pageSizes);
+		Mockito.verify(pageSizes, Mockito.never()).failed("server");
+		
+		failPage(new NoResponseException(), pageSizes);
+		Mockito.verify(pageSizes, Mockito.times(1)).failed("server");
+	}
+	
+	private static void failPage(final Exception exception, RSMPageSizes pageSizes) {
+		RSMPageIterator<String> pages = new RSMPageIterator<String>(new FakePager() {
+			@Override
+			public ListenableFuture<List<String>> fetch(List<PacketExtension> additionalExtensions,
+					List<PacketExtension> returnedExtensions) {
+				return Futures.immediateFailedFuture(exception);
+			}
+		}, null, pageSizes, "server");
+		
+		try {
+			pages.next();
+			Assert.fail();
+		} catch (Exception e) {
+			Assert.assertSame(exception, e);
+		}
+	}
+	
+	private static class FakePager implements RSMPageIterator.Pager<String> {
+		
+		private final List<String> requested = new ArrayList<String>();
+		
+		@Override
+		public ListenableFuture<List<String>> fetch(List<PacketExtension> additionalExtensions,
+				List<PacketExtension> returnedExtensions) {
+			requested.add(additionalExtensions.isEmpty() ? null 
+					: ((RSMSet) additionalExtensions.get(0)).getAfter());
+			return Futures.immediateFuture(PAGES.get(requested.size() - 1));
+		}
+		
+		@Override
+		public String getAfter(List<String> page, RSMSet returnedRsmSet) {
+			return page.get(page.size() - 1);
+		}
+	}
+}
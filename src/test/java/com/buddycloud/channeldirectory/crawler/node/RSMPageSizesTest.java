@@ -0,0 +1,65 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+
+public class RSMPageSizesTest extends HSQLDBTest {
+
+	private static final String SERVER = "channels.whatever.com";
+
+	private RSMPageSizes createPageSizes(ServerCapabilities capabilities) {
+		Properties configuration = new Properties();
+		configuration.setProperty("crawler.rsm.initialmax", "40");
+		configuration.setProperty("crawler.rsm.minmax", "10");
+		configuration.setProperty("crawler.rsm.maxmax", "100");
+		configuration.setProperty("crawler.rsm.latencytarget", "1000");
+		configuration.setProperty("crawler.rsm.maxstanzasize", "10000");
+		return new RSMPageSizes(configuration, capabilities);
+	}
+
+	@Test
+	public void testFullFastPagesGrowUpToMax() throws Exception {
+		RSMPageSizes pageSizes = createPageSizes(new ServerCapabilities(getDataSource()));
+		Assert.assertEquals(40, pageSizes.getMax(SERVER));
+
+		pageSizes.succeeded(SERVER, 40, 40, 100, 1000);
+		Assert.assertEquals(60, pageSizes.getMax(SERVER));
+
+		// A short page means the node ran out of items
+		pageSizes.succeeded(SERVER, 60, 20, 100, 1000);
+		Assert.assertEquals(60, pageSizes.getMax(SERVER));
+
+		pageSizes.succeeded(SERVER, 60, 60, 100, 1000);
+		pageSizes.succeeded(SERVER, 90, 90, 100, 1000);
+		Assert.assertEquals(100, pageSizes.getMax(SERVER));
+	}
+
+	@Test
+	public void testSlowLargeAndFailedPagesShrink() throws Exception {
+		RSMPageSizes pageSizes = createPageSizes(new ServerCapabilities(getDataSource()));
+
+		pageSizes.succeeded(SERVER, 40, 40, 2000, 1000);
+		Assert.assertEquals(30, pageSizes.getMax(SERVER));
+
+		pageSizes.succeeded(SERVER, 30, 30, 100, 20000);
+		Assert.assertEquals(15, pageSizes.getMax(SERVER));
+
+		pageSizes.failed(SERVER);
+		Assert.assertEquals(10, pageSizes.getMax(SERVER));
+	}
+
+	@Test
+	public void testPageSizeSurvivesRestarts() throws Exception {
+		RSMPageSizes pageSizes = createPageSizes(new ServerCapabilities(getDataSource()));
+		pageSizes.succeeded(SERVER, 40, 40, 100, 1000);
+
+		ServerCapabilities reloaded = new ServerCapabilities(getDataSource());
+		reloaded.load();
+		Assert.assertEquals(60, createPageSizes(reloaded).getMax(SERVER));
+	}
+}
@@ -0,0 +1,143 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+import com.buddycloud.channeldirectory.commons.db.ChannelDirectoryDataSource;
+
+public class RevisitSchedulerTest extends HSQLDBTest {
+
+	private static final String SERVER = "channels.whatever.com";
+	private static final String ACTIVE_NODE = "/user/active@whatever.com/posts";
+	private static final String DORMANT_NODE = "/user/dormant@whatever.com/posts";
+	private static final long MIN_INTERVAL = 1000;
+	private static final long MAX_INTERVAL = 100000;
+	
+	private ServerCapabilities capabilities;
+	private RevisitScheduler scheduler;
+	
+	@Before
+	public void setUp() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("crawler.revisit.mininterval", String.valueOf(MIN_INTERVAL));
+		properties.setProperty("crawler.revisit.maxinterval", String.valueOf(MAX_INTERVAL));
+		properties.setProperty("crawler.revisit.metadatainterval", String.valueOf(MAX_INTERVAL / 2));
+		properties.setProperty("crawler.revisit.retrybackoff", String.valueOf(MIN_INTERVAL / 4));
+		capabilities = new ServerCapabilities(getDataSource());
+		scheduler = new RevisitScheduler(properties, getDataSource(), capabilities);
+	}
+	
+	@Test
+	public void testActiveChannelsAreVisitedMoreOften() throws Exception {
+		execute("INSERT INTO channel_activity(channel_jid, summarized_activity) " +
+				"VALUES ('active@whatever.com', 9)");
+		scheduler.load();
+		
+		Assert.assertEquals(MAX_INTERVAL / 10, scheduler.getInterval(ACTIVE_NODE, SERVER, 0.5));
+		Assert.assertEquals(MAX_INTERVAL, scheduler.getInterval(DORMANT_NODE, SERVER, 0.5));
+		
+		// Productive visits shorten the interval, down to the minimum
+		Assert.assertEquals(MAX_INTERVAL / 20, scheduler.getInterval(ACTIVE_NODE, SERVER, 1));
+		execute("UPDATE channel_activity SET summarized_activity = 1000000");
+		scheduler.loadActivity();
+		Assert.assertEquals(MIN_INTERVAL, scheduler.getInterval(ACTIVE_NODE, SERVER, 0.5));
+	}
+	
+	@Test
+	public void testFirehoseServersAreVisitedLessOften() throws Exception {
+		execute("INSERT INTO channel_activity(channel_jid, summarized_activity) " +
+				"VALUES ('active@whatever.com', 9)");
+		scheduler.load();
+		
+		capabilities.setFirehoseSupported(SERVER, true);
+		Assert.assertEquals(MAX_INTERVAL / 2, scheduler.getInterval(ACTIVE_NODE, SERVER, 0.5));
+		Assert.assertEquals(MAX_INTERVAL, scheduler.getInterval(DORMANT_NODE, SERVER, 0.5));
+		
+		capabilities.setFirehoseSupported(SERVER, false);
+		Assert.assertEquals(MAX_INTERVAL / 10, scheduler.getInterval(ACTIVE_NODE, SERVER, 0.5));
+	}
+	
+	@Test
+	public void testNeverVisitedNodesAreDue() throws Exception {
+		execute("INSERT INTO subscribed_node(name, server) " +
+				"VALUES ('" + DORMANT_NODE + "', '" + SERVER + "')");
+		scheduler.load();
+		
+		Assert.assertEquals(0, scheduler.getNextVisit(DORMANT_NODE, SERVER));
+		Assert.assertEquals(0, scheduler.getNextVisit(ACTIVE_NODE, SERVER));
+	}
+	
+	@Test
+	public void testVisitsAreLoaded() throws Exception {
+		execute("INSERT INTO subscribed_node(name, server, metadata_updated, " +
+				"subscribers_updated, items_crawled) VALUES ('" + DORMANT_NODE + "', '" 
+				+ SERVER + "', TIMESTAMP '2014-01-02 00:00:00', " +
+				"TIMESTAMP '2014-01-01 00:00:00', TIMESTAMP '2014-01-02 00:00:00')");
+		scheduler.load();
+		
+		long lastVisit = Timestamp.valueOf("2014-01-01 00:00:00").getTime();
+		Assert.assertEquals(lastVisit + MAX_INTERVAL, 
+				scheduler.getNextVisit(DORMANT_NODE, SERVER));
+	}
+	
+	@Test
+	public void testVisitedIsRecorded() throws Exception {
+		execute("INSERT INTO subscribed_node(name, server) " +
+				"VALUES ('" + DORMANT_NODE + "', '" + SERVER + "')");
+		scheduler.load();
+		
+		long before = System.currentTimeMillis();
+		scheduler.visited(DORMANT_NODE, SERVER, false, false);
+		Assert.assertTrue(scheduler.getNextVisit(DORMANT_NODE, SERVER) <= 
+				System.currentTimeMillis() + MIN_INTERVAL);
+		Assert.assertEquals(0, count("SELECT COUNT(*) FROM subscribed_node " +
+				"WHERE items_crawled IS NOT NULL"));
+		
+		scheduler.visited(DORMANT_NODE, SERVER, false, true);
+		Assert.assertTrue(scheduler.getNextVisit(DORMANT_NODE, SERVER) >= before + MAX_INTERVAL);
+		Assert.assertEquals(1, count("SELECT COUNT(*) FROM subscribed_node " +
+				"WHERE items_crawled IS NOT NULL AND metadata_updated IS NOT NULL " +
+				"AND subscribers_updated IS NOT NULL"));
+	}
+	
+	@Test
+	public void testFailedVisitsBackOffUpToTheMinInterval() throws Exception {
+		Assert.assertEquals(MIN_INTERVAL / 4, scheduler.getRetryInterval(1));
+		Assert.assertEquals(MIN_INTERVAL / 2, scheduler.getRetryInterval(2));
+		Assert.assertEquals(MIN_INTERVAL, scheduler.getRetryInterval(3));
+		Assert.assertEquals(MIN_INTERVAL, scheduler.getRetryInterval(100));
+	}
+	
+	@Test
+	public void testRemovedNodesAreDueAgain() throws Exception {
+		scheduler.visited(DORMANT_NODE, SERVER, false, true);
+		Assert.assertTrue(scheduler.getNextVisit(DORMANT_NODE, SERVER) > 0);
+		
+		scheduler.removeNodes(Arrays.asList(DORMANT_NODE), SERVER);
+		Assert.assertEquals(0, scheduler.getNextVisit(DORMANT_NODE, SERVER));
+	}
+	
+	private void execute(String sql) throws Exception {
+		Statement st = getDataSource().createStatement();
+		st.execute(sql);
+		ChannelDirectoryDataSource.close(st);
+	}
+	
+	private int count(String sql) throws Exception {
+		Statement st = getDataSource().createStatement();
+		ResultSet resultSet = st.executeQuery(sql);
+		resultSet.next();
+		int count = resultSet.getInt(1);
+		ChannelDirectoryDataSource.close(st);
+		return count;
+	}
+}
@@ -0,0 +1,117 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.io.File;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SeenItemIndexTest {
+
+	private static final String ITEM = SeenItemIndex.itemKey("/user/a@whatever.com/posts", "1");
+	
+	private File file;
+	private Properties properties;
+	
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("seen-items", ".dat");
+		file.delete();
+		properties = new Properties();
+		properties.setProperty("crawler.seenitems.file", file.getPath());
+		properties.setProperty("crawler.seenitems.expectedsize", "1000");
+	}
+	
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+	
+	@Test
+	public void testUnchangedAndEditedPosts() throws Exception {
+		SeenItemIndex index = new SeenItemIndex(properties);
+		index.load();
+		
+		long original = SeenItemIndex.contentHash(1000, "Hello");
+		long edited = SeenItemIndex.contentHash(2000, "Hello, world");
+		
+		Assert.assertEquals(SeenItemIndex.NONE, index.put(ITEM, original, 1000));
+		Assert.assertEquals(original, index.put(ITEM, original, 1000));
+		Assert.assertEquals(original, index.put(ITEM, edited, 1000));
+		Assert.assertEquals(edited, index.put(ITEM, edited, 1000));
+		index.close();
+	}
+	
+	@Test
+	public void testRevert() throws Exception {
+		SeenItemIndex index = new SeenItemIndex(properties);
+		index.load();
+		
+		long hash = SeenItemIndex.contentHash(1000, "Hello");
+		long previous = index.put(ITEM, hash, 1000);
+		index.revert(ITEM, hash, previous);
+		
+		Assert.assertEquals(SeenItemIndex.NONE, index.put(ITEM, hash, 1000));
+		index.close();
+	}
+	
+	@Test
+	public void testRemovedPostsAreIndexedAgain() throws Exception {
+		SeenItemIndex index = new SeenItemIndex(properties);
+		index.load();
+		
+		long hash = SeenItemIndex.contentHash(1000, "Hello");
+		index.put(ITEM, hash, 1000);
+		Assert.assertEquals(1000, index.remove(ITEM));
+		Assert.assertEquals(SeenItemIndex.NONE, index.remove(ITEM));
+		index.close();
+		
+		SeenItemIndex reloaded = new SeenItemIndex(properties);
+		reloaded.load();
+		Assert.assertEquals(SeenItemIndex.NONE, reloaded.put(ITEM, hash, 1000));
+		reloaded.close();
+	}
+	
+	@Test
+	public void testItemsSurviveRestarts() throws Exception {
+		SeenItemIndex index = new SeenItemIndex(properties);
+		index.load();
+		for (int i = 0; i < 25000; i++) {
+			index.put("item" + i, SeenItemIndex.contentHash(i, "content"), i);
+		}
+		index.put("item0", SeenItemIndex.contentHash(0, "edited"), 0);
+		index.close();
+		
+		SeenItemIndex reloaded = new SeenItemIndex(properties);
+		reloaded.load();
+		Assert.assertEquals(SeenItemIndex.contentHash(0, "edited"), 
+				reloaded.put("item0", SeenItemIndex.contentHash(0, "edited"), 0));
+		Assert.assertEquals(SeenItemIndex.contentHash(24999, "content"), 
+				reloaded.put("item24999", SeenItemIndex.contentHash(24999, "content"), 24999));
+		Assert.assertEquals(SeenItemIndex.NONE, 
+				reloaded.put("item25000", SeenItemIndex.contentHash(0, "content"), 0));
+		reloaded.close();
+	}
+	
+	@Test
+	public void testLogIsCompactedWhileRunning() throws Exception {
+		SeenItemIndex index = new SeenItemIndex(properties);
+		index.load();
+		for (int i = 1; i <= 30000; i++) {
+			index.put(ITEM, SeenItemIndex.contentHash(i, "content"), 1000);
+		}
+		index.close();
+		
+		// Every record takes 24 bytes
+		Assert.assertTrue(file.length() < 15000 * 24);
+		
+		SeenItemIndex reloaded = new SeenItemIndex(properties);
+		reloaded.load();
+		Assert.assertEquals(SeenItemIndex.contentHash(30000, "content"), 
+				reloaded.put(ITEM, SeenItemIndex.contentHash(30000, "content"), 1000));
+		reloaded.close();
+	}
+}
@@ -0,0 +1,38 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+
+public class ServerCapabilitiesTest extends HSQLDBTest {
+
+	private static final String SERVER = "channels.whatever.com";
+
+	@Test
+	public void testUnknownServerSupportsNothing() throws Exception {
+		ServerCapabilities capabilities = new ServerCapabilities(getDataSource());
+		capabilities.load();
+
+		Assert.assertFalse(capabilities.isFirehoseSupported(SERVER));
+	}
+
+	@Test
+	public void testCapabilitiesSurviveRestarts() throws Exception {
+		ServerCapabilities capabilities = new ServerCapabilities(getDataSource());
+		capabilities.setFirehoseSupported(SERVER, true);
+		capabilities.setRsmMax(SERVER, 100);
+
+		ServerCapabilities reloaded = new ServerCapabilities(getDataSource());
+		reloaded.load();
+		Assert.assertTrue(reloaded.isFirehoseSupported(SERVER));
+		Assert.assertEquals(100, reloaded.getRsmMax(SERVER));
+
+		capabilities.setFirehoseSupported(SERVER, false);
+		reloaded = new ServerCapabilities(getDataSource());
+		reloaded.load();
+		Assert.assertFalse(reloaded.isFirehoseSupported(SERVER));
+		Assert.assertEquals(100, reloaded.getRsmMax(SERVER));
+	}
+}
@@ -0,0 +1,59 @@
+package com.buddycloud.channeldirectory.crawler.node;
+
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.buddycloud.HSQLDBTest;
+
+public class ServerLeasesTest extends HSQLDBTest {
+
+	private static final String SERVER = "channels.whatever.com";
+
+	@Test
+	public void testOnlyOneInstanceHoldsTheLease() throws Exception {
+		ServerLeases first = createLeases("first", 60000);
+		ServerLeases second = createLeases("second", 60000);
+
+		Assert.assertTrue(first.claim(SERVER));
+		Assert.assertFalse(second.claim(SERVER));
+		Assert.assertTrue(first.claim(SERVER));
+		Assert.assertFalse(second.renew(SERVER));
+
+		first.release(SERVER);
+		Assert.assertTrue(second.claim(SERVER));
+		Assert.assertFalse(first.renew(SERVER));
+	}
+
+	@Test
+	public void testExpiredLeasesCanBeTaken() throws Exception {
+		ServerLeases first = createLeases("first", 1);
+		ServerLeases second = createLeases("second", 60000);
+
+		Assert.assertTrue(first.claim(SERVER));
+		Thread.sleep(10);
+		Assert.assertTrue(second.claim(SERVER));
+		Assert.assertFalse(first.renew(SERVER));
+	}
+
+	@Test
+	public void testLeasesKeepCapabilities() throws Exception {
+		ServerCapabilities capabilities = new ServerCapabilities(getDataSource());
+		capabilities.setFirehoseSupported(SERVER, true);
+
+		Assert.assertTrue(createLeases("first", 60000).claim(SERVER));
+
+		ServerCapabilities reloaded = new ServerCapabilities(getDataSource());
+		reloaded.load();
+		Assert.assertTrue(reloaded.isFirehoseSupported(SERVER));
+	}
+
+	private ServerLeases createLeases(String instance, long duration) {
+		Properties properties = new Properties();
+		properties.setProperty("crawler.instance", instance);
+		properties.setProperty("crawler.lease.duration", String.valueOf(duration));
+		return new ServerLeases(properties, getDataSource());
+	}
+}
@@ -0,0 +1,111 @@
+package org.jivesoftware.smackx.pubsub;
+
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.Assert;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackException.NoResponseException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class BuddycloudAsyncIQTest {
+
+	private static final Function<IQ, String> HANDLER = new Function<IQ, String>() {
+		@Override
+		public String apply(IQ reply) {
+			return "answered";
+		}
+	};
+	
+	private XMPPConnection connection;
+	private IQ request;
+	private BuddycloudRateController rateController;
+	
+	@Before
+	public void setUp() {
+		connection = Mockito.mock(XMPPConnection.class);
+		Mockito.when(connection.getPacketReplyTimeout()).thenReturn(60000L);
+		request = Mockito.mock(IQ.class);
+		Mockito.when(request.getPacketID()).thenReturn("request-1");
+		rateController = new BuddycloudRateController(10, 1, 100, 1000);
+	}
+	
+	private PacketListener captureListener() {
+		ArgumentCaptor<PacketListener> listener = ArgumentCaptor.forClass(PacketListener.class);
+		Mockito.verify(connection).addPacketListener(listener.capture(), 
+				Mockito.any(PacketFilter.class));
+		return listener.getValue();
+	}
+	
+	private static IQ createReply(IQ.Type type, XMPPError error) {
+		IQ reply = Mockito.mock(IQ.class);
+		Mockito.when(reply.getType()).thenReturn(type);
+		Mockito.when(reply.getError()).thenReturn(error);
+		return reply;
+	}
+	
+	@Test
+	public void testAnswer() throws Exception {
+		ListenableFuture<String> future = BuddycloudAsyncIQ.send(
+				connection, request, rateController, HANDLER);
+		PacketListener listener = captureListener();
+		
+		listener.processPacket(createReply(IQ.Type.result, null));
+		Assert.assertEquals("answered", future.get());
+		Mockito.verify(connection, Mockito.atLeastOnce()).removePacketListener(listener);
+	}
+	
+	@Test
+	public void testErrorAnswer() throws Exception {
+		ListenableFuture<String> future = BuddycloudAsyncIQ.send(
+				connection, request, rateController, HANDLER);
+		
+		captureListener().processPacket(createReply(IQ.Type.error, 
+				new XMPPError(XMPPError.Condition.item_not_found)));
+		try {
+			future.get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof XMPPErrorException);
+		}
+		// Not a wait-type error, so not a reason to slow down
+		Assert.assertEquals(10.0, rateController.getRate(), 0.5);
+	}
+	
+	@Test
+	public void testTimeout() throws Exception {
+		Mockito.when(connection.getPacketReplyTimeout()).thenReturn(10L);
+		ListenableFuture<String> future = BuddycloudAsyncIQ.send(
+				connection, request, rateController, HANDLER);
+		PacketListener listener = captureListener();
+		
+		try {
+			future.get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof NoResponseException);
+		}
+		Mockito.verify(connection, Mockito.atLeastOnce()).removePacketListener(listener);
+	}
+	
+	@Test
+	public void testCancelRemovesListener() throws Exception {
+		ListenableFuture<String> future = BuddycloudAsyncIQ.send(
+				connection, request, rateController, HANDLER);
+		PacketListener listener = captureListener();
+		
+		future.cancel(false);
+		Mockito.verify(connection).removePacketListener(listener);
+	}
+}
@@ -0,0 +1,131 @@
+package org.jivesoftware.smackx.pubsub;
+
+import java.io.StringReader;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.buddycloud.channeldirectory.search.handler.response.Geolocation;
+import com.buddycloud.channeldirectory.search.handler.response.PostData;
+
+public class BuddycloudAtomEntryProviderTest {
+
+	private static final String PUBLISHED = "2014-01-02T10:20:30.000Z";
+	private static final String UPDATED = "2014-01-03T10:20:30.000Z";
+
+	@Test
+	public void testEntry() throws Exception {
+		PostData postData = parse(
+				"<entry xmlns='http://www.w3.org/2005/Atom'>" +
+				"<id>tag:channels.whatever.com,/user/a@whatever.com/posts,item1</id>" +
+				"<content>Hello</content>" +
+				"<published>" + PUBLISHED + "</published>" +
+				"<updated>" + UPDATED + "</updated>" +
+				"</entry>");
+
+		Assert.assertEquals("tag:channels.whatever.com,/user/a@whatever.com/posts,item1",
+				postData.getId());
+		Assert.assertEquals("Hello", postData.getContent());
+		Assert.assertEquals(PUBLISHED,
+				BuddycloudAtomEntryProvider.formatDate(postData.getPublished()));
+		Assert.assertEquals(UPDATED,
+				BuddycloudAtomEntryProvider.formatDate(postData.getUpdated()));
+		Assert.assertNull(postData.getInReplyTo());
+		Assert.assertNull(postData.getGeolocation());
+	}
+
+	@Test
+	public void testNestedAuthorAndGeoloc() throws Exception {
+		PostData postData = parse(
+				"<entry xmlns='http://www.w3.org/2005/Atom' " +
+				"xmlns:activity='http://activitystrea.ms/spec/1.0/'>" +
+				"<id>item1</id>" +
+				"<author><name>a@whatever.com</name><uri>acct:a@whatever.com</uri></author>" +
+				"<geoloc xmlns='http://jabber.org/protocol/geoloc'>" +
+				"<text>Somewhere</text><lat>1.5</lat><lon>-2.5</lon></geoloc>" +
+				"<activity:object><id>other</id><name>other</name></activity:object>" +
+				"<content>Hello</content>" +
+				"</entry>");
+
+		Assert.assertEquals("item1", postData.getId());
+		Assert.assertEquals("a@whatever.com", postData.getAuthor());
+		Assert.assertEquals("acct:a@whatever.com", postData.getAuthorUri());
+		Assert.assertEquals("Hello", postData.getContent());
+
+		Geolocation geolocation = postData.getGeolocation();
+		Assert.assertEquals("Somewhere", geolocation.getText());
+		Assert.assertEquals(1.5, geolocation.getLat());
+		Assert.assertEquals(-2.5, geolocation.getLng());
+	}
+
+	@Test
+	public void testBadDatesAndCoordinatesAreLeftNull() throws Exception {
+		PostData postData = parse(
+				"<entry xmlns='http://www.w3.org/2005/Atom'>" +
+				"<id>item1</id>" +
+				"<published>yesterday</published>" +
+				"<updated>" + UPDATED + "</updated>" +
+				"<geoloc xmlns='http://jabber.org/protocol/geoloc'>" +
+				"<text>Somewhere</text><lat>north</lat><lon>-2.5</lon></geoloc>" +
+				"</entry>");
+
+		Assert.assertEquals("item1", postData.getId());
+		Assert.assertNull(postData.getPublished());
+		Assert.assertEquals(UPDATED,
+				BuddycloudAtomEntryProvider.formatDate(postData.getUpdated()));
+
+		Geolocation geolocation = postData.getGeolocation();
+		Assert.assertEquals("Somewhere", geolocation.getText());
+		Assert.assertNull(geolocation.getLat());
+		Assert.assertNull(geolocation.getLng());
+	}
+
+	@Test
+	public void testInReplyTo() throws Exception {
+		PostData postData = parse(
+				"<entry xmlns='http://www.w3.org/2005/Atom' " +
+				"xmlns:thr='http://purl.org/syndication/thread/1.0'>" +
+				"<id>item2</id>" +
+				"<thr:in-reply-to ref='item1'/>" +
+				"<content>Hello back</content>" +
+				"</entry>");
+
+		Assert.assertEquals("item2", postData.getId());
+		Assert.assertEquals("item1", postData.getInReplyTo());
+		Assert.assertEquals("Hello back", postData.getContent());
+	}
+
+	@Test
+	public void testParserStopsAtTheEndOfTheEntry() throws Exception {
+		XmlPullParser parser = createParser(
+				"<item id='item1'><entry xmlns='http://www.w3.org/2005/Atom'>" +
+				"<id>item1</id></entry><next/></item>");
+		parser.nextTag();
+
+		PostData postData = ((BuddycloudAtomEntry) new BuddycloudAtomEntryProvider()
+				.parseExtension(parser)).getPostData();
+
+		Assert.assertEquals("item1", postData.getId());
+		Assert.assertEquals(XmlPullParser.END_TAG, parser.getEventType());
+		Assert.assertEquals("entry", parser.getName());
+		Assert.assertEquals("next", parser.nextTag() == XmlPullParser.START_TAG ?
+				parser.getName() : null);
+	}
+
+	private static PostData parse(String xml) throws Exception {
+		XmlPullParser parser = createParser(xml);
+		return ((BuddycloudAtomEntry) new BuddycloudAtomEntryProvider()
+				.parseExtension(parser)).getPostData();
+	}
+
+	private static XmlPullParser createParser(String xml) throws Exception {
+		XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		parser.setInput(new StringReader(xml));
+		parser.nextTag();
+		return parser;
+	}
+}
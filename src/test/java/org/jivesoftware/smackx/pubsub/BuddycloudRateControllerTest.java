@@ -0,0 +1,65 @@
+package org.jivesoftware.smackx.pubsub;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class BuddycloudRateControllerTest {
+
+	private static final long LATENCY_TARGET = 100;
+
+	@Test
+	public void testRequestsAreSpacedByTheRate() {
+		BuddycloudRateController controller = new BuddycloudRateController(
+				10, 1, 100, LATENCY_TARGET);
+
+		Assert.assertEquals(0, controller.reserve(0));
+		Assert.assertEquals(100000000L, controller.reserve(0));
+		Assert.assertEquals(0, controller.reserve(1000000000L));
+	}
+
+	@Test
+	public void testAdditiveIncrease() {
+		BuddycloudRateController controller = new BuddycloudRateController(
+				10, 1, 11, LATENCY_TARGET);
+
+		for (int i = 0; i < 10; i++) {
+			controller.succeeded(LATENCY_TARGET);
+		}
+		Assert.assertTrue(controller.getRate() > 10.9);
+
+		for (int i = 0; i < 100; i++) {
+			controller.succeeded(LATENCY_TARGET);
+		}
+		Assert.assertEquals(11.0, controller.getRate());
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() throws Exception {
+		BuddycloudRateController controller = new BuddycloudRateController(
+				10, 1, 100, LATENCY_TARGET);
+
+		controller.failed();
+		Assert.assertEquals(5.0, controller.getRate());
+
+		// A burst of failures only counts once
+		controller.failed();
+		controller.succeeded(LATENCY_TARGET + 1);
+		Assert.assertEquals(5.0, controller.getRate());
+
+		Thread.sleep(LATENCY_TARGET + 1);
+		controller.succeeded(LATENCY_TARGET + 1);
+		Assert.assertEquals(2.5, controller.getRate());
+	}
+
+	@Test
+	public void testRateStaysWithinBounds() throws Exception {
+		BuddycloudRateController controller = new BuddycloudRateController(
+				2, 1, 100, LATENCY_TARGET);
+
+		controller.failed();
+		Thread.sleep(LATENCY_TARGET + 1);
+		controller.failed();
+		Assert.assertEquals(1.0, controller.getRate());
+	}
+}